@@ -16,8 +16,10 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
@@ -25,24 +27,58 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.jetbrains.annotations.NotNull;
@@ -50,9 +86,41 @@ import org.springframework.http.MediaType;
 
 public class HipChatApiProcessor {
 	
+	private static final int MAX_TOTAL_CONNECTIONS = 20;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+	private static final long DEFAULT_KEEP_ALIVE_MILLISECONDS = 30000;
+	private static final long IDLE_CONNECTION_TIMEOUT_MILLISECONDS = 60000;
+	private static final long RETIRED_CLIENT_GRACE_MILLISECONDS = 60000;
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	private static final int MAX_RATE_LIMITED_RETRIES = 3;
+	private static final String RATE_LIMIT_LIMIT_HEADER = "X-Ratelimit-Limit";
+	private static final String RATE_LIMIT_REMAINING_HEADER = "X-Ratelimit-Remaining";
+	private static final String RATE_LIMIT_RESET_HEADER = "X-Ratelimit-Reset";
+	private static final int MAX_FAILED_RETRIES = 2;
+	private static final long RETRY_BASE_MILLISECONDS = 500;
+	private static final String ROOM_CIRCUIT_BREAKER_PREFIX = "Room ";
+	private static final String ENDPOINT_CIRCUIT_BREAKER_PREFIX = "Endpoint ";
+	private static Random rng = new Random();
+	
 	private HipChatConfiguration configuration;
 	private Properties systemProperties;
 	
+	// The pooled client is shared by all requests and only rebuilt when the settings it was built from change
+	private PooledClient client;
+	private String clientSettings;
+	// A client replaced by a settings change is only closed once its requests are done, or after a grace period
+	private List<PooledClient> retiredClients = new ArrayList<PooledClient>();
+	private AtomicLong connectionRequestCount = new AtomicLong();
+	private AtomicLong connectionCreatedCount = new AtomicLong();
+	private AtomicLong clientBuildCount = new AtomicLong();
+	private AtomicLong timeoutCount = new AtomicLong();
+	private AtomicLong cancelledCount = new AtomicLong();
+	private ScheduledExecutorService deadlineTimer;
+	
+	// HipChat limits requests per API token
+	private ConcurrentMap<String, HipChatRateLimiter> rateLimiters = new ConcurrentHashMap<String, HipChatRateLimiter>();
+	private ConcurrentMap<String, HipChatCircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, HipChatCircuitBreaker>();
+	
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
 	
 	public HipChatApiProcessor(@NotNull HipChatConfiguration configuration) throws URISyntaxException {
@@ -65,25 +133,29 @@ public class HipChatApiProcessor {
 	}
 	
 	public HipChatEmoticons getEmoticons(int startIndex) {
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
 		try {
-			URI uri = new URI(String.format("%s%s?start-index=%s", this.configuration.getApiUrl(), "emoticon", startIndex));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
+			URI uri = new URI(String.format("%s%s?start-index=%s", configuration.getApiUrl(), "emoticon", startIndex));
+			String authorisationHeader = String.format("Bearer %s", configuration.getApiToken());
 
 			// Make request
-			HttpClient client = createClient();
 			HttpGet getRequest = new HttpGet(uri.toString());
 			getRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
 			getRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
-			HttpResponse getResponse = client.execute(getRequest);
-			StatusLine status = getResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_OK) {
-				logger.error(String.format("Could not retrieve emoticons: %s %s", status.getStatusCode(), status.getReasonPhrase()));
-				return null;
+			CloseableHttpResponse getResponse = execute(getRequest, configuration);
+			try {
+				StatusLine status = getResponse.getStatusLine();
+				if (status.getStatusCode() != HttpStatus.SC_OK) {
+					logger.error(String.format("Could not retrieve emoticons: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+					return null;
+				}
+				
+				Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
+				ObjectMapper mapper = new ObjectMapper();
+				return mapper.readValue(reader, HipChatEmoticons.class);
+			} finally {
+				release(getResponse);
 			}
-			
-			Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
-			ObjectMapper mapper = new ObjectMapper();
-			return mapper.readValue(reader, HipChatEmoticons.class);
 		} catch (Exception e) {
 			logger.error("Could not get emoticons", e);
 		}
@@ -91,74 +163,211 @@ public class HipChatApiProcessor {
 		return null;
 	}
 	
+	// Null if the page could not be retrieved, so that a failed refresh is not mistaken for an empty directory
 	public HipChatRooms getRooms(int startIndex) {
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
 		try {
-			URI uri = new URI(String.format("%s%s?start-index=%s", this.configuration.getApiUrl(), "room", startIndex));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
+			URI uri = new URI(String.format("%s%s?start-index=%s", configuration.getApiUrl(), "room", startIndex));
+			String authorisationHeader = String.format("Bearer %s", configuration.getApiToken());
 
 			// Make request
-			HttpClient client = createClient();
 			HttpGet getRequest = new HttpGet(uri.toString());
 			getRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
 			getRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
-			HttpResponse getResponse = client.execute(getRequest);
-			StatusLine status = getResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_OK) {
-				logger.error(String.format("Could not retrieve rooms: %s %s", status.getStatusCode(), status.getReasonPhrase()));
-				return new HipChatRooms(new ArrayList<HipChatRoom>(), 0, 0, null);
+			CloseableHttpResponse getResponse = execute(getRequest, configuration);
+			try {
+				StatusLine status = getResponse.getStatusLine();
+				if (status.getStatusCode() != HttpStatus.SC_OK) {
+					logger.error(String.format("Could not retrieve rooms: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+					return null;
+				}
+				
+				Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
+				ObjectMapper mapper = new ObjectMapper();
+				return mapper.readValue(reader, HipChatRooms.class);
+			} finally {
+				release(getResponse);
 			}
-			
-			Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
-			ObjectMapper mapper = new ObjectMapper();
-			return mapper.readValue(reader, HipChatRooms.class);
 		} catch (Exception e) {
 			logger.error("Could not get rooms", e);
 		}
 		
-		return new HipChatRooms(new ArrayList<HipChatRoom>(), 0, 0, null);
+		return null;
 	}
 	
-	public void sendNotification(HipChatRoomNotification notification, String roomId) {
+	// Makes a single attempt and never waits: a delivery that should be retried later is returned with the delay to wait
+	public String sendNotification(HipChatRoomNotification notification, String roomId, HipChatDelivery delivery) {
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
+		// Don't pay the request timeout for a room or an endpoint that is known to be failing
+		HipChatCircuitBreaker roomCircuitBreaker = getCircuitBreaker(String.format("%s%s", ROOM_CIRCUIT_BREAKER_PREFIX, roomId));
+		HipChatCircuitBreaker endpointCircuitBreaker = getCircuitBreaker(String.format("%s%s", ENDPOINT_CIRCUIT_BREAKER_PREFIX, configuration.getApiUrl()));
+		HipChatCircuitBreaker rejectingCircuitBreaker = HipChatCircuitBreaker.allowRequest(roomCircuitBreaker, endpointCircuitBreaker);
+		if (rejectingCircuitBreaker == roomCircuitBreaker) {
+			// The room may accept it again by the time a trial request is let through, so it is not rejected. Waiting 
+			// never extends the deadline; a failed delivery stays in the journal.
+			long delay = roomCircuitBreaker.getRetryDelay();
+			if (System.currentTimeMillis() + delay >= delivery.getDeadline()) {
+				logger.warn(String.format("Message could not be delivered: circuit breaker open for room %s", roomId));
+				return delivery.failed("Room circuit breaker open");
+			}
+			logger.info(String.format("Circuit breaker open for room %s, delaying notification by %s ms", roomId, delay));
+			return delivery.retry(delay, "Room circuit breaker open");
+		}
+		if (rejectingCircuitBreaker == endpointCircuitBreaker) {
+			logger.warn(String.format("Message could not be delivered: circuit breaker open for %s", configuration.getApiUrl()));
+			return delivery.failed("Endpoint circuit breaker open");
+		}
+		
+		// Every outcome is recorded with both breakers, so that neither is left waiting for the result of a trial request
+		
 		try {
 			String resource = String.format("room/%s/notification", roomId);
-			URI uri = new URI(String.format("%s%s", this.configuration.getApiUrl(), resource));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
+			URI uri = new URI(String.format("%s%s", configuration.getApiUrl(), resource));
+			String authorisationHeader = String.format("Bearer %s", configuration.getApiToken());
+			HipChatRateLimiter rateLimiter = getRateLimiter(configuration.getApiToken());
+			long deadline = delivery.getDeadline();
 
-			// Serialise the notification to JSON
-			ObjectMapper mapper = new ObjectMapper();
-			String json = mapper.writeValueAsString(notification);
+			// Stay within the budget for this token, rather than have HipChat reject the request
+			if (!delivery.takeReservedSlot()) {
+				long delay = rateLimiter.reserve();
+				if (delay > 0) {
+					roomCircuitBreaker.recordInconclusive();
+					endpointCircuitBreaker.recordInconclusive();
+					// Waiting never extends the deadline
+					if (System.currentTimeMillis() + delay >= deadline) {
+						this.cancelledCount.incrementAndGet();
+						logger.error(String.format("Message could not be delivered: rate limit wait of %s ms would exceed the deadline", delay));
+						return delivery.failed("Deadline exceeded");
+					}
+					logger.info(String.format("Rate limit approaching, delaying notification for room %s by %s ms", roomId, delay));
+					delivery.reserveSlot();
+					return delivery.retry(delay, "Rate limit approaching");
+				}
+			}
+			
+			// Serialised once per notification, however many rooms it goes to
+			String json = notification.toJson();
 			logger.debug(json);
-
+			
 			// Make request
-			HttpClient client = createClient();
 			HttpPost postRequest = new HttpPost(uri.toString());
 			postRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
 			postRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
 			postRequest.setEntity(new StringEntity(json, Charset.forName("UTF-8")));
-			HttpResponse postResponse = client.execute(postRequest);
-			StatusLine status = postResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_NO_CONTENT) {
-				logger.error(String.format("Message could not be delivered: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+			int statusCode;
+			String reason;
+			final AtomicBoolean cancelled = new AtomicBoolean();
+			ScheduledFuture<?> watchdog = scheduleCancellation(postRequest, cancelled, deadline - System.currentTimeMillis());
+			try {
+				CloseableHttpResponse postResponse;
+				try {
+					postResponse = execute(postRequest, configuration);
+				} finally {
+					watchdog.cancel(false);
+				}
+				try {
+					StatusLine status = postResponse.getStatusLine();
+					statusCode = status.getStatusCode();
+					reason = String.format("%s %s", status.getStatusCode(), status.getReasonPhrase());
+					if (statusCode == SC_TOO_MANY_REQUESTS) {
+						rateLimiter.rateLimited(getLongHeader(postResponse, RATE_LIMIT_RESET_HEADER));
+					}
+				} finally {
+					release(postResponse);
+				}
+			} catch (IOException e) {
+				if (cancelled.get()) {
+					this.cancelledCount.incrementAndGet();
+					roomCircuitBreaker.recordInconclusive();
+					endpointCircuitBreaker.recordFailure("Deadline exceeded");
+					logger.error(String.format("Message could not be delivered: cancelled after the deadline of %s s", configuration.getNotificationDeadline()));
+					return delivery.failed("Deadline exceeded");
+				}
+				logger.warn(String.format("Could not post room notification (attempt %s)", delivery.getFailedAttempts() + 1), e);
+				statusCode = 0;
+				reason = e.toString();
+			}
+			
+			if (statusCode == HttpStatus.SC_NO_CONTENT) {
+				roomCircuitBreaker.recordSuccess();
+				endpointCircuitBreaker.recordSuccess();
+				return delivery.delivered();
+			}
+			
+			if (statusCode == SC_TOO_MANY_REQUESTS) {
+				// HipChat answered, but whether the room would accept the notification is still unknown
+				roomCircuitBreaker.recordInconclusive();
+				endpointCircuitBreaker.recordSuccess();
+				if (delivery.incrementRateLimitedRetries() < MAX_RATE_LIMITED_RETRIES) {
+					// The next attempt reserves a slot after the reset, and waits for it
+					logger.warn(String.format("Rate limit exceeded for room %s, retrying after reset (attempt %s)", roomId, delivery.getRateLimitedRetries()));
+					return delivery.retry(0, reason);
+				}
+				logger.error(String.format("Message could not be delivered: rate limit still exceeded after %s retries", MAX_RATE_LIMITED_RETRIES));
+				return delivery.failed(reason);
+			}
+			
+			// Connection failures and server errors are the endpoint's fault and worth retrying. An unauthorised token is 
+			// also counted against the endpoint, as no room would accept it; anything else is the room's.
+			boolean transientFailure = statusCode == 0 || statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+			boolean authorisationFailure = statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN;
+			if (transientFailure || authorisationFailure) {
+				roomCircuitBreaker.recordInconclusive();
+				endpointCircuitBreaker.recordFailure(reason);
+			} else {
+				endpointCircuitBreaker.recordSuccess();
+				roomCircuitBreaker.recordFailure(reason);
+			}
+			if (!transientFailure) {
+				// E.g. 400, 401 or 404, which no retry will change
+				logger.error(String.format("Message could not be delivered: %s", reason));
+				return delivery.rejected(reason);
 			}
+			if (delivery.getFailedAttempts() >= MAX_FAILED_RETRIES || HipChatCircuitBreaker.OPEN.equals(endpointCircuitBreaker.getState())) {
+				logger.error(String.format("Message could not be delivered: %s", reason));
+				return delivery.failed(reason);
+			}
+			
+			long backoff = getRetryBackoff(delivery.incrementFailedAttempts());
+			if (System.currentTimeMillis() + backoff >= deadline) {
+				this.cancelledCount.incrementAndGet();
+				logger.error(String.format("Message could not be delivered: %s; no time left to retry before the deadline", reason));
+				return delivery.failed(reason);
+			}
+			logger.warn(String.format("Message could not be delivered: %s; retrying in %s ms", reason, backoff));
+			return delivery.retry(backoff, reason);
 		} catch (Exception e) {
+			roomCircuitBreaker.recordInconclusive();
+			endpointCircuitBreaker.recordInconclusive();
 			logger.error("Could not post room notification", e);
+			return delivery.failed(e.toString());
 		}
 	}
 	
+
 	public boolean testAuthentication() {
+		return this.testAuthentication(this.configuration.getSnapshot());
+	}
+	
+	// The configuration need not be the current one, e.g. to test settings before they are saved
+	public boolean testAuthentication(@NotNull HipChatConfiguration configuration) {
 		try {
-			String resource = String.format("room?auth_token=%s&auth_test=true", this.configuration.getApiToken());
-			URI uri = new URI(String.format("%s%s", this.configuration.getApiUrl(), resource));
+			String resource = String.format("room?auth_token=%s&auth_test=true", configuration.getApiToken());
+			URI uri = new URI(String.format("%s%s", configuration.getApiUrl(), resource));
 
 			// Make request
-			HttpClient client = createClient();
 			HttpGet getRequest = new HttpGet(uri.toString());
-			HttpResponse postResponse = client.execute(getRequest);
-			StatusLine status = postResponse.getStatusLine();
-			if (status.getStatusCode() == HttpStatus.SC_ACCEPTED) {
-				return true;
-			} else {
-				logger.error(String.format("Authentication failed: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+			// The shared client keeps the settings of the current configuration
+			CloseableHttpResponse getResponse = execute(getRequest, this.configuration.getSnapshot());
+			try {
+				StatusLine status = getResponse.getStatusLine();
+				if (status.getStatusCode() == HttpStatus.SC_ACCEPTED) {
+					return true;
+				} else {
+					logger.error(String.format("Authentication failed: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+				}
+			} finally {
+				release(getResponse);
 			}
 		} catch (Exception e) {
 			logger.error("Request failed", e);
@@ -166,18 +375,232 @@ public class HipChatApiProcessor {
 		
 		return false;		
 	}
+	
+	public HipChatConnectionPoolStatistics getConnectionPoolStatistics() {
+		PoolStats poolStats = null;
+		synchronized (this) {
+			if (this.client != null) {
+				poolStats = this.client.connectionManager.getTotalStats();
+			}
+		}
+		long requests = this.connectionRequestCount.get();
+		long created = this.connectionCreatedCount.get();
+		return new HipChatConnectionPoolStatistics(requests, Math.max(0, requests - created), created, this.clientBuildCount.get(), 
+				poolStats == null ? 0 : poolStats.getLeased(), 
+				poolStats == null ? 0 : poolStats.getAvailable(), 
+				poolStats == null ? 0 : poolStats.getPending(), 
+				poolStats == null ? MAX_TOTAL_CONNECTIONS : poolStats.getMax(), 
+				this.timeoutCount.get(), 
+				this.cancelledCount.get());
+	}
+	
+	public HipChatRateLimitStatistics getRateLimitStatistics() {
+		return getRateLimiter(this.configuration.getSnapshot().getApiToken()).getStatistics();
+	}
+	
+	public List<HipChatCircuitBreaker> getCircuitBreakers() {
+		List<HipChatCircuitBreaker> circuitBreakers = new ArrayList<HipChatCircuitBreaker>(this.circuitBreakers.values());
+		Collections.sort(circuitBreakers, new Comparator<HipChatCircuitBreaker>() {
+			@Override
+			public int compare(HipChatCircuitBreaker a, HipChatCircuitBreaker b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return circuitBreakers;
+	}
+	
+	public synchronized void shutdown() {
+		if (this.deadlineTimer != null) {
+			this.deadlineTimer.shutdownNow();
+			this.deadlineTimer = null;
+		}
+		closeClient();
+		this.clientSettings = null;
+		logger.debug("HTTP client shut down");
+	}
 
-	private CloseableHttpClient createClient() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-		if (this.configuration.getBypassSslCheck()) {
+	private CloseableHttpResponse execute(HttpUriRequest request, HipChatConfiguration configuration) 
+			throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		PooledClient client = getClient(configuration);
+		this.connectionRequestCount.incrementAndGet();
+		CloseableHttpResponse response;
+		try {
+			response = client.client.execute(request);
+		} catch (ConnectTimeoutException e) {
+			// Also covers waiting too long for a pooled connection
+			this.timeoutCount.incrementAndGet();
+			throw e;
+		} catch (SocketTimeoutException e) {
+			this.timeoutCount.incrementAndGet();
+			throw e;
+		} finally {
+			// From here on, the connection is leased until the response is released
+			client.executing.decrementAndGet();
+		}
+		Header authorisation = request.getFirstHeader(HttpHeaders.AUTHORIZATION);
+		if (authorisation != null && response.containsHeader(RATE_LIMIT_REMAINING_HEADER)) {
+			// Every API call counts against the token's budget, so learn from all of them
+			String token = authorisation.getValue().replaceFirst("^Bearer ", "");
+			Long limit = getLongHeader(response, RATE_LIMIT_LIMIT_HEADER);
+			Long remaining = getLongHeader(response, RATE_LIMIT_REMAINING_HEADER);
+			getRateLimiter(token).update(limit == null ? null : limit.intValue(), remaining == null ? null : remaining.intValue(), 
+					getLongHeader(response, RATE_LIMIT_RESET_HEADER));
+		}
+		return response;
+	}
+	
+	private HipChatRateLimiter getRateLimiter(String token) {
+		String key = token == null ? "" : token;
+		HipChatRateLimiter rateLimiter = this.rateLimiters.get(key);
+		if (rateLimiter == null) {
+			rateLimiter = new HipChatRateLimiter();
+			HipChatRateLimiter existing = this.rateLimiters.putIfAbsent(key, rateLimiter);
+			if (existing != null) {
+				rateLimiter = existing;
+			}
+		}
+		return rateLimiter;
+	}
+	
+	// Aborting the request releases the thread blocked on it, whichever stage the request is in
+	private ScheduledFuture<?> scheduleCancellation(final HttpUriRequest request, final AtomicBoolean cancelled, long delay) {
+		return getDeadlineTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancelled.set(true);
+				request.abort();
+			}
+		}, Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized ScheduledExecutorService getDeadlineTimer() {
+		if (this.deadlineTimer == null) {
+			this.deadlineTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "hipchat-deadline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.deadlineTimer;
+	}
+	
+	private HipChatCircuitBreaker getCircuitBreaker(String name) {
+		HipChatCircuitBreaker circuitBreaker = this.circuitBreakers.get(name);
+		if (circuitBreaker == null) {
+			circuitBreaker = new HipChatCircuitBreaker(name);
+			HipChatCircuitBreaker existing = this.circuitBreakers.putIfAbsent(name, circuitBreaker);
+			if (existing != null) {
+				circuitBreaker = existing;
+			}
+		}
+		return circuitBreaker;
+	}
+	
+	// Exponential backoff, with jitter so that failed notifications are not all retried together
+	private static long getRetryBackoff(int attempt) {
+		long ceiling = RETRY_BASE_MILLISECONDS << attempt;
+		return ceiling / 2 + (long) (rng.nextDouble() * (ceiling / 2));
+	}
+	
+	private static Long getLongHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		if (header == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(header.getValue().trim());
+		} catch (NumberFormatException e) {
+			logger.warn(String.format("Invalid %s header: %s", name, header.getValue()));
+			return null;
+		}
+	}
+	
+	private static void release(HttpResponse response) throws IOException {
+		// Always consume the entity, otherwise the connection can't be returned to the pool and reused
+		EntityUtils.consumeQuietly(response.getEntity());
+		if (response instanceof CloseableHttpResponse) {
+			((CloseableHttpResponse) response).close();
+		}
+	}
+
+	// The client is built from the snapshot of the operation that needs it, so that its settings are consistent. 
+	// The caller must decrement the client's executing count once it has its response.
+	private synchronized PooledClient getClient(HipChatConfiguration configuration) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		String settings = String.format("%s|%s|%s|%s|%s|%s|%s", 
+				configuration.getApiUrl(), 
+				configuration.getBypassSslCheck(), 
+				this.systemProperties.getProperty("http.proxyHost"), 
+				this.systemProperties.getProperty("http.proxyPort"), 
+				configuration.getConnectTimeout(), 
+				configuration.getConnectionRequestTimeout(), 
+				configuration.getSocketTimeout());
+		if (this.client == null || !settings.equals(this.clientSettings)) {
+			logger.debug(String.format("Building HTTP client: %s", settings));
+			retireClient();
+			this.client = createClient(configuration);
+			this.clientSettings = settings;
+			this.clientBuildCount.incrementAndGet();
+		} else {
+			this.client.connectionManager.closeExpiredConnections();
+			this.client.connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+		}
+		closeRetiredClients(false);
+		this.client.executing.incrementAndGet();
+		return this.client;
+	}
+	
+	// Other workers may still be using the client, so it is not closed yet
+	private void retireClient() {
+		if (this.client != null) {
+			this.client.closeBy = System.currentTimeMillis() + RETIRED_CLIENT_GRACE_MILLISECONDS;
+			this.retiredClients.add(this.client);
+			this.client = null;
+			getDeadlineTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					closeRetiredClients(false);
+				}
+			}, RETIRED_CLIENT_GRACE_MILLISECONDS, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private synchronized void closeRetiredClients(boolean force) {
+		long now = System.currentTimeMillis();
+		for (Iterator<PooledClient> iterator = this.retiredClients.iterator(); iterator.hasNext(); ) {
+			PooledClient client = iterator.next();
+			if (force || now >= client.closeBy || client.isIdle()) {
+				if (!client.isIdle()) {
+					logger.warn("Closing HTTP client with requests still in progress");
+				}
+				client.close();
+				iterator.remove();
+			}
+		}
+	}
+	
+	private void closeClient() {
+		if (this.client != null) {
+			this.client.close();
+			this.client = null;
+		}
+		closeRetiredClients(true);
+	}
+
+	private PooledClient createClient(HipChatConfiguration configuration) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		if (configuration.getBypassSslCheck()) {
 			logger.warn("SSL check being bypassed");
 			SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
 			sslContextBuilder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
 			SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(sslContextBuilder.build(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-			HttpClientBuilder httpClientBuilder = HttpClients.custom().setSSLSocketFactory(socketFactory);
-			CloseableHttpClient client = httpClientBuilder.build();
-			return client;
+			PoolingHttpClientConnectionManager connectionManager = createConnectionManager(socketFactory);
+			HttpClientBuilder httpClientBuilder = createPooledClientBuilder(configuration, connectionManager);
+			return new PooledClient(httpClientBuilder.build(), connectionManager);
 		} else {
-			HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
+			PoolingHttpClientConnectionManager connectionManager = createConnectionManager(SSLConnectionSocketFactory.getSocketFactory());
+			HttpClientBuilder httpClientBuilder = createPooledClientBuilder(configuration, connectionManager);
 			String proxyHost = systemProperties.getProperty("http.proxyHost");
 			if (proxyHost != null) {
 				logger.info("Proxy configuration detected");
@@ -192,8 +615,78 @@ public class HipChatApiProcessor {
 				httpClientBuilder.setRoutePlanner(routePlanner);
 				logger.info(String.format("Proxy configured: %s:%s", proxyHost, proxyPort));
 			}
-			return httpClientBuilder.build();
+			return new PooledClient(httpClientBuilder.build(), connectionManager);
 		}
 	}
+	
+	private PoolingHttpClientConnectionManager createConnectionManager(SSLConnectionSocketFactory sslSocketFactory) {
+		Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", sslSocketFactory)
+				.build();
+		
+		// Count the physical connections opened, so that we can tell how many requests were served by a pooled connection
+		HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = new HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection>() {
+			@Override
+			public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+				connectionCreatedCount.incrementAndGet();
+				return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+			}
+		};
+		
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry, connectionFactory);
+		connectionManager.setMaxTotal(MAX_TOTAL_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		return connectionManager;
+	}
+	
+	private HttpClientBuilder createPooledClientBuilder(HipChatConfiguration configuration, PoolingHttpClientConnectionManager connectionManager) {
+		// Keep connections alive for as long as the server allows, or a sensible default if it doesn't say
+		ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MILLISECONDS;
+			}
+		};
+		
+		// Without timeouts, a half-open connection would block the calling thread indefinitely
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(configuration.getConnectTimeout() * 1000)
+				.setConnectionRequestTimeout(configuration.getConnectionRequestTimeout() * 1000)
+				.setSocketTimeout(configuration.getSocketTimeout() * 1000)
+				.build();
+		
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.setDefaultRequestConfig(requestConfig);
+	}
+
+	private static class PooledClient {
+		
+		private final CloseableHttpClient client;
+		private final PoolingHttpClientConnectionManager connectionManager;
+		private final AtomicInteger executing = new AtomicInteger();
+		private long closeBy;
+		
+		public PooledClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+			this.client = client;
+			this.connectionManager = connectionManager;
+		}
+		
+		public boolean isIdle() {
+			return this.executing.get() == 0 && this.connectionManager.getTotalStats().getLeased() == 0;
+		}
+		
+		public void close() {
+			try {
+				this.client.close();
+			} catch (IOException e) {
+				logger.warn("Could not close HTTP client", e);
+			}
+		}
+		
+	}
 
 }
@@ -0,0 +1,143 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+// Collects rendered output up to a limit, and stops the render as soon as it would pass the limit, or once its deadline has passed.
+// The writer is reset and reused, so its buffer never grows beyond the limit.
+public class HipChatBoundedWriter extends Writer {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private int limit;
+	private StringBuilder buffer;
+	private boolean truncated;
+	private boolean hasDeadline;
+	private long deadlineNanos;
+	
+	public HipChatBoundedWriter(int limit) {
+		this.limit = limit;
+		this.buffer = new StringBuilder(Math.min(limit, INITIAL_CAPACITY));
+	}
+	
+	@Override
+	public void write(char[] characters, int offset, int length) throws IOException {
+		checkDeadline();
+		int remaining = this.limit - this.buffer.length();
+		if (length > remaining) {
+			this.buffer.append(characters, offset, Math.max(remaining, 0));
+			limitExceeded();
+		}
+		this.buffer.append(characters, offset, length);
+	}
+	
+	@Override
+	public void write(String string, int offset, int length) throws IOException {
+		checkDeadline();
+		int remaining = this.limit - this.buffer.length();
+		if (length > remaining) {
+			this.buffer.append(string, offset, offset + Math.max(remaining, 0));
+			limitExceeded();
+		}
+		this.buffer.append(string, offset, offset + length);
+	}
+	
+	@Override
+	public void write(int character) throws IOException {
+		checkDeadline();
+		if (this.buffer.length() >= this.limit) {
+			limitExceeded();
+		}
+		this.buffer.append((char) character);
+	}
+	
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+	
+	public void reset() {
+		clear();
+		this.hasDeadline = false;
+	}
+	
+	// Discards the output, but keeps the deadline
+	public void clear() {
+		this.buffer.setLength(0);
+		this.truncated = false;
+	}
+	
+	public void reset(long budgetMilliseconds) {
+		reset();
+		this.hasDeadline = true;
+		this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMilliseconds);
+	}
+	
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+	
+	public int getLimit() {
+		return this.limit;
+	}
+	
+	@Override
+	public String toString() {
+		return this.buffer.toString();
+	}
+	
+	// Also called while reading the model, as a loop need not write anything to run past the budget
+	public void checkDeadline() throws BudgetExceededException {
+		if (this.hasDeadline && System.nanoTime() - this.deadlineNanos > 0) {
+			throw new BudgetExceededException();
+		}
+	}
+	
+	private void limitExceeded() throws LimitExceededException {
+		this.truncated = true;
+		throw new LimitExceededException(this.limit);
+	}
+	
+	// Aborts the render; everything up to the limit has been kept
+	public static class LimitExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public LimitExceededException(int limit) {
+			super(String.format("Rendered message exceeds %s characters", limit));
+		}
+		
+	}
+	
+	// Aborts the render; the output is incomplete
+	public static class BudgetExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public BudgetExceededException() {
+			super("Render time budget exceeded");
+		}
+		
+	}
+	
+}
@@ -0,0 +1,419 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateModelIterator;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.BuildStatistics;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserSet;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+
+// Resolves template variables only when a template reads them, as builds can have thousands of parameters.
+// Lookups follow the precedence of the original eager map: standard plugin parameters, then agent parameters, 
+// then build parameters, then build statistics.
+public class HipChatBuildEventDataModel implements TemplateHashModelEx {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private static final String STATS_PREFIX = HipChatNotificationMessageTemplates.STATS_PARAMETERS_PREFIX + ".";
+	private static final List<String> STANDARD_KEYS = Collections.unmodifiableList(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL,
+			HipChatNotificationMessageTemplates.Parameters.FULL_NAME,
+			HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY,
+			HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS,
+			HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS,
+			HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH,
+			HipChatNotificationMessageTemplates.Parameters.BRANCH,
+			HipChatNotificationMessageTemplates.Parameters.SERVER_URL,
+			HipChatNotificationMessageTemplates.Parameters.PROJECT_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER,
+			HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY));
+	// Differ for every build, so a message that reads them is never rendered twice
+	private static final List<String> BUILD_UNIQUE_KEYS = Collections.unmodifiableList(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.BUILD_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER));
+	private static final List<String> TEST_STATISTICS_KEYS = Collections.unmodifiableList(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS));
+	
+	private SBuildServer server;
+	private SBuild build;
+	private TeamCityEvent event;
+	private String emoticonUrl;
+	private ObjectWrapper wrapper;
+	private HipChatTemplateAnalysis analysis;
+	// Everything resolved so far, including misses, so that each variable costs at most one lookup
+	private Map<String, Object> values;
+	private Map<String, TemplateModel> resolved;
+	private Map<String, String> agentParameters;
+	private Map<String, String> buildParameters;
+	private Map<String, BigDecimal> statisticValues;
+	private BuildStatistics statistics;
+	private String contributors;
+	private SimpleHash materialised;
+	// The costly lookups made so far, in order
+	private List<String> enrichments;
+	// Whose render budget also bounds lookups and iteration, if any
+	private HipChatBoundedWriter budget;
+	
+	public HipChatBuildEventDataModel(@NotNull SBuildServer server, @NotNull SBuild build, @NotNull TeamCityEvent event, 
+			String emoticonUrl, @NotNull ObjectWrapper wrapper) {
+		this(server, build, event, emoticonUrl, wrapper, null);
+	}
+	
+	public HipChatBuildEventDataModel(@NotNull SBuildServer server, @NotNull SBuild build, @NotNull TeamCityEvent event, 
+			String emoticonUrl, @NotNull ObjectWrapper wrapper, HipChatTemplateAnalysis analysis) {
+		this.server = server;
+		this.build = build;
+		this.event = event;
+		this.emoticonUrl = emoticonUrl;
+		this.wrapper = wrapper;
+		this.analysis = analysis;
+		this.values = new HashMap<String, Object>();
+		this.resolved = new HashMap<String, TemplateModel>();
+		this.enrichments = new ArrayList<String>();
+	}
+	
+	@Override
+	public TemplateModel get(String key) throws TemplateModelException {
+		checkBudget();
+		if (this.resolved.containsKey(key)) {
+			return this.resolved.get(key);
+		}
+		
+		Object value = getValue(key);
+		TemplateModel model = value == null ? null : this.wrapper.wrap(value);
+		this.resolved.put(key, model);
+		return model;
+	}
+	
+	// A model of the same build event for another template, e.g. the default template when a custom one fails to render
+	public HipChatBuildEventDataModel forTemplate(@NotNull Template template) {
+		return new HipChatBuildEventDataModel(this.server, this.build, this.event, this.emoticonUrl, template.getObjectWrapper(), 
+				HipChatTemplateAnalysis.of(template));
+	}
+	
+	// The values of all the variables the template can read, which together determine the rendered message.
+	// There is none for templates that may read anything, that also depend on the time, or that read a value 
+	// unique to the build, as resolving every variable up front would then only cost and never be reused.
+	public Map<String, Object> getFingerprint() {
+		if (this.analysis == null || !this.analysis.isCacheable()) {
+			return null;
+		}
+		for (String key : BUILD_UNIQUE_KEYS) {
+			if (this.analysis.getVariables().contains(key)) {
+				return null;
+			}
+		}
+		
+		Map<String, Object> fingerprint = new TreeMap<String, Object>();
+		for (String key : this.analysis.getVariables()) {
+			fingerprint.put(key, getValue(key));
+		}
+		return fingerprint;
+	}
+	
+	// What rendering has cost beyond the build's own fields, e.g. to preview a template before saving it
+	public List<String> getEnrichments() {
+		return Collections.unmodifiableList(this.enrichments);
+	}
+	
+	// Values for every standard parameter, for previewing a template without a build
+	public static Map<String, Object> createSample(String serverUrl) {
+		Map<String, Object> sample = new HashMap<String, Object>();
+		sample.put(HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL, "");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.FULL_NAME, "Sample Project :: Sample Build");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY, "Sample User");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS, true);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS, "Sample User, Other User");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH, true);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.BRANCH, "master");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.SERVER_URL, serverUrl);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.PROJECT_ID, "SampleProject");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.BUILD_ID, "1");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID, "SampleProject_SampleBuild");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER, "42");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY, "Sample User");
+		sample.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS, 10);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS, 8);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS, 1);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS, 1);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS, 1);
+		sample.put(HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS, 1234L);
+		return sample;
+	}
+	
+	private Object getValue(String key) {
+		if (this.values.containsKey(key)) {
+			return this.values.get(key);
+		}
+		
+		Object value = resolve(key);
+		this.values.put(key, value);
+		logger.debug(String.format("Resolved template variable %s: %s", key, value));
+		return value;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return false;
+	}
+	
+	// Enumerating the model is only needed by templates that list the variables, and costs the full copy
+	@Override
+	public int size() throws TemplateModelException {
+		return materialise().size();
+	}
+
+	@Override
+	public TemplateCollectionModel keys() throws TemplateModelException {
+		return withinBudget(materialise().keys());
+	}
+
+	@Override
+	public TemplateCollectionModel values() throws TemplateModelException {
+		return withinBudget(materialise().values());
+	}
+	
+	// Null to render without a budget
+	public void setBudget(HipChatBoundedWriter budget) {
+		this.budget = budget;
+	}
+	
+	private void checkBudget() throws TemplateModelException {
+		if (this.budget != null) {
+			try {
+				this.budget.checkDeadline();
+			} catch (HipChatBoundedWriter.BudgetExceededException e) {
+				throw new TemplateModelException(e);
+			}
+		}
+	}
+	
+	private TemplateCollectionModel withinBudget(final TemplateCollectionModel collection) {
+		return new TemplateCollectionModel() {
+			@Override
+			public TemplateModelIterator iterator() throws TemplateModelException {
+				final TemplateModelIterator iterator = collection.iterator();
+				return new TemplateModelIterator() {
+					@Override
+					public TemplateModel next() throws TemplateModelException {
+						checkBudget();
+						return iterator.next();
+					}
+					
+					@Override
+					public boolean hasNext() throws TemplateModelException {
+						return iterator.hasNext();
+					}
+				};
+			}
+		};
+	}
+	
+	private Object resolve(String key) {
+		// Variables the template cannot reference are never looked up
+		if (this.analysis != null && !this.analysis.references(key)) {
+			return null;
+		}
+		
+		if (STANDARD_KEYS.contains(key)) {
+			Object value = resolveStandardParameter(key);
+			if (value != null) {
+				return value;
+			}
+		}
+		
+		String value = getAgentParameters().get(key);
+		if (value != null) {
+			return value;
+		}
+		value = getBuildParameters().get(key);
+		if (value != null) {
+			return value;
+		}
+		
+		if (TEST_STATISTICS_KEYS.contains(key)) {
+			return resolveTestStatistic(key);
+		}
+		if (key.startsWith(STATS_PREFIX)) {
+			return getStatisticValues().get(key.substring(STATS_PREFIX.length()));
+		}
+		
+		return null;
+	}
+	
+	private Object resolveStandardParameter(String key) {
+		if (key.equals(HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL)) {
+			return this.emoticonUrl == null ? "" : this.emoticonUrl;
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.FULL_NAME)) {
+			return this.build.getBuildType().getFullName();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY)) {
+			return this.build.getTriggeredBy().getAsString();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS)) {
+			return !getContributors().isEmpty();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS)) {
+			return getContributors();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH)) {
+			return this.build.getBranch() != null;
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.BRANCH)) {
+			Branch branch = this.build.getBranch();
+			return branch == null ? "" : branch.getDisplayName();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.SERVER_URL)) {
+			return this.server.getRootUrl();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.PROJECT_ID)) {
+			return this.build.getProjectExternalId();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.BUILD_ID)) {
+			return new Long(this.build.getBuildId()).toString();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID)) {
+			return this.build.getBuildTypeExternalId();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER)) {
+			return this.build.getBuildNumber();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY) && this.event == TeamCityEvent.BUILD_INTERRUPTED) {
+			long userId = this.build.getCanceledInfo().getUserId();
+			this.enrichments.add("cancelling user");
+			SUser user = this.server.getUserModel().findUserById(userId);
+			return user.getDescriptiveName();
+		}
+		
+		return null;
+	}
+	
+	private Object resolveTestStatistic(String key) {
+		BuildStatistics statistics = getStatistics();
+		if (key.equals(HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS)) {
+			return statistics.getAllTestCount();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS)) {
+			return statistics.getPassedTestCount();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS)) {
+			return statistics.getFailedTestCount();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS)) {
+			return statistics.getNewFailedCount();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS)) {
+			return statistics.getIgnoredTestCount();
+		} else if (key.equals(HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS)) {
+			return statistics.getTotalDuration();
+		}
+		
+		return null;
+	}
+	
+	private SimpleHash materialise() throws TemplateModelException {
+		if (this.materialised == null) {
+			HashSet<String> keys = new HashSet<String>();
+			keys.addAll(TEST_STATISTICS_KEYS);
+			for (String statistic : getStatisticValues().keySet()) {
+				keys.add(STATS_PREFIX + statistic);
+			}
+			keys.addAll(getBuildParameters().keySet());
+			keys.addAll(getAgentParameters().keySet());
+			keys.addAll(STANDARD_KEYS);
+			SimpleHash materialised = new SimpleHash(this.wrapper);
+			for (String key : keys) {
+				TemplateModel value = get(key);
+				if (value != null) {
+					materialised.put(key, value);
+				}
+			}
+			this.materialised = materialised;
+		}
+		
+		return this.materialised;
+	}
+	
+	private Map<String, String> getAgentParameters() {
+		if (this.agentParameters == null) {
+			this.enrichments.add("agent parameters");
+			this.agentParameters = this.build.getAgent().getAvailableParameters();
+		}
+		return this.agentParameters;
+	}
+	
+	private Map<String, String> getBuildParameters() {
+		if (this.buildParameters == null) {
+			this.enrichments.add("build parameters");
+			this.buildParameters = this.build.getParametersProvider().getAll();
+		}
+		return this.buildParameters;
+	}
+	
+	private Map<String, BigDecimal> getStatisticValues() {
+		if (this.statisticValues == null) {
+			this.enrichments.add("statistic values");
+			this.statisticValues = this.build.getStatisticValues();
+		}
+		return this.statisticValues;
+	}
+	
+	private BuildStatistics getStatistics() {
+		if (this.statistics == null) {
+			this.enrichments.add("test statistics");
+			this.statistics = this.build.getFullStatistics();
+		}
+		return this.statistics;
+	}
+	
+	private String getContributors() {
+		if (this.contributors == null) {
+			this.enrichments.add("contributors");
+			this.contributors = getContributors(this.build);
+		}
+		return this.contributors;
+	}
+
+	private static String getContributors(SBuild build) {
+		UserSet<SUser> committers = build.getCommitters(SelectPrevBuildPolicy.SINCE_LAST_BUILD);	
+		Collection<String> userSet = new HashSet<String>();
+		for (SUser committer : committers.getUsers()) {
+			userSet.add(committer.getDescriptiveName());
+		}
+		List<String> userList = new ArrayList<String>(userSet);
+		Collections.sort(userList, String.CASE_INSENSITIVE_ORDER);
+		String contributors = Utils.join(userList);
+		return contributors;
+	}
+	
+}
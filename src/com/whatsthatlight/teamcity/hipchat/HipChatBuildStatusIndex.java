@@ -0,0 +1,150 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+
+// The status of the last finished build of each build configuration and branch, so that finding out whether a build 
+// changed the status does not query the build history each time
+public class HipChatBuildStatusIndex {
+
+	// Enough for hundreds of build configurations with dozens of active branches each; the history is queried for the rest
+	public static final int DEFAULT_CAPACITY = 10000;
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private Map<BranchKey, LastBuild> lastBuilds;
+	
+	public HipChatBuildStatusIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public HipChatBuildStatusIndex(final int capacity) {
+		// Least recently finished or looked up branches are evicted first
+		this.lastBuilds = new LinkedHashMap<BranchKey, LastBuild>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BranchKey, LastBuild> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	// The status of the build before this one on the same branch, or null if there was none
+	public Status getPreviousStatus(@NotNull SBuild build) {
+		BranchKey key = new BranchKey(build);
+		LastBuild lastBuild;
+		synchronized (this.lastBuilds) {
+			lastBuild = this.lastBuilds.get(key);
+		}
+		if (lastBuild != null && lastBuild.buildId != build.getBuildId()) {
+			return lastBuild.status;
+		}
+		
+		// Not seen since the server started
+		logger.debug(String.format("Reading the history of %s for the previous build", build.getBuildTypeId()));
+		SFinishedBuild previousBuild = findPreviousBuild(build);
+		return previousBuild == null ? null : previousBuild.getBuildStatus();
+	}
+	
+	public void record(@NotNull SBuild build) {
+		BranchKey key = new BranchKey(build);
+		LastBuild lastBuild = new LastBuild(build.getBuildId(), build.getBuildStatus());
+		synchronized (this.lastBuilds) {
+			this.lastBuilds.put(key, lastBuild);
+		}
+	}
+	
+	public int size() {
+		synchronized (this.lastBuilds) {
+			return this.lastBuilds.size();
+		}
+	}
+	
+	private static SFinishedBuild findPreviousBuild(SBuild build) {
+		Branch branch = build.getBranch();
+		List<SFinishedBuild> buildHistory = build.getBuildType().getHistory();
+		if (branch != null) {			
+			for (SFinishedBuild tmpBuild : buildHistory) {
+				Branch tmpBranch = tmpBuild.getBranch();
+				if ((build.getBuildId() != tmpBuild.getBuildId()) && tmpBranch != null && tmpBranch.getName().equals(branch.getName())) {
+					return tmpBuild;
+				}
+			}
+		} else if (buildHistory.size() > 1) {
+			// The finished build itself is the first in the history
+			return buildHistory.get(1);
+		}
+		return null;
+	}
+	
+	private static class LastBuild {
+		
+		private long buildId;
+		private Status status;
+		
+		public LastBuild(long buildId, Status status) {
+			this.buildId = buildId;
+			this.status = status;
+		}
+		
+	}
+	
+	private static class BranchKey {
+		
+		private String buildTypeId;
+		private String branchName;
+		
+		public BranchKey(SBuild build) {
+			this.buildTypeId = build.getBuildTypeId();
+			Branch branch = build.getBranch();
+			this.branchName = branch == null ? null : branch.getName();
+		}
+		
+		@Override
+		public int hashCode() {
+			int hash = this.buildTypeId == null ? 0 : this.buildTypeId.hashCode();
+			return 31 * hash + (this.branchName == null ? 0 : this.branchName.hashCode());
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof BranchKey)) {
+				return false;
+			}
+			BranchKey other = (BranchKey) obj;
+			return equals(this.buildTypeId, other.buildTypeId) && equals(this.branchName, other.branchName);
+		}
+		
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,183 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.Random;
+
+public class HipChatCircuitBreaker {
+
+	public static final String CLOSED = "closed";
+	public static final String OPEN = "open";
+	public static final String HALF_OPEN = "half-open";
+	public static final int FAILURE_THRESHOLD = 3;
+	public static final long INITIAL_OPEN_MILLISECONDS = 30000;
+	public static final long MAX_OPEN_MILLISECONDS = 600000;
+	// If the outcome of a trial request is never reported, let another one through after this
+	private static final long TRIAL_TIMEOUT_MILLISECONDS = 60000;
+	private static Random rng = new Random();
+	
+	private String name;
+	private String state;
+	private int consecutiveFailures;
+	private int consecutiveOpenings;
+	private long openUntil;
+	private long trialUntil;
+	private long failureCount;
+	private long rejectedCount;
+	private String lastFailure;
+	
+	public HipChatCircuitBreaker(String name) {
+		this.name = name;
+		this.state = CLOSED;
+	}
+	
+	// While open, requests fail fast; once the open period is over a single trial request is let through
+	public synchronized boolean allowRequest() {
+		if (rejects()) {
+			this.rejectedCount++;
+			return false;
+		}
+		admit();
+		return true;
+	}
+	
+	// Returns the breaker that rejected the request, or null if both let it through. Either both admit the request or
+	// neither changes state, so that a trial is never started for a request that is not made. The breakers are locked 
+	// in the order given, so callers must always pass the same kinds of breaker in the same order.
+	public static HipChatCircuitBreaker allowRequest(HipChatCircuitBreaker first, HipChatCircuitBreaker second) {
+		synchronized (first) {
+			synchronized (second) {
+				boolean firstRejects = first.rejects();
+				boolean secondRejects = second.rejects();
+				if (firstRejects) {
+					first.rejectedCount++;
+				}
+				if (secondRejects) {
+					second.rejectedCount++;
+				}
+				if (firstRejects || secondRejects) {
+					return firstRejects ? first : second;
+				}
+				first.admit();
+				second.admit();
+				return null;
+			}
+		}
+	}
+	
+	public synchronized void recordSuccess() {
+		this.state = CLOSED;
+		this.consecutiveFailures = 0;
+		this.consecutiveOpenings = 0;
+	}
+	
+	// For a request that told us nothing about what this breaker guards, e.g. a 429 or a request that was never sent
+	public synchronized void recordInconclusive() {
+		if (this.state == HALF_OPEN) {
+			// Let the next request be the trial, rather than wait for the trial to time out
+			this.trialUntil = currentTimeMillis();
+		}
+	}
+	
+	public synchronized void recordFailure(String reason) {
+		this.failureCount++;
+		this.consecutiveFailures++;
+		this.lastFailure = reason;
+		if (this.state == HALF_OPEN || this.consecutiveFailures >= FAILURE_THRESHOLD) {
+			open();
+		}
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+
+	public synchronized String getState() {
+		if (this.state == OPEN && currentTimeMillis() >= this.openUntil) {
+			return HALF_OPEN;
+		}
+		return this.state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return this.consecutiveFailures;
+	}
+	
+	public synchronized long getFailureCount() {
+		return this.failureCount;
+	}
+	
+	// Requests that failed fast, without calling HipChat
+	public synchronized long getRejectedCount() {
+		return this.rejectedCount;
+	}
+	
+	public synchronized long getSecondsUntilRetry() {
+		if (this.state != OPEN) {
+			return 0;
+		}
+		return Math.max(0, this.openUntil - currentTimeMillis()) / 1000;
+	}
+
+	// How long until a request would be let through: until the open period is over, or the trial has timed out
+	public synchronized long getRetryDelay() {
+		long now = currentTimeMillis();
+		if (this.state == OPEN) {
+			return Math.max(0, this.openUntil - now);
+		}
+		if (this.state == HALF_OPEN) {
+			return Math.max(0, this.trialUntil - now);
+		}
+		return 0;
+	}
+
+	public synchronized String getLastFailure() {
+		return this.lastFailure;
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	private boolean rejects() {
+		long now = currentTimeMillis();
+		return (this.state == OPEN && now < this.openUntil) || (this.state == HALF_OPEN && now < this.trialUntil);
+	}
+	
+	private void admit() {
+		if (this.state != CLOSED) {
+			this.state = HALF_OPEN;
+			this.trialUntil = currentTimeMillis() + TRIAL_TIMEOUT_MILLISECONDS;
+		}
+	}
+	
+	private void open() {
+		// Each time the breaker opens again without a success in between, it stays open twice as long (with jitter, so
+		// that rooms which failed together don't all retry together)
+		long duration = Math.min(MAX_OPEN_MILLISECONDS, INITIAL_OPEN_MILLISECONDS << Math.min(this.consecutiveOpenings, 10));
+		duration = duration / 2 + (long) (rng.nextDouble() * (duration / 2));
+		this.consecutiveOpenings++;
+		this.openUntil = currentTimeMillis() + duration;
+		this.state = OPEN;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: %s (%s consecutive failures)", name, getState(), getConsecutiveFailures());
+	}
+
+}
@@ -17,7 +17,10 @@ limitations under the License.
 package com.whatsthatlight.teamcity.hipchat;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.thoughtworks.xstream.annotations.*;
 
@@ -34,6 +37,7 @@ public class HipChatConfiguration {
 	public static final String ROOM_ID_KEY = "roomId";
 	public static final String PROJECT_ID_KEY = "projectId";
 	public static final String PROJECT_ROOM_KEY = "projectRoom";
+	public static final String PROJECT_TEMPLATES_KEY = "templates";
 	public static final String ROOM_ID_NONE_VALUE = "none";
 	public static final String ROOM_ID_DEFAULT_VALUE = "default";
 	public static final String ROOM_ID_PARENT_VALUE = "parent";
@@ -47,11 +51,38 @@ public class HipChatConfiguration {
 	public static final String SERVER_STARTUP_KEY = "serverStartup";
 	public static final String SERVER_SHUTDOWN_KEY = "serverShutdown";
 	public static final String EMOTICON_CACHE_SIZE_KEY = "emoticonCacheSize";
+	public static final String ROOM_CACHE_SIZE_KEY = "roomCacheSize";
+	public static final String ROOM_CACHE_AGE_KEY = "roomCacheAge";
+	public static final String TEMPLATE_ANALYSIS_KEY = "templateAnalysis";
+	public static final String CONNECTION_POOL_STATISTICS_KEY = "connectionPoolStatistics";
 	public static final String ONLY_AFTER_FIRST_BUILD_SUCCESSFUL_KEY = "onlyAfterFirstBuildSuccessful";
 	public static final String ONLY_AFTER_FIRST_BUILD_FAILED_KEY = "onlyAfterFirstBuildFailed";
 	public static final String BRANCH_FILTER_KEY = "branchFilter";
 	public static final String BRANCH_FILTER_REGEX_KEY = "branchFilterRegex";
 	public static final String BYPASS_SSL_CHECK = "bypassSslCheck";
+	public static final String DISPATCH_WORKERS_KEY = "dispatchWorkers";
+	public static final String DISPATCH_QUEUE_CAPACITY_KEY = "dispatchQueueCapacity";
+	public static final String DISPATCH_STATISTICS_KEY = "dispatchStatistics";
+	public static final String COALESCING_WINDOW_KEY = "coalescingWindowSeconds";
+	public static final String COALESCING_MAX_BATCH_SIZE_KEY = "coalescingMaxBatchSize";
+	public static final String CONNECT_TIMEOUT_KEY = "connectTimeout";
+	public static final String CONNECTION_REQUEST_TIMEOUT_KEY = "connectionRequestTimeout";
+	public static final String SOCKET_TIMEOUT_KEY = "socketTimeout";
+	public static final String NOTIFICATION_DEADLINE_KEY = "notificationDeadline";
+	public static final String RENDER_BUDGET_KEY = "renderBudget";
+	public static final String RENDER_STATISTICS_KEY = "renderStatistics";
+	public static final String TEMPLATE_CACHE_STATISTICS_KEY = "templateCacheStatistics";
+	public static final String RATE_LIMIT_STATISTICS_KEY = "rateLimitStatistics";
+	public static final String CIRCUIT_BREAKERS_KEY = "circuitBreakers";
+	public static final int DEFAULT_DISPATCH_WORKERS = 2;
+	public static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 1000;
+	public static final int DEFAULT_COALESCING_WINDOW = 0;
+	public static final int DEFAULT_COALESCING_MAX_BATCH_SIZE = 20;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 10;
+	public static final int DEFAULT_SOCKET_TIMEOUT = 30;
+	public static final int DEFAULT_NOTIFICATION_DEADLINE = 120;
+	public static final int DEFAULT_RENDER_BUDGET = 1000;
 	  
 	@XStreamAlias(API_TOKEN_KEY)
 	private String apiToken = null;
@@ -71,10 +102,13 @@ public class HipChatConfiguration {
 	@XStreamAlias(SERVER_EVENT_ROOM_ID_KEY)
 	private String serverEventRoomId;
 	
-	// We use a list for correct serialization. It causes us to perform a linear search when getting or setting, but that's ok. 
+	// We use a list for correct serialization, and index it by project ID for lookups
 	@XStreamImplicit
 	private List<HipChatProjectConfiguration> projectRoomMap = new ArrayList<HipChatProjectConfiguration>();
 	
+	// Not serialized, and rebuilt when the configuration is read
+	private transient Map<String, HipChatProjectConfiguration> projectIndex = new HashMap<String, HipChatProjectConfiguration>();
+	
 	@XStreamAlias(HipChatConfiguration.EVENTS_KEY)
 	private HipChatEventConfiguration events = new HipChatEventConfiguration();
 	
@@ -87,8 +121,135 @@ public class HipChatConfiguration {
 	@XStreamAlias(BYPASS_SSL_CHECK)
 	private boolean bypassSslCheck;
 	
+	// Boxed, so that configuration files from older versions fall back to the defaults
+	@XStreamAlias(DISPATCH_WORKERS_KEY)
+	private Integer dispatchWorkers;
+
+	@XStreamAlias(DISPATCH_QUEUE_CAPACITY_KEY)
+	private Integer dispatchQueueCapacity;
+	
+	@XStreamAlias(COALESCING_WINDOW_KEY)
+	private Integer coalescingWindow;
+	
+	@XStreamAlias(COALESCING_MAX_BATCH_SIZE_KEY)
+	private Integer coalescingMaxBatchSize;
+	
+	// Timeouts and the deadline are in seconds
+	@XStreamAlias(CONNECT_TIMEOUT_KEY)
+	private Integer connectTimeout;
+	
+	@XStreamAlias(CONNECTION_REQUEST_TIMEOUT_KEY)
+	private Integer connectionRequestTimeout;
+	
+	@XStreamAlias(SOCKET_TIMEOUT_KEY)
+	private Integer socketTimeout;
+	
+	@XStreamAlias(NOTIFICATION_DEADLINE_KEY)
+	private Integer notificationDeadline;
+	
+	// In milliseconds
+	@XStreamAlias(RENDER_BUDGET_KEY)
+	private Integer renderBudget;
+	
+	// The current configuration as an immutable copy, so that an event sees one consistent configuration throughout
+	private transient volatile HipChatConfiguration snapshot;
+	
+	private transient boolean frozen;
+	
 	public HipChatConfiguration() {
-		// Intentionally left empty
+		this.events.setOwner(this);
+	}
+	
+	// A copy that can be changed, e.g. to publish it once all changes are made
+	public HipChatConfiguration(HipChatConfiguration configuration) {
+		this.copy(configuration);
+	}
+	
+	// Never waits for a configuration change; until it is published, the previous snapshot is returned
+	public HipChatConfiguration getSnapshot() {
+		if (this.frozen) {
+			return this;
+		}
+		HipChatConfiguration snapshot = this.snapshot;
+		if (snapshot == null) {
+			synchronized (this) {
+				if (this.snapshot == null) {
+					this.snapshot = this.createSnapshot();
+				}
+				snapshot = this.snapshot;
+			}
+		}
+		return snapshot;
+	}
+	
+	// Replaces the whole configuration at once
+	public synchronized void publish(HipChatConfiguration configuration) {
+		this.checkMutable();
+		this.copy(configuration);
+		this.snapshot = this.createSnapshot();
+	}
+	
+	public boolean isSnapshot() {
+		return this.frozen;
+	}
+	
+	// Called after a change to this configuration or any of its parts
+	synchronized void changed() {
+		this.snapshot = null;
+	}
+	
+	private void checkMutable() {
+		if (this.frozen) {
+			throw new UnsupportedOperationException("A configuration snapshot cannot be changed");
+		}
+	}
+	
+	private HipChatConfiguration createSnapshot() {
+		HipChatConfiguration snapshot = new HipChatConfiguration(this);
+		snapshot.frozen = true;
+		if (snapshot.events != null) {
+			snapshot.events.freeze();
+		}
+		for (HipChatProjectConfiguration projectConfiguration : snapshot.projectRoomMap) {
+			projectConfiguration.freeze();
+		}
+		snapshot.projectRoomMap = Collections.unmodifiableList(snapshot.projectRoomMap);
+		return snapshot;
+	}
+	
+	private void copy(HipChatConfiguration configuration) {
+		this.apiToken = configuration.apiToken;
+		this.apiUrl = configuration.apiUrl;
+		this.disabled = configuration.disabled;
+		this.notify = configuration.notify;
+		this.defaultRoomId = configuration.defaultRoomId;
+		this.serverEventRoomId = configuration.serverEventRoomId;
+		this.events = null;
+		if (configuration.events != null) {
+			this.events = new HipChatEventConfiguration(configuration.events);
+			this.events.setOwner(this);
+		}
+		this.projectRoomMap = new ArrayList<HipChatProjectConfiguration>();
+		if (configuration.projectRoomMap != null) {
+			for (HipChatProjectConfiguration projectConfiguration : configuration.projectRoomMap) {
+				HipChatProjectConfiguration copy = new HipChatProjectConfiguration(projectConfiguration);
+				copy.setOwner(this);
+				this.projectRoomMap.add(copy);
+			}
+		}
+		this.projectIndex = createProjectIndex(this.projectRoomMap);
+		this.branchFilterEnabled = configuration.branchFilterEnabled;
+		this.branchFilterRegex = configuration.branchFilterRegex;
+		this.bypassSslCheck = configuration.bypassSslCheck;
+		this.dispatchWorkers = configuration.dispatchWorkers;
+		this.dispatchQueueCapacity = configuration.dispatchQueueCapacity;
+		this.coalescingWindow = configuration.coalescingWindow;
+		this.coalescingMaxBatchSize = configuration.coalescingMaxBatchSize;
+		this.connectTimeout = configuration.connectTimeout;
+		this.connectionRequestTimeout = configuration.connectionRequestTimeout;
+		this.socketTimeout = configuration.socketTimeout;
+		this.notificationDeadline = configuration.notificationDeadline;
+		this.renderBudget = configuration.renderBudget;
 	}
 
 	public HipChatEventConfiguration getEvents() {
@@ -96,7 +257,12 @@ public class HipChatConfiguration {
 	}
 	
 	public void setEvents(HipChatEventConfiguration events) {
+		this.checkMutable();
+		if (events != null) {
+			events.setOwner(this);
+		}
 		this.events = events;
+		this.changed();
 	}
 	
 	public List<HipChatProjectConfiguration> getProjectRoomMap() {
@@ -104,26 +270,55 @@ public class HipChatConfiguration {
 	}
 	
 	public void setProjectConfiguration(HipChatProjectConfiguration newProjectConfiguration) {
-		boolean found = false;
-		for (HipChatProjectConfiguration projectConfiguration : this.projectRoomMap) {
-			if (projectConfiguration.getProjectId().contentEquals(newProjectConfiguration.getProjectId())) {
-				projectConfiguration.setRoomId(newProjectConfiguration.getRoomId());
-				projectConfiguration.setNotifyStatus(newProjectConfiguration.getNotifyStatus());
-				found = true;
-			}
-		}
-		if (!found) {
-			this.projectRoomMap.add(newProjectConfiguration);		
+		this.checkMutable();
+		HipChatProjectConfiguration projectConfiguration = this.getProjectIndex().get(newProjectConfiguration.getProjectId());
+		if (projectConfiguration != null) {
+			projectConfiguration.setRoomId(newProjectConfiguration.getRoomId());
+			projectConfiguration.setNotifyStatus(newProjectConfiguration.getNotifyStatus());
+			projectConfiguration.setTemplates(newProjectConfiguration.getTemplates());
+		} else {
+			newProjectConfiguration.setOwner(this);
+			this.projectRoomMap.add(newProjectConfiguration);
+			this.projectIndex.put(newProjectConfiguration.getProjectId(), newProjectConfiguration);
 		}
+		this.changed();
 	}
 	
 	public HipChatProjectConfiguration getProjectConfiguration(String projectId) {
+		return this.getProjectIndex().get(projectId);
+	}
+	
+	private Map<String, HipChatProjectConfiguration> getProjectIndex() {
+		if (this.projectIndex == null) {
+			this.projectIndex = createProjectIndex(this.projectRoomMap);
+		}
+		return this.projectIndex;
+	}
+	
+	// XStream doesn't call the constructor, so the index and owners are restored after the list is read
+	private Object readResolve() {
+		if (this.projectRoomMap == null) {
+			this.projectRoomMap = new ArrayList<HipChatProjectConfiguration>();
+		}
+		this.projectIndex = createProjectIndex(this.projectRoomMap);
+		if (this.events != null) {
+			this.events.setOwner(this);
+		}
 		for (HipChatProjectConfiguration projectConfiguration : this.projectRoomMap) {
-			if (projectConfiguration.getProjectId().contentEquals(projectId)) {
-				return projectConfiguration;
+			projectConfiguration.setOwner(this);
+		}
+		return this;
+	}
+	
+	private static Map<String, HipChatProjectConfiguration> createProjectIndex(List<HipChatProjectConfiguration> projectRoomMap) {
+		Map<String, HipChatProjectConfiguration> projectIndex = new HashMap<String, HipChatProjectConfiguration>();
+		for (HipChatProjectConfiguration projectConfiguration : projectRoomMap) {
+			// The first entry of a project wins, as with the linear search this replaces
+			if (!projectIndex.containsKey(projectConfiguration.getProjectId())) {
+				projectIndex.put(projectConfiguration.getProjectId(), projectConfiguration);
 			}
 		}
-		return null;
+		return projectIndex;
 	}
 	
 	public String getApiToken() {
@@ -161,42 +356,153 @@ public class HipChatConfiguration {
 	public boolean getBypassSslCheck() {
 		return this.bypassSslCheck;
 	}
+	
+	public int getDispatchWorkers() {
+		return this.dispatchWorkers == null || this.dispatchWorkers <= 0 ? DEFAULT_DISPATCH_WORKERS : this.dispatchWorkers;
+	}
+
+	public int getDispatchQueueCapacity() {
+		return this.dispatchQueueCapacity == null || this.dispatchQueueCapacity <= 0 ? DEFAULT_DISPATCH_QUEUE_CAPACITY : this.dispatchQueueCapacity;
+	}
+	
+	// In seconds; zero disables coalescing
+	public int getCoalescingWindow() {
+		return this.coalescingWindow == null || this.coalescingWindow < 0 ? DEFAULT_COALESCING_WINDOW : this.coalescingWindow;
+	}
+	
+	public int getCoalescingMaxBatchSize() {
+		return this.coalescingMaxBatchSize == null || this.coalescingMaxBatchSize <= 0 ? DEFAULT_COALESCING_MAX_BATCH_SIZE : this.coalescingMaxBatchSize;
+	}
+	
+	public int getConnectTimeout() {
+		return this.connectTimeout == null || this.connectTimeout <= 0 ? DEFAULT_CONNECT_TIMEOUT : this.connectTimeout;
+	}
+	
+	public int getConnectionRequestTimeout() {
+		return this.connectionRequestTimeout == null || this.connectionRequestTimeout <= 0 ? DEFAULT_CONNECTION_REQUEST_TIMEOUT : this.connectionRequestTimeout;
+	}
+	
+	public int getSocketTimeout() {
+		return this.socketTimeout == null || this.socketTimeout <= 0 ? DEFAULT_SOCKET_TIMEOUT : this.socketTimeout;
+	}
+	
+	// The time allowed for delivering a notification, including retries but not rate limit throttling
+	public int getNotificationDeadline() {
+		return this.notificationDeadline == null || this.notificationDeadline <= 0 ? DEFAULT_NOTIFICATION_DEADLINE : this.notificationDeadline;
+	}
+	
+	// The time a template may take to render, before the default template is used instead
+	public int getRenderBudget() {
+		return this.renderBudget == null || this.renderBudget <= 0 ? DEFAULT_RENDER_BUDGET : this.renderBudget;
+	}
 		  
 	public void setApiToken(String token) {
+		this.checkMutable();
 		this.apiToken = token;
+		this.changed();
 	}
 
 	public void setApiUrl(String url) {
+		this.checkMutable();
 		// TODO: Validate URL
 		this.apiUrl = url;
+		this.changed();
 	}
 
 	public void setDisabledStatus(boolean status) {
+		this.checkMutable();
 		this.disabled = status;
+		this.changed();
 	}
 
 	public void setNotifyStatus(boolean status) {
+		this.checkMutable();
 		this.notify = status;
+		this.changed();
 	}
 
 	public void setDefaultRoomId(String roomId) {
+		this.checkMutable();
 		this.defaultRoomId = roomId;
+		this.changed();
 	}
 	
 	public void setServerEventRoomId(String roomId) {
+		this.checkMutable();
 		this.serverEventRoomId = roomId;
+		this.changed();
 	}
 	
 	public void setBranchFilterEnabledStatus(boolean status) {
+		this.checkMutable();
 		this.branchFilterEnabled = status;
+		this.changed();
 	}
 
 	public void setBranchFilterRegex(String regex) {
+		this.checkMutable();
 		this.branchFilterRegex = regex;
+		this.changed();
 	}
 
 	public void setBypassSslCheck(boolean bypassSslCheck) {
+		this.checkMutable();
 		this.bypassSslCheck = bypassSslCheck;
+		this.changed();
+	}
+
+	public void setDispatchWorkers(int workers) {
+		this.checkMutable();
+		this.dispatchWorkers = workers;
+		this.changed();
+	}
+
+	public void setDispatchQueueCapacity(int capacity) {
+		this.checkMutable();
+		this.dispatchQueueCapacity = capacity;
+		this.changed();
+	}
+
+	public void setCoalescingWindow(int seconds) {
+		this.checkMutable();
+		this.coalescingWindow = seconds;
+		this.changed();
+	}
+
+	public void setCoalescingMaxBatchSize(int size) {
+		this.checkMutable();
+		this.coalescingMaxBatchSize = size;
+		this.changed();
+	}
+
+	public void setConnectTimeout(int seconds) {
+		this.checkMutable();
+		this.connectTimeout = seconds;
+		this.changed();
+	}
+
+	public void setConnectionRequestTimeout(int seconds) {
+		this.checkMutable();
+		this.connectionRequestTimeout = seconds;
+		this.changed();
+	}
+
+	public void setSocketTimeout(int seconds) {
+		this.checkMutable();
+		this.socketTimeout = seconds;
+		this.changed();
+	}
+
+	public void setNotificationDeadline(int seconds) {
+		this.checkMutable();
+		this.notificationDeadline = seconds;
+		this.changed();
+	}
+
+	public void setRenderBudget(int milliseconds) {
+		this.checkMutable();
+		this.renderBudget = milliseconds;
+		this.changed();
 	}
 	
 }
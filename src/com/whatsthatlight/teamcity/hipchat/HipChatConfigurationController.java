@@ -21,6 +21,8 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,9 +43,13 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -55,6 +61,8 @@ import org.xml.sax.SAXException;
 
 import com.thoughtworks.xstream.XStream;
 
+import freemarker.template.Template;
+
 public class HipChatConfigurationController extends BaseController {
 
 	private static final Object ACTION_ENABLE = "enable";
@@ -63,13 +71,27 @@ public class HipChatConfigurationController extends BaseController {
 	public static final String EDIT_PARAMETER = "edit";
 	private static final String TEST_PARAMETER = "test";
 	private static final String RELOAD_EMOTICONS_PARAMTER = "reloadEmoticons";
+	private static final String RELOAD_ROOMS_PARAMETER = "reloadRooms";
 	private static final String PROJECT_PARAMETER = "project";
+	private static final String PREVIEW_PARAMETER = "preview";
+	private static final String PREVIEW_EVENT_PARAMETER = "event";
+	private static final String PREVIEW_TEMPLATE_PARAMETER = "template";
+	private static final String PREVIEW_BUILD_ID_PARAMETER = "buildId";
+	private static final String PREVIEW_SAMPLE_SOURCE = "Sample build";
 	private static final String HIPCHAT_CONFIG_FILE = "hipchat.xml";
 	public static final String HIPCHAT_CONFIG_DIRECTORY = "hipchat";
 	private static final String SAVED_ID = "configurationSaved";
 	private static final String NOT_SAVED_ID = "configurationNotSaved";
 	private static final String SAVED_MESSAGE = "Saved";
 	private static final String NOT_SAVED_TEMPLATE_VALIDATION_FAILED = "Template validation failed. Check the FreeMarker documentation for syntax.";
+	// Only build events belong to a project
+	public static final Map<TeamCityEvent, String> PROJECT_TEMPLATE_KEYS = new LinkedHashMap<TeamCityEvent, String>();
+	static {
+		PROJECT_TEMPLATE_KEYS.put(TeamCityEvent.BUILD_STARTED, HipChatNotificationMessageTemplates.BUILD_STARTED_TEMPLATE_KEY);
+		PROJECT_TEMPLATE_KEYS.put(TeamCityEvent.BUILD_SUCCESSFUL, HipChatNotificationMessageTemplates.BUILD_SUCCESSFUL_TEMPLATE_KEY);
+		PROJECT_TEMPLATE_KEYS.put(TeamCityEvent.BUILD_FAILED, HipChatNotificationMessageTemplates.BUILD_FAILED_TEMPLATE_KEY);
+		PROJECT_TEMPLATE_KEYS.put(TeamCityEvent.BUILD_INTERRUPTED, HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_TEMPLATE_KEY);
+	}
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
 	private String configFilePath;
 
@@ -77,6 +99,39 @@ public class HipChatConfigurationController extends BaseController {
 	private HipChatApiProcessor processor;
 	private HipChatNotificationMessageTemplates templates;
 	private HipChatEmoticonCache emoticonCache;
+	private HipChatNotificationDispatcher dispatcher;
+	private HipChatRoomCache roomCache;
+	private SBuildServer server;
+	private HipChatTemplateRenderer renderer;
+	private HipChatRoutingTable routingTable;
+	private HipChatTemplateConfiguration templateConfiguration;
+	
+	public HipChatConfigurationController(@NotNull SBuildServer server, 
+			@NotNull ServerPaths serverPaths, 
+			@NotNull WebControllerManager manager,
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates,
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoomCache roomCache) throws IOException {
+		this(server, serverPaths, manager, configuration, processor, templates, emoticonCache, dispatcher, roomCache, 
+				new HipChatTemplateRenderer(configuration, templates));
+	}
+	
+	public HipChatConfigurationController(@NotNull SBuildServer server, 
+			@NotNull ServerPaths serverPaths, 
+			@NotNull WebControllerManager manager,
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates,
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoomCache roomCache,
+			@NotNull HipChatTemplateRenderer renderer) throws IOException {
+		this(server, serverPaths, manager, configuration, processor, templates, emoticonCache, dispatcher, roomCache, renderer, 
+				new HipChatRoutingTable(configuration));
+	}
 	
 	public HipChatConfigurationController(@NotNull SBuildServer server, 
 			@NotNull ServerPaths serverPaths, 
@@ -84,13 +139,39 @@ public class HipChatConfigurationController extends BaseController {
 			@NotNull HipChatConfiguration configuration, 
 			@NotNull HipChatApiProcessor processor, 
 			@NotNull HipChatNotificationMessageTemplates templates,
-			@NotNull HipChatEmoticonCache emoticonCache) throws IOException {
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoomCache roomCache,
+			@NotNull HipChatTemplateRenderer renderer,
+			@NotNull HipChatRoutingTable routingTable) throws IOException {
+		this(server, serverPaths, manager, configuration, processor, templates, emoticonCache, dispatcher, roomCache, renderer, routingTable, 
+				new HipChatTemplateConfiguration());
+	}
+	
+	public HipChatConfigurationController(@NotNull SBuildServer server, 
+			@NotNull ServerPaths serverPaths, 
+			@NotNull WebControllerManager manager,
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates,
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoomCache roomCache,
+			@NotNull HipChatTemplateRenderer renderer,
+			@NotNull HipChatRoutingTable routingTable,
+			@NotNull HipChatTemplateConfiguration templateConfiguration) throws IOException {
 		manager.registerController(CONTROLLER_PATH, this);
+		this.server = server;
+		this.renderer = renderer;
 		this.configuration = configuration;
 		this.configFilePath = (new File(serverPaths.getConfigDir(), HIPCHAT_CONFIG_FILE)).getCanonicalPath();
 		this.processor = processor;
 		this.templates = templates;
 		this.emoticonCache = emoticonCache;
+		this.dispatcher = dispatcher;
+		this.roomCache = roomCache;
+		this.routingTable = routingTable;
+		this.templateConfiguration = templateConfiguration;
 		logger.debug(String.format("Config file path: %s", this.configFilePath));
 		logger.info("Controller created");
 	}
@@ -104,14 +185,34 @@ public class HipChatConfigurationController extends BaseController {
 		logger.debug(String.format("Trigger notification: %s", notify));
 		logger.debug(String.format("Project ID: %s", projectId));
 		HipChatProjectConfiguration projectConfiguration = new HipChatProjectConfiguration(projectId, roomId, notify);
-		this.configuration.setProjectConfiguration(projectConfiguration);
+		
+		// Template overrides; an empty template inherits the parent's
+		ArrayList<String> templateStrings = new ArrayList<String>();
+		for (Map.Entry<TeamCityEvent, String> entry : PROJECT_TEMPLATE_KEYS.entrySet()) {
+			String templateString = request.getParameter(entry.getValue());
+			logger.debug(String.format("Template %s: %s", entry.getValue(), templateString));
+			projectConfiguration.setTemplate(entry.getKey(), templateString);
+			if (projectConfiguration.getTemplate(entry.getKey()) != null) {
+				templateStrings.add(templateString);
+			}
+		}
+		if (!validateTemplates(templateStrings)) {
+			this.getOrCreateMessages(request).addMessage(NOT_SAVED_ID, NOT_SAVED_TEMPLATE_VALIDATION_FAILED);
+			return;
+		}
+		
+		HipChatConfiguration configuration = new HipChatConfiguration(this.configuration.getSnapshot());
+		configuration.setProjectConfiguration(projectConfiguration);
+		this.configuration.publish(configuration);
+		this.templates.invalidate(projectId);
+		this.routingTable.invalidate(projectId);
 		this.getOrCreateMessages(request).addMessage(SAVED_ID, SAVED_MESSAGE);
 		this.saveConfiguration();
 	}
 	
-	private static boolean validateTemplates(List<String> templateStrings) {
+	private boolean validateTemplates(List<String> templateStrings) {
 		for (String templateString : templateStrings) {
-			if (!HipChatNotificationMessageTemplates.validateTemplate(templateString)) {
+			if (!this.templateConfiguration.validateTemplate(templateString)) {
 				return false;
 			}
 		}
@@ -132,6 +233,11 @@ public class HipChatConfigurationController extends BaseController {
 		String notify = request.getParameter(HipChatConfiguration.NOTIFY_STATUS_KEY);
 	    String branchFilter = request.getParameter(HipChatConfiguration.BRANCH_FILTER_KEY);
 	    String branchFilterRegex = request.getParameter(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY);
+		String connectTimeout = request.getParameter(HipChatConfiguration.CONNECT_TIMEOUT_KEY);
+		String connectionRequestTimeout = request.getParameter(HipChatConfiguration.CONNECTION_REQUEST_TIMEOUT_KEY);
+		String socketTimeout = request.getParameter(HipChatConfiguration.SOCKET_TIMEOUT_KEY);
+		String notificationDeadline = request.getParameter(HipChatConfiguration.NOTIFICATION_DEADLINE_KEY);
+		String renderBudget = request.getParameter(HipChatConfiguration.RENDER_BUDGET_KEY);
 		String buildStarted = request.getParameter(HipChatConfiguration.BUILD_STARTED_KEY);
 		String buildSuccessful = request.getParameter(HipChatConfiguration.BUILD_SUCCESSFUL_KEY);
 		String buildFailed = request.getParameter(HipChatConfiguration.BUILD_FAILED_KEY);
@@ -152,6 +258,8 @@ public class HipChatConfigurationController extends BaseController {
 		logger.debug(String.format("Bypass SSL check: %s", bypassSslCheck));
 		logger.debug(String.format("API token: %s", apiToken));
 		logger.debug(String.format("Trigger notification: %s", notify));
+		logger.debug(String.format("Timeouts: connect %s, connection request %s, socket %s, deadline %s, render budget %s ms", 
+				connectTimeout, connectionRequestTimeout, socketTimeout, notificationDeadline, renderBudget));
 		logger.debug("Events:");
 		logger.debug(String.format("\tDefault room ID: %s", defaultRoomId));
 	    logger.debug(String.format("\tBranch filter enabled: %s", new Object[] { branchFilter }));
@@ -187,14 +295,22 @@ public class HipChatConfigurationController extends BaseController {
 		}
 
 		// Save the configuration
-		this.configuration.setApiUrl(apiUrl);
-		this.configuration.setBypassSslCheck(Boolean.parseBoolean(bypassSslCheck));
-		this.configuration.setApiToken(apiToken);
-		this.configuration.setNotifyStatus(Boolean.parseBoolean(notify));
-		this.configuration.setDefaultRoomId(defaultRoomId.equals("") ? null : defaultRoomId);
-		this.configuration.setServerEventRoomId(serverEventRoomId.equals("") ? null : serverEventRoomId);
-	    this.configuration.setBranchFilterEnabledStatus(Boolean.parseBoolean(branchFilter));
-	    this.configuration.setBranchFilterRegex(branchFilterRegex.equals("") ? null : branchFilterRegex);
+		boolean accountChanged = !apiUrl.equals(this.configuration.getApiUrl()) || !apiToken.equals(this.configuration.getApiToken());
+		// Build events see either the previous configuration or this one, never a mix
+		HipChatConfiguration configuration = new HipChatConfiguration(this.configuration.getSnapshot());
+		configuration.setApiUrl(apiUrl);
+		configuration.setBypassSslCheck(Boolean.parseBoolean(bypassSslCheck));
+		configuration.setApiToken(apiToken);
+		configuration.setNotifyStatus(Boolean.parseBoolean(notify));
+		configuration.setDefaultRoomId(defaultRoomId.equals("") ? null : defaultRoomId);
+		configuration.setServerEventRoomId(serverEventRoomId.equals("") ? null : serverEventRoomId);
+	    configuration.setBranchFilterEnabledStatus(Boolean.parseBoolean(branchFilter));
+	    configuration.setBranchFilterRegex(branchFilterRegex.equals("") ? null : branchFilterRegex);
+		configuration.setConnectTimeout(parsePositive(connectTimeout, configuration.getConnectTimeout()));
+		configuration.setConnectionRequestTimeout(parsePositive(connectionRequestTimeout, configuration.getConnectionRequestTimeout()));
+		configuration.setSocketTimeout(parsePositive(socketTimeout, configuration.getSocketTimeout()));
+		configuration.setNotificationDeadline(parsePositive(notificationDeadline, configuration.getNotificationDeadline()));
+		configuration.setRenderBudget(parsePositive(renderBudget, configuration.getRenderBudget()));
 		HipChatEventConfiguration events = new HipChatEventConfiguration();
 		events.setBuildStartedStatus(Boolean.parseBoolean(buildStarted));
 		events.setBuildSuccessfulStatus(Boolean.parseBoolean(buildSuccessful));
@@ -204,30 +320,53 @@ public class HipChatConfigurationController extends BaseController {
 		events.setBuildInterruptedStatus(Boolean.parseBoolean(buildInterrupted));
 		events.setServerStartupStatus(Boolean.parseBoolean(serverStartup));
 		events.setServerShutdownStatus(Boolean.parseBoolean(serverShutdown));
-		this.configuration.setEvents(events);
+		configuration.setEvents(events);
+		this.configuration.publish(configuration);
+		// The default room and notify status are part of many projects' routes
+		this.routingTable.invalidate();
 		this.saveConfiguration();
+		if (accountChanged) {
+			this.roomCache.refresh();
+		}
 		
-		// Save the templates
-		this.templates.writeTemplate(TeamCityEvent.BUILD_STARTED, buildStartedTemplate);
-		this.templates.writeTemplate(TeamCityEvent.BUILD_SUCCESSFUL, buildSuccessfulTemplate);
-		this.templates.writeTemplate(TeamCityEvent.BUILD_FAILED, buildFailedTemplate);
-		this.templates.writeTemplate(TeamCityEvent.BUILD_INTERRUPTED, buildInterruptedTemplate);
-		this.templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, serverStartupTemplate);
-		this.templates.writeTemplate(TeamCityEvent.SERVER_SHUTDOWN, serverShutdownTemplate);
+		// Save the templates; only those that changed are written and recompiled
+		int changedTemplates = 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.BUILD_STARTED, buildStartedTemplate) ? 1 : 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.BUILD_SUCCESSFUL, buildSuccessfulTemplate) ? 1 : 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.BUILD_FAILED, buildFailedTemplate) ? 1 : 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.BUILD_INTERRUPTED, buildInterruptedTemplate) ? 1 : 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, serverStartupTemplate) ? 1 : 0;
+		changedTemplates += this.templates.writeTemplate(TeamCityEvent.SERVER_SHUTDOWN, serverShutdownTemplate) ? 1 : 0;
+		logger.debug(String.format("Templates changed: %s", changedTemplates));
 		
 		// Update the page
 		this.getOrCreateMessages(request).addMessage(SAVED_ID, SAVED_MESSAGE);
 	}
 	
+	private static int parsePositive(String value, int currentValue) {
+		if (value == null || value.trim().equals("")) {
+			return currentValue;
+		}
+		try {
+			int number = Integer.parseInt(value.trim());
+			return number > 0 ? number : currentValue;
+		} catch (NumberFormatException e) {
+			logger.warn(String.format("Ignoring invalid number: %s", value));
+			return currentValue;
+		}
+	}
+	
 	private void handleTestConnection(HttpServletRequest request, HttpServletResponse response) {
 		logger.debug("Testing authentication");
 		String apiUrl = request.getParameter(HipChatConfiguration.API_URL_KEY);
 		String apiToken = request.getParameter(HipChatConfiguration.API_TOKEN_KEY);
 		logger.debug(String.format("API URL: %s", apiUrl));
 		logger.debug(String.format("API token: %s", apiToken));
-		this.configuration.setApiUrl(apiUrl);
-		this.configuration.setApiToken(apiToken);
-		boolean result = this.processor.testAuthentication();
+		// The settings are only tested, not applied
+		HipChatConfiguration configuration = new HipChatConfiguration(this.configuration.getSnapshot());
+		configuration.setApiUrl(apiUrl);
+		configuration.setApiToken(apiToken);
+		boolean result = this.processor.testAuthentication(configuration);
 		logger.debug(String.format("Authentication status: %s", result));
 		if (result) {
 			response.setStatus(HttpStatus.SC_OK);
@@ -240,12 +379,103 @@ public class HipChatConfigurationController extends BaseController {
 		logger.debug("Changing status");
 		Boolean disabled = !request.getParameter(ACTION_PARAMETER).equals(ACTION_ENABLE);
 		logger.debug(String.format("Disabled status: %s", disabled));
-		this.configuration.setDisabledStatus(disabled);
+		HipChatConfiguration configuration = new HipChatConfiguration(this.configuration.getSnapshot());
+		configuration.setDisabledStatus(disabled);
+		this.configuration.publish(configuration);
 		this.saveConfiguration();
 	}
 	
 	private void handleReloadEmoticons(HttpServletRequest request) {
-		this.emoticonCache.reload();
+		// Walking all emoticon pages takes a while; the current emoticons stay in use until it completes
+		this.emoticonCache.refresh();
+	}
+	
+	private void handleReloadRooms(HttpServletRequest request) {
+		// The directory can take several seconds to walk, so only start the reload here
+		this.roomCache.refresh();
+	}
+	
+	// Renders a candidate template against a finished build, or sample values, and returns the message and its cost as JSON
+	private void handlePreview(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String eventName = request.getParameter(PREVIEW_EVENT_PARAMETER);
+		String templateString = request.getParameter(PREVIEW_TEMPLATE_PARAMETER);
+		String buildId = request.getParameter(PREVIEW_BUILD_ID_PARAMETER);
+		logger.debug(String.format("Previewing %s template against build %s: %s", eventName, buildId, templateString));
+		
+		TeamCityEvent event = null;
+		try {
+			event = eventName == null ? null : TeamCityEvent.valueOf(eventName);
+		} catch (IllegalArgumentException e) {
+			// Reported below
+		}
+		if (event == null) {
+			logger.warn(String.format("Ignoring preview for invalid event: %s", eventName));
+			writePreview(response, HttpStatus.SC_BAD_REQUEST, createPreviewError(String.format("Invalid event: %s", eventName)));
+			return;
+		}
+		
+		// A build's parameters are only shown to those who can see its project
+		SBuild build = findPreviewBuild(event, buildId);
+		if (build != null && !canViewBuild(request, build)) {
+			logger.warn(String.format("Preview against build %s denied", buildId));
+			writePreview(response, HttpStatus.SC_FORBIDDEN, createPreviewError(String.format("You do not have permission to view build %s", buildId)));
+			return;
+		}
+		
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
+		HipChatTemplatePreview preview;
+		try {
+			Template template = this.templateConfiguration.compileTemplate(templateString);
+			if (build != null) {
+				HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(this.server, build, event, null, template.getObjectWrapper(), 
+						HipChatTemplateAnalysis.of(template));
+				preview = this.renderer.preview(configuration, template, dataModel);
+				preview.source = String.format("Build #%s (ID %s)", build.getBuildNumber(), build.getBuildId());
+			} else {
+				boolean isBuildEvent = PROJECT_TEMPLATE_KEYS.containsKey(event);
+				Map<String, Object> dataModel = isBuildEvent ? HipChatBuildEventDataModel.createSample(this.server.getRootUrl()) : new HashMap<String, Object>();
+				preview = this.renderer.preview(configuration, template, dataModel);
+				preview.source = isBuildEvent ? PREVIEW_SAMPLE_SOURCE : event.toString();
+			}
+		} catch (IOException e) {
+			// Includes syntax errors
+			preview = createPreviewError(e.getMessage());
+		}
+		logger.debug(String.format("Preview:\n%s", preview));
+		writePreview(response, HttpStatus.SC_OK, preview);
+	}
+	
+	private static HipChatTemplatePreview createPreviewError(String error) {
+		return new HipChatTemplatePreview(null, error, 0, -1, new ArrayList<String>(), false);
+	}
+	
+	private static void writePreview(HttpServletResponse response, int status, HipChatTemplatePreview preview) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(preview.toJson());
+	}
+	
+	private static boolean canViewBuild(HttpServletRequest request, SBuild build) {
+		SUser user = SessionUser.getUser(request);
+		return user != null && (user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS) || 
+				user.isPermissionGrantedForProject(build.getProjectId(), Permission.VIEW_PROJECT));
+	}
+	
+	private SBuild findPreviewBuild(TeamCityEvent event, String buildId) {
+		if (!PROJECT_TEMPLATE_KEYS.containsKey(event) || buildId == null || buildId.trim().equals("")) {
+			return null;
+		}
+		try {
+			SBuild build = this.server.findBuildInstanceById(Long.parseLong(buildId.trim()));
+			if (build == null) {
+				logger.debug(String.format("No build with ID %s; previewing with sample values", buildId));
+			}
+			return build;
+		} catch (NumberFormatException e) {
+			logger.warn(String.format("Ignoring invalid build ID: %s", buildId));
+			return null;
+		}
 	}
 	
 	@Override
@@ -267,6 +497,12 @@ public class HipChatConfigurationController extends BaseController {
 			} else if (request.getParameter(RELOAD_EMOTICONS_PARAMTER) != null) {
 				logger.debug("Reload emoticons");
 				this.handleReloadEmoticons(request);
+			} else if (request.getParameter(RELOAD_ROOMS_PARAMETER) != null) {
+				logger.debug("Reload rooms");
+				this.handleReloadRooms(request);
+			} else if (request.getParameter(PREVIEW_PARAMETER) != null) {
+				logger.debug("Preview template");
+				this.handlePreview(request, response);
 			} else {
 				logger.debug("No handler for request:");
 				@SuppressWarnings("unchecked")
@@ -293,7 +529,12 @@ public class HipChatConfigurationController extends BaseController {
 				logger.debug("No configuration file exists; creating new one");
 				this.saveConfiguration();
 			}
-			this.emoticonCache.reload();
+			// Start from the snapshots of the previous run and revalidate them in the background
+			this.emoticonCache.load();
+			this.emoticonCache.refresh();
+			this.roomCache.load();
+			this.roomCache.refresh();
+			this.dispatcher.replay();
 		} catch (Exception e) {
 			logger.error("Could not load configuration", e);
 		}
@@ -330,32 +571,14 @@ public class HipChatConfigurationController extends BaseController {
 		HipChatConfiguration configuration = (HipChatConfiguration) xstream.fromXML(fileReader);
 		fileReader.close();
 		
-		// Copy the values, because we need it on the original shared (bean),
-		// which is a singleton
-		this.configuration.setApiUrl(configuration.getApiUrl());
-		this.configuration.setApiToken(configuration.getApiToken());
-		this.configuration.setDefaultRoomId(configuration.getDefaultRoomId());
-		this.configuration.setNotifyStatus(configuration.getDefaultNotifyStatus());
-		this.configuration.setDisabledStatus(configuration.getDisabledStatus());
-		this.configuration.setBranchFilterEnabledStatus(configuration.getBranchFilterEnabledStatus());
-		this.configuration.setBranchFilterRegex(configuration.getBranchFilterRegex());
-		this.configuration.setBypassSslCheck(configuration.getBypassSslCheck());
-		this.configuration.setServerEventRoomId(configuration.getServerEventRoomId());
-		if (configuration.getEvents() != null) {
-			this.configuration.getEvents().setBuildStartedStatus(configuration.getEvents().getBuildStartedStatus());
-			this.configuration.getEvents().setBuildSuccessfulStatus(configuration.getEvents().getBuildSuccessfulStatus());
-			this.configuration.getEvents().setBuildFailedStatus(configuration.getEvents().getBuildFailedStatus());
-			this.configuration.getEvents().setBuildInterruptedStatus(configuration.getEvents().getBuildInterruptedStatus());
-			this.configuration.getEvents().setServerStartupStatus(configuration.getEvents().getServerStartupStatus());
-			this.configuration.getEvents().setServerShutdownStatus(configuration.getEvents().getServerShutdownStatus());
-			this.configuration.getEvents().setOnlyAfterFirstBuildSuccessfulStatus(configuration.getEvents().getOnlyAfterFirstBuildSuccessfulStatus());
-			this.configuration.getEvents().setOnlyAfterFirstBuildFailedStatus(configuration.getEvents().getOnlyAfterFirstBuildFailedStatus());
-		}
-		if (configuration.getProjectRoomMap() != null) {
-			for (HipChatProjectConfiguration projectConfiguration : configuration.getProjectRoomMap()) {
-				this.configuration.setProjectConfiguration(projectConfiguration);
-			}
+		// The shared bean is a singleton, so the loaded configuration replaces its values at once.
+		// Configuration files from older versions may have no events, which then keep their defaults.
+		if (configuration.getEvents() == null) {
+			configuration.setEvents(new HipChatEventConfiguration());
 		}
+		this.configuration.publish(configuration);
+		this.templates.invalidateProjects();
+		this.routingTable.invalidate();
 	}
 
 	public void saveConfiguration() throws IOException {
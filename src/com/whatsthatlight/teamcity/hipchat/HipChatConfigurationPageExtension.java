@@ -30,6 +30,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 
 public class HipChatConfigurationPageExtension extends AdminPage {
@@ -47,6 +48,10 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 	private HipChatApiProcessor processor;
 	private HipChatNotificationMessageTemplates templates;
 	private HipChatEmoticonCache emoticonCache;
+	private HipChatNotificationDispatcher dispatcher;
+	private HipChatRoomCache roomCache;
+	private HipChatTemplateRenderer renderer;
+	private HipChatTemplateConfiguration templateConfiguration;
 
 	public HipChatConfigurationPageExtension(@NotNull PagePlaces pagePlaces, 
 			@NotNull PluginDescriptor descriptor, 
@@ -54,7 +59,11 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 			@NotNull HipChatApiProcessor processor,
 			@NotNull HipChatNotificationMessageTemplates templates,
 			@NotNull HipChatServerExtension serverExtension,
-			@NotNull HipChatEmoticonCache emoticonCache) {
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoomCache roomCache,
+			@NotNull HipChatTemplateRenderer renderer,
+			@NotNull HipChatTemplateConfiguration templateConfiguration) {
 		super(pagePlaces);
 		setPluginName(PLUGIN_NAME);
 		setIncludeUrl(descriptor.getPluginResourcesPath(PAGE));
@@ -68,6 +77,10 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 		this.processor = processor;
 		this.templates = templates;
 		this.emoticonCache = emoticonCache;
+		this.dispatcher = dispatcher;
+		this.roomCache = roomCache;
+		this.renderer = renderer;
+		this.templateConfiguration = templateConfiguration;
 		register();
 		logger.info("Global configuration page registered");
 	}
@@ -84,10 +97,23 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 		if (this.configuration.getServerEventRoomId() != null) {
 			model.put(HipChatConfiguration.SERVER_EVENT_ROOM_ID_KEY, this.configuration.getServerEventRoomId());
 		}
-		model.put(ROOM_ID_LIST, Utils.getRooms(this.processor));
+		model.put(ROOM_ID_LIST, this.roomCache.getRooms());
 		model.put(HipChatConfiguration.NOTIFY_STATUS_KEY, this.configuration.getDefaultNotifyStatus());
 		model.put(HipChatConfiguration.DISABLED_STATUS_KEY, this.configuration.getDisabledStatus());
 		model.put(HipChatConfiguration.EMOTICON_CACHE_SIZE_KEY, this.emoticonCache.getSize());
+		model.put(HipChatConfiguration.ROOM_CACHE_SIZE_KEY, this.roomCache.getSize());
+		model.put(HipChatConfiguration.ROOM_CACHE_AGE_KEY, this.roomCache.getSecondsSinceReload());
+		model.put(HipChatConfiguration.CONNECTION_POOL_STATISTICS_KEY, this.processor.getConnectionPoolStatistics());
+		model.put(HipChatConfiguration.DISPATCH_STATISTICS_KEY, this.dispatcher.getStatistics());
+		model.put(HipChatConfiguration.RATE_LIMIT_STATISTICS_KEY, this.processor.getRateLimitStatistics());
+		model.put(HipChatConfiguration.CIRCUIT_BREAKERS_KEY, this.processor.getCircuitBreakers());
+		model.put(HipChatConfiguration.CONNECT_TIMEOUT_KEY, this.configuration.getConnectTimeout());
+		model.put(HipChatConfiguration.CONNECTION_REQUEST_TIMEOUT_KEY, this.configuration.getConnectionRequestTimeout());
+		model.put(HipChatConfiguration.SOCKET_TIMEOUT_KEY, this.configuration.getSocketTimeout());
+		model.put(HipChatConfiguration.NOTIFICATION_DEADLINE_KEY, this.configuration.getNotificationDeadline());
+		model.put(HipChatConfiguration.RENDER_BUDGET_KEY, this.configuration.getRenderBudget());
+		model.put(HipChatConfiguration.RENDER_STATISTICS_KEY, this.renderer.getStatistics());
+		model.put(HipChatConfiguration.TEMPLATE_CACHE_STATISTICS_KEY, this.templateConfiguration.getStatistics());
 	    model.put(HipChatConfiguration.BRANCH_FILTER_KEY, Boolean.valueOf(this.configuration.getBranchFilterEnabledStatus()));
 	    model.put(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY, this.configuration.getBranchFilterRegex());
 
@@ -115,6 +141,12 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 			model.put(HipChatNotificationMessageTemplates.SERVER_STARTUP_TEMPLATE_DEFAULT_KEY, HtmlUtils.htmlEscape(HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE));
 			model.put(HipChatNotificationMessageTemplates.SERVER_SHUTDOWN_TEMPLATE_KEY, this.templates.readTemplate(TeamCityEvent.SERVER_SHUTDOWN).toString());
 			model.put(HipChatNotificationMessageTemplates.SERVER_SHUTDOWN_TEMPLATE_DEFAULT_KEY, HtmlUtils.htmlEscape(HipChatNotificationMessageTemplates.SERVER_SHUTDOWN_DEFAULT_TEMPLATE));
+			HashMap<String, HipChatTemplateAnalysis> templateAnalysis = new HashMap<String, HipChatTemplateAnalysis>();
+			templateAnalysis.put(HipChatNotificationMessageTemplates.BUILD_STARTED_TEMPLATE_KEY, this.templates.getTemplateAnalysis(TeamCityEvent.BUILD_STARTED));
+			templateAnalysis.put(HipChatNotificationMessageTemplates.BUILD_SUCCESSFUL_TEMPLATE_KEY, this.templates.getTemplateAnalysis(TeamCityEvent.BUILD_SUCCESSFUL));
+			templateAnalysis.put(HipChatNotificationMessageTemplates.BUILD_FAILED_TEMPLATE_KEY, this.templates.getTemplateAnalysis(TeamCityEvent.BUILD_FAILED));
+			templateAnalysis.put(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_TEMPLATE_KEY, this.templates.getTemplateAnalysis(TeamCityEvent.BUILD_INTERRUPTED));
+			model.put(HipChatConfiguration.TEMPLATE_ANALYSIS_KEY, templateAnalysis);
 		} catch (IOException e) {
 			logger.error("Exception", e);
 		}
@@ -0,0 +1,96 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatConnectionPoolStatistics {
+
+	private long requests;
+	private long hits;
+	private long misses;
+	private long clientBuilds;
+	private int leased;
+	private int available;
+	private int pending;
+	private int max;
+	private long timeouts;
+	private long cancelled;
+	
+	public HipChatConnectionPoolStatistics(long requests, long hits, long misses, long clientBuilds, int leased, int available, int pending, int max, 
+			long timeouts, long cancelled) {
+		this.requests = requests;
+		this.hits = hits;
+		this.misses = misses;
+		this.clientBuilds = clientBuilds;
+		this.leased = leased;
+		this.available = available;
+		this.pending = pending;
+		this.max = max;
+		this.timeouts = timeouts;
+		this.cancelled = cancelled;
+	}
+	
+	public long getRequests() {
+		return this.requests;
+	}
+
+	// Requests served by a connection already in the pool
+	public long getHits() {
+		return this.hits;
+	}
+
+	// Requests that had to open a new connection
+	public long getMisses() {
+		return this.misses;
+	}
+
+	public long getClientBuilds() {
+		return this.clientBuilds;
+	}
+
+	public int getLeased() {
+		return this.leased;
+	}
+
+	public int getAvailable() {
+		return this.available;
+	}
+
+	public int getPending() {
+		return this.pending;
+	}
+
+	public int getMax() {
+		return this.max;
+	}
+	
+	// Requests that hit the connect, connection request or socket timeout
+	public long getTimeouts() {
+		return this.timeouts;
+	}
+
+	// Notifications cancelled because they were not delivered by their deadline
+	public long getCancelled() {
+		return this.cancelled;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Requests: %s\nHits: %s\nMisses: %s\nLeased: %s\nAvailable: %s\nPending: %s\nMax: %s\nTimeouts: %s\nCancelled: %s", 
+				requests, hits, misses, leased, available, pending, max, timeouts, cancelled);
+	}
+
+}
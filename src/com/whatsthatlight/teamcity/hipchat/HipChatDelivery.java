@@ -0,0 +1,111 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+// A notification's delivery to one room, which may take several attempts. The deadline is fixed when the delivery 
+// starts, however long the attempts wait for a retry.
+public class HipChatDelivery {
+
+	public static final String PENDING = "pending";
+	public static final String DELIVERED = "delivered";
+	// Another attempt can be made once the retry delay is over
+	public static final String RETRY = "retry";
+	// Worth another try after a restart, e.g. HipChat was unavailable
+	public static final String FAILED = "failed";
+	// HipChat will never accept the notification as it is, e.g. the room does not exist or the token is invalid
+	public static final String REJECTED = "rejected";
+	
+	private long deadline;
+	private String status;
+	private long retryDelay;
+	private String reason;
+	private int rateLimitedRetries;
+	private int failedAttempts;
+	// The rate limiter slot reserved by the previous attempt, which the next attempt must use rather than reserve another
+	private boolean slotReserved;
+	
+	public HipChatDelivery(long deadline) {
+		this.deadline = deadline;
+		this.status = PENDING;
+	}
+	
+	public long getDeadline() {
+		return this.deadline;
+	}
+	
+	public String getStatus() {
+		return this.status;
+	}
+	
+	public long getRetryDelay() {
+		return this.retryDelay;
+	}
+	
+	public String getReason() {
+		return this.reason;
+	}
+	
+	public int getRateLimitedRetries() {
+		return this.rateLimitedRetries;
+	}
+	
+	public int getFailedAttempts() {
+		return this.failedAttempts;
+	}
+	
+	public String delivered() {
+		return setStatus(DELIVERED, 0, null);
+	}
+	
+	public String retry(long delay, String reason) {
+		return setStatus(RETRY, delay, reason);
+	}
+	
+	public String failed(String reason) {
+		return setStatus(FAILED, 0, reason);
+	}
+	
+	public String rejected(String reason) {
+		return setStatus(REJECTED, 0, reason);
+	}
+	
+	int incrementRateLimitedRetries() {
+		return this.rateLimitedRetries++;
+	}
+	
+	int incrementFailedAttempts() {
+		return this.failedAttempts++;
+	}
+	
+	boolean takeReservedSlot() {
+		boolean slotReserved = this.slotReserved;
+		this.slotReserved = false;
+		return slotReserved;
+	}
+	
+	void reserveSlot() {
+		this.slotReserved = true;
+	}
+	
+	private String setStatus(String status, long retryDelay, String reason) {
+		this.status = status;
+		this.retryDelay = retryDelay;
+		this.reason = reason;
+		return status;
+	}
+
+}
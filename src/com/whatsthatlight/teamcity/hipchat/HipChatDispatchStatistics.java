@@ -0,0 +1,112 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatDispatchStatistics {
+
+	private int queueDepth;
+	private int queueCapacity;
+	private long enqueued;
+	private long dispatched;
+	private long dropped;
+	private long averageLatency;
+	private long maxLatency;
+	private int activeWorkers;
+	private int workers;
+	private double utilisation;
+	private int journaled;
+	private long coalesced;
+	
+	public HipChatDispatchStatistics(int queueDepth, int queueCapacity, long enqueued, long dispatched, long dropped, 
+			long averageLatency, long maxLatency, int activeWorkers, int workers, double utilisation, int journaled, long coalesced) {
+		this.queueDepth = queueDepth;
+		this.queueCapacity = queueCapacity;
+		this.enqueued = enqueued;
+		this.dispatched = dispatched;
+		this.dropped = dropped;
+		this.averageLatency = averageLatency;
+		this.maxLatency = maxLatency;
+		this.activeWorkers = activeWorkers;
+		this.workers = workers;
+		this.utilisation = utilisation;
+		this.journaled = journaled;
+		this.coalesced = coalesced;
+	}
+	
+	public int getQueueDepth() {
+		return this.queueDepth;
+	}
+
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+
+	public long getEnqueued() {
+		return this.enqueued;
+	}
+
+	public long getDispatched() {
+		return this.dispatched;
+	}
+
+	public long getDropped() {
+		return this.dropped;
+	}
+
+	// Enqueue-to-send latency in milliseconds
+	public long getAverageLatency() {
+		return this.averageLatency;
+	}
+
+	public long getMaxLatency() {
+		return this.maxLatency;
+	}
+
+	public int getActiveWorkers() {
+		return this.activeWorkers;
+	}
+
+	public int getWorkers() {
+		return this.workers;
+	}
+
+	// Fraction of available worker time spent sending since the queue was created
+	public double getUtilisation() {
+		return this.utilisation;
+	}
+	
+	public int getUtilisationPercentage() {
+		return (int) Math.round(this.utilisation * 100);
+	}
+	
+	// Notifications in the journal that have not been delivered yet
+	public int getJournaled() {
+		return this.journaled;
+	}
+	
+	// Notifications that were combined into digests
+	public long getCoalesced() {
+		return this.coalesced;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Queue depth: %s/%s\nEnqueued: %s\nDispatched: %s\nDropped: %s\nLatency: %s ms (max %s ms)\nWorkers: %s/%s\nUtilisation: %s%%\nJournaled: %s\nCoalesced: %s", 
+				queueDepth, queueCapacity, enqueued, dispatched, dropped, averageLatency, maxLatency, activeWorkers, workers, getUtilisationPercentage(), journaled, coalesced);
+	}
+
+}
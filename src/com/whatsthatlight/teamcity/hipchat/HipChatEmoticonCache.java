@@ -16,43 +16,129 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import jetbrains.buildServer.serverSide.ServerPaths;
+
 public class HipChatEmoticonCache {
 
+	private static final String SNAPSHOT_FILE = "emoticons.json";
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
 	private HipChatApiProcessor processor;
-	private HashMap<String, String> emoticonCache;	
+	private ExecutorService executor;
+	private AtomicBoolean reloading = new AtomicBoolean();
+	private HipChatSnapshotFile snapshot;
+	// Rebuilt off to the side and published as a whole, so build threads never see a partially filled map
+	private volatile Map<String, String> emoticonCache;	
 	
 	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor) {
+		this(processor, (HipChatSnapshotFile) null);
+	}
+	
+	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor, @NotNull ServerPaths serverPaths) {
+		this(processor, new HipChatSnapshotFile(new File(new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY), SNAPSHOT_FILE)));
+	}
+	
+	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor, HipChatSnapshotFile snapshot) {
 		this.processor = processor;
-		this.emoticonCache = new HashMap<String, String>();
+		this.snapshot = snapshot;
+		this.emoticonCache = Collections.emptyMap();
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hipchat-emoticon-cache");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	// Serves the emoticons from the previous run until the next reload completes
+	public int load() {
+		if (this.snapshot == null) {
+			return 0;
+		}
+		
+		Map<String, String> emoticonCache = this.snapshot.read();
+		if (emoticonCache == null) {
+			return 0;
+		}
+		
+		this.emoticonCache = Collections.unmodifiableMap(new HashMap<String, String>(emoticonCache));
+		logger.info(String.format("Emoticon cache loaded from snapshot: %s", emoticonCache.size()));
+		return emoticonCache.size();
 	}
 	
 	public int reload() {
 		logger.debug("Caching all available emoticons");
-		this.emoticonCache = new HashMap<String, String>();
+		HashMap<String, String> emoticonCache = new HashMap<String, String>();
 		int startIndex = 0;
 		HipChatEmoticons emoticons = null;
 		do {
 			logger.debug(String.format("Start index: %s", startIndex));
 			emoticons = this.processor.getEmoticons(startIndex);
 			if (emoticons == null) {
+				if (startIndex == 0) {
+					logger.warn(String.format("Emoticon cache not reloaded; keeping %s cached emoticons", this.emoticonCache.size()));
+					return this.emoticonCache.size();
+				}
 				break;
 			}
 			for (HipChatEmoticon emoticon : emoticons.items) {
 				logger.debug(String.format("Adding emoticon: %s - %s", emoticon.shortcut, emoticon.url));
-				this.emoticonCache.put(emoticon.shortcut, emoticon.url);
+				emoticonCache.put(emoticon.shortcut, emoticon.url);
 			}
 			// Due to a bug in the HipChat REST API, we have to work around using the next resource (#49).
 			// The HipChat API returns a next resource on each request, even when there are no more emoticons to retrieve.
 			startIndex = startIndex + emoticons.items.size();
-		} while (emoticons.items.size() > 0);		
-		logger.info(String.format("Emoticon cache reloaded: %s", this.emoticonCache.size()));
-		return this.emoticonCache.size();
+		} while (emoticons.items.size() > 0);
+		boolean changed = !emoticonCache.equals(this.emoticonCache);
+		this.emoticonCache = Collections.unmodifiableMap(emoticonCache);
+		if (changed && this.snapshot != null) {
+			this.snapshot.write(emoticonCache);
+		}
+		logger.info(String.format("Emoticon cache reloaded: %s", emoticonCache.size()));
+		return emoticonCache.size();
+	}
+	
+	// Starts a reload in the background, unless one is already running
+	public boolean refresh() {
+		if (!this.reloading.compareAndSet(false, true)) {
+			return false;
+		}
+		
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reload();
+					} finally {
+						reloading.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.reloading.set(false);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	public boolean isReloading() {
+		return this.reloading.get();
 	}
 	
 	public int getSize() {
@@ -63,4 +149,8 @@ public class HipChatEmoticonCache {
 		return this.emoticonCache.get(name);
 	}
 	
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
 }
@@ -44,16 +44,33 @@ public class HipChatEventConfiguration {
 	@XStreamAlias(HipChatConfiguration.ONLY_AFTER_FIRST_BUILD_FAILED_KEY)
 	private boolean onlyAfterFirstBuildFailed = false;
 
+	// Changes are reported to the configuration this is part of, so that its snapshot is taken again
+	private transient HipChatConfiguration owner;
+	
+	private transient boolean frozen;
 	
 	public HipChatEventConfiguration() {
 	}
+	
+	public HipChatEventConfiguration(HipChatEventConfiguration events) {
+		this.buildStarted = events.buildStarted;
+		this.buildSuccessful = events.buildSuccessful;
+		this.buildFailed = events.buildFailed;
+		this.buildInterrupted = events.buildInterrupted;
+		this.serverStartup = events.serverStartup;
+		this.serverShutdown = events.serverShutdown;
+		this.onlyAfterFirstBuildSuccessful = events.onlyAfterFirstBuildSuccessful;
+		this.onlyAfterFirstBuildFailed = events.onlyAfterFirstBuildFailed;
+	}
 
 	public boolean getBuildStartedStatus() {
 		return this.buildStarted;
 	}
 
 	public void setBuildStartedStatus(boolean status) {
+		this.checkMutable();
 		this.buildStarted = status;
+		this.changed();
 	}
 	
 	public boolean getBuildSuccessfulStatus() {
@@ -61,7 +78,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setBuildSuccessfulStatus(boolean status) {
+		this.checkMutable();
 		this.buildSuccessful = status;
+		this.changed();
 	}
 	
 	public boolean getBuildFailedStatus() {
@@ -69,7 +88,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setBuildFailedStatus(boolean status) {
+		this.checkMutable();
 		this.buildFailed = status;
+		this.changed();
 	}
 	
 	public boolean getBuildInterruptedStatus() {
@@ -77,7 +98,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setBuildInterruptedStatus(boolean status) {
+		this.checkMutable();
 		this.buildInterrupted = status;
+		this.changed();
 	}
 	
 	public boolean getServerStartupStatus() {
@@ -85,7 +108,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setServerStartupStatus(boolean status) {
+		this.checkMutable();
 		this.serverStartup = status;
+		this.changed();
 	}
 	
 	public boolean getServerShutdownStatus() {
@@ -93,7 +118,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setServerShutdownStatus(boolean status) {
+		this.checkMutable();
 		this.serverShutdown = status;
+		this.changed();
 	}
 
 	public boolean getOnlyAfterFirstBuildSuccessfulStatus() {
@@ -101,7 +128,9 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setOnlyAfterFirstBuildSuccessfulStatus(boolean status) {
+		this.checkMutable();
 		this.onlyAfterFirstBuildSuccessful = status;
+		this.changed();
 	}
 
 	public boolean getOnlyAfterFirstBuildFailedStatus() {
@@ -109,7 +138,29 @@ public class HipChatEventConfiguration {
 	}
 
 	public void setOnlyAfterFirstBuildFailedStatus(boolean status) {
+		this.checkMutable();
 		this.onlyAfterFirstBuildFailed = status;
+		this.changed();
+	}
+
+	void setOwner(HipChatConfiguration owner) {
+		this.owner = owner;
+	}
+	
+	void freeze() {
+		this.frozen = true;
+	}
+	
+	private void checkMutable() {
+		if (this.frozen) {
+			throw new UnsupportedOperationException("A configuration snapshot cannot be changed");
+		}
+	}
+	
+	private void changed() {
+		if (this.owner != null) {
+			this.owner.changed();
+		}
 	}
 
 }
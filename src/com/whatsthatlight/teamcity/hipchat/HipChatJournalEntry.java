@@ -0,0 +1,54 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatJournalEntry {
+
+	private long id;
+	private String roomId;
+	private HipChatRoomNotification notification;
+	private int failures;
+	
+	public HipChatJournalEntry(long id, String roomId, HipChatRoomNotification notification) {
+		this(id, roomId, notification, 0);
+	}
+	
+	public HipChatJournalEntry(long id, String roomId, HipChatRoomNotification notification, int failures) {
+		this.id = id;
+		this.roomId = roomId;
+		this.notification = notification;
+		this.failures = failures;
+	}
+	
+	public long getId() {
+		return this.id;
+	}
+	
+	public String getRoomId() {
+		return this.roomId;
+	}
+	
+	public HipChatRoomNotification getNotification() {
+		return this.notification;
+	}
+	
+	// Failed delivery attempts so far, across restarts
+	public int getFailures() {
+		return this.failures;
+	}
+
+}
@@ -0,0 +1,563 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+public class HipChatNotificationDispatcher {
+
+	// A journaled notification is given up on after this many failed deliveries, counting those before a restart
+	public static final int MAX_DELIVERY_FAILURES = 5;
+
+	private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+	private static final long SHUTDOWN_TIMEOUT_MILLISECONDS = 10000;
+	private static final long NOT_JOURNALED = -1;
+	// Most severe first; the digest takes the colour of its most severe notification
+	private static final String[] COLOUR_SEVERITY = new String[] { 
+		HipChatMessageColour.ERROR, 
+		HipChatMessageColour.WARNING, 
+		HipChatMessageColour.INFO, 
+		HipChatMessageColour.SUCCESS, 
+		HipChatMessageColour.NEUTRAL };
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	
+	private HipChatConfiguration configuration;
+	private HipChatApiProcessor processor;
+	private HipChatNotificationJournal journal;
+	private HipChatTemplateConfiguration templateConfiguration;
+	private ThreadPoolExecutor executor;
+	// Set once shutdown starts, so that no new notifications are accepted while the queue is drained
+	private volatile boolean shutdown;
+	// Set once the queue is drained; guarded by this
+	private boolean terminated;
+	private int queueCapacity;
+	// Holds back notifications for coalescing and for retries, so that no worker ever waits
+	private ScheduledExecutorService timer;
+	private Map<String, CoalescingBatch> batches = new HashMap<String, CoalescingBatch>();
+	private long startTime;
+	private AtomicLong enqueuedCount = new AtomicLong();
+	private AtomicLong dispatchedCount = new AtomicLong();
+	private AtomicLong droppedCount = new AtomicLong();
+	private AtomicLong coalescedCount = new AtomicLong();
+	private AtomicLong totalLatencyNanos = new AtomicLong();
+	private AtomicLong maxLatencyNanos = new AtomicLong();
+	private AtomicLong busyNanos = new AtomicLong();
+	
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor) {
+		this(configuration, processor, null);
+	}
+	
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor, 
+			HipChatNotificationJournal journal) {
+		this(configuration, processor, journal, new HipChatTemplateConfiguration());
+	}
+	
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor, 
+			HipChatNotificationJournal journal, @NotNull HipChatTemplateConfiguration templateConfiguration) {
+		this.configuration = configuration;
+		this.processor = processor;
+		this.journal = journal;
+		this.templateConfiguration = templateConfiguration;
+	}
+	
+	public boolean dispatch(HipChatRoomNotification notification, String roomId) {
+		if (this.shutdown) {
+			this.droppedCount.incrementAndGet();
+			logger.warn(String.format("Notification for room %s rejected, because the dispatcher is shut down", roomId));
+			return false;
+		}
+		
+		// The notification goes to the journal first, so that it survives a restart or a HipChat outage
+		long id = NOT_JOURNALED;
+		if (this.journal != null) {
+			try {
+				id = this.journal.append(roomId, notification);
+			} catch (IOException e) {
+				logger.error(String.format("Could not journal notification for room %s", roomId), e);
+			}
+		}
+		
+		// Only HTML notifications can be combined into a digest
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
+		int window = configuration.getCoalescingWindow();
+		if (window > 0 && HipChatMessageFormat.HTML.equals(notification.messageFormat)) {
+			return coalesce(id, notification, roomId, window, configuration.getCoalescingMaxBatchSize());
+		}
+		return enqueue(new DispatchTask(id, notification, roomId));
+	}
+	
+	// Queues the notifications that were not delivered before the last shutdown
+	public int replay() {
+		if (this.journal == null) {
+			return 0;
+		}
+		List<HipChatJournalEntry> entries;
+		try {
+			entries = this.journal.recover();
+		} catch (IOException e) {
+			logger.error("Could not recover notifications from the journal", e);
+			return 0;
+		}
+		int replayed = 0;
+		for (HipChatJournalEntry entry : entries) {
+			if (enqueue(new DispatchTask(entry.getId(), entry.getNotification(), entry.getRoomId()))) {
+				replayed++;
+			}
+		}
+		logger.info(String.format("%s of %s journaled notifications replayed", replayed, entries.size()));
+		return replayed;
+	}
+	
+	// Waits for everything already queued to be sent, e.g. the server shutdown message
+	public void shutdown() {
+		this.shutdown = true;
+		flushAll();
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+			this.terminated = true;
+		}
+		if (executor == null) {
+			if (this.journal != null) {
+				this.journal.close();
+			}
+			return;
+		}
+		logger.debug(String.format("Draining dispatch queue: %s", executor.getQueue().size()));
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+				logger.warn(String.format("Dispatch queue not drained within %s ms; %s notifications discarded or left in the journal", 
+						SHUTDOWN_TIMEOUT_MILLISECONDS, executor.shutdownNow().size()));
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		if (this.journal != null) {
+			this.journal.close();
+		}
+		logger.debug("Dispatch queue shut down");
+	}
+	
+	public HipChatDispatchStatistics getStatistics() {
+		int queueDepth = 0;
+		int activeWorkers = 0;
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
+		int workers = configuration.getDispatchWorkers();
+		int queueCapacity = configuration.getDispatchQueueCapacity();
+		double utilisation = 0;
+		synchronized (this) {
+			if (this.executor != null) {
+				queueDepth = this.executor.getQueue().size();
+				activeWorkers = this.executor.getActiveCount();
+				workers = this.executor.getMaximumPoolSize();
+				queueCapacity = this.queueCapacity;
+				long elapsedNanos = System.nanoTime() - this.startTime;
+				if (elapsedNanos > 0) {
+					utilisation = Math.min(1.0, (double) this.busyNanos.get() / ((double) elapsedNanos * workers));
+				}
+			}
+		}
+		long dispatched = this.dispatchedCount.get();
+		long averageLatency = dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(this.totalLatencyNanos.get() / dispatched);
+		long maxLatency = TimeUnit.NANOSECONDS.toMillis(this.maxLatencyNanos.get());
+		int journaled = this.journal == null ? 0 : this.journal.getPendingCount();
+		return new HipChatDispatchStatistics(queueDepth, queueCapacity, this.enqueuedCount.get(), dispatched, this.droppedCount.get(), 
+				averageLatency, maxLatency, activeWorkers, workers, utilisation, journaled, this.coalescedCount.get());
+	}
+	
+	private boolean coalesce(long id, HipChatRoomNotification notification, String roomId, int window, int maxBatchSize) {
+		CoalescingBatch fullBatch = null;
+		synchronized (this.batches) {
+			CoalescingBatch batch = this.batches.get(roomId);
+			if (batch == null && this.shutdown) {
+				// Raced with the shutdown, which has already flushed the batches
+				return enqueue(new DispatchTask(id, notification, roomId));
+			}
+			if (batch == null) {
+				// The window starts with the first notification for the room
+				final CoalescingBatch newBatch = new CoalescingBatch(roomId);
+				newBatch.future = getTimer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(newBatch);
+					}
+				}, window, TimeUnit.SECONDS);
+				this.batches.put(roomId, newBatch);
+				batch = newBatch;
+			}
+			batch.add(id, notification);
+			if (batch.notifications.size() >= maxBatchSize) {
+				this.batches.remove(roomId);
+				batch.future.cancel(false);
+				fullBatch = batch;
+			}
+		}
+		if (fullBatch != null) {
+			return enqueue(fullBatch.createTasks());
+		}
+		logger.debug(String.format("Notification for room %s held back for coalescing", roomId));
+		return true;
+	}
+	
+	private void flush(CoalescingBatch batch) {
+		synchronized (this.batches) {
+			if (this.batches.get(batch.roomId) != batch) {
+				return;
+			}
+			this.batches.remove(batch.roomId);
+		}
+		enqueue(batch.createTasks());
+	}
+	
+	private void flushAll() {
+		List<CoalescingBatch> batches;
+		ScheduledExecutorService timer;
+		synchronized (this.batches) {
+			batches = new ArrayList<CoalescingBatch>(this.batches.values());
+			this.batches.clear();
+			timer = this.timer;
+			this.timer = null;
+		}
+		if (timer != null) {
+			// Notifications waiting for a retry are not delivered, but stay in the journal
+			timer.shutdownNow();
+		}
+		for (CoalescingBatch batch : batches) {
+			enqueue(batch.createTasks());
+		}
+	}
+	
+	private ScheduledExecutorService getTimer() {
+		// Guarded by batches
+		if (this.timer == null) {
+			this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "hipchat-dispatch-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return this.timer;
+	}
+	
+	// The task goes back to the queue once the delay is over, rather than hold on to a worker in the meantime
+	private boolean retry(final DispatchTask task, long delay) {
+		synchronized (this.batches) {
+			if (this.shutdown) {
+				logger.warn(String.format("Notification for room %s not retried, because the dispatcher is shut down", task.roomId));
+				return false;
+			}
+			getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					ThreadPoolExecutor executor = getExecutor();
+					try {
+						if (executor == null) {
+							throw new RejectedExecutionException();
+						}
+						executor.execute(task);
+					} catch (RejectedExecutionException e) {
+						droppedCount.incrementAndGet();
+						logger.error(String.format("Retry of notification for room %s dropped, because the dispatch queue is full or shut down", task.roomId));
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		logger.debug(String.format("Notification for room %s retried in %s ms", task.roomId, delay));
+		return true;
+	}
+	
+	// The entries are the rendered digest entries of the notifications
+	private HipChatRoomNotification createDigest(List<HipChatRoomNotification> notifications, List<String> entries) 
+			throws IOException, TemplateException {
+		StringBuilder message = new StringBuilder(renderDigestPart(HipChatNotificationMessageTemplates.DIGEST_HEADER_TEMPLATE, "count", notifications.size()));
+		boolean notify = false;
+		int severity = COLOUR_SEVERITY.length;
+		for (int i = 0; i < notifications.size(); i++) {
+			HipChatRoomNotification notification = notifications.get(i);
+			message.append(entries.get(i));
+			notify |= notification.notify;
+			for (int j = 0; j < severity; j++) {
+				if (COLOUR_SEVERITY[j].equals(notification.color)) {
+					severity = j;
+					break;
+				}
+			}
+		}
+		String colour = severity < COLOUR_SEVERITY.length ? COLOUR_SEVERITY[severity] : notifications.get(0).color;
+		return new HipChatRoomNotification(message.toString(), HipChatMessageFormat.HTML, colour, notify);
+	}
+	
+	private String renderDigestPart(String templateString, String key, Object value) throws IOException, TemplateException {
+		Template template = this.templateConfiguration.createTemplate(templateString);
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put(key, value);
+		StringWriter writer = new StringWriter();
+		template.process(model, writer);
+		return writer.toString();
+	}
+	
+	private boolean enqueue(List<DispatchTask> tasks) {
+		boolean enqueued = true;
+		for (DispatchTask task : tasks) {
+			enqueued &= enqueue(task);
+		}
+		return enqueued;
+	}
+	
+	private boolean enqueue(DispatchTask task) {
+		ThreadPoolExecutor executor = getExecutor();
+		if (executor == null) {
+			this.droppedCount.incrementAndGet();
+			logger.warn(String.format("Notification for room %s dropped, because the dispatcher is shut down", task.roomId));
+			return false;
+		}
+		try {
+			executor.execute(task);
+			this.enqueuedCount.incrementAndGet();
+			logger.debug(String.format("Notification for room %s queued (depth %s)", task.roomId, executor.getQueue().size()));
+			return true;
+		} catch (RejectedExecutionException e) {
+			this.droppedCount.incrementAndGet();
+			logger.error(String.format("Notification for room %s dropped, because the dispatch queue is full or shut down", task.roomId));
+			return false;
+		}
+	}
+	
+	// Null once the dispatcher has been shut down; it is never recreated
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (this.terminated) {
+			return null;
+		}
+		HipChatConfiguration configuration = this.configuration.getSnapshot();
+		int workers = configuration.getDispatchWorkers();
+		if (this.executor == null) {
+			// The capacity is fixed for the lifetime of the queue, i.e. a change requires a server restart
+			this.queueCapacity = configuration.getDispatchQueueCapacity();
+			this.executor = new ThreadPoolExecutor(workers, workers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(this.queueCapacity), new DispatchThreadFactory());
+			this.executor.allowCoreThreadTimeOut(true);
+			this.startTime = System.nanoTime();
+			this.busyNanos.set(0);
+			logger.info(String.format("Dispatch queue created: %s workers, capacity %s", workers, this.queueCapacity));
+		} else if (this.executor.getMaximumPoolSize() != workers) {
+			if (workers > this.executor.getMaximumPoolSize()) {
+				this.executor.setMaximumPoolSize(workers);
+				this.executor.setCorePoolSize(workers);
+			} else {
+				this.executor.setCorePoolSize(workers);
+				this.executor.setMaximumPoolSize(workers);
+			}
+			logger.info(String.format("Dispatch workers changed: %s", workers));
+		}
+		return this.executor;
+	}
+	
+	private void recordLatency(long latencyNanos) {
+		this.totalLatencyNanos.addAndGet(latencyNanos);
+		long max = this.maxLatencyNanos.get();
+		while (latencyNanos > max && !this.maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+			max = this.maxLatencyNanos.get();
+		}
+	}
+
+	private class DispatchTask implements Runnable {
+		
+		private List<Long> ids;
+		private HipChatRoomNotification notification;
+		private String roomId;
+		private long enqueueTime;
+		private HipChatDelivery delivery;
+		
+		public DispatchTask(long id, HipChatRoomNotification notification, String roomId) {
+			this(new ArrayList<Long>(), notification, roomId);
+			if (id != NOT_JOURNALED) {
+				this.ids.add(id);
+			}
+		}
+		
+		public DispatchTask(List<Long> ids, HipChatRoomNotification notification, String roomId) {
+			this.ids = ids;
+			this.notification = notification;
+			this.roomId = roomId;
+			this.enqueueTime = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			boolean finished = true;
+			try {
+				if (this.delivery == null) {
+					this.delivery = new HipChatDelivery(System.currentTimeMillis() + configuration.getSnapshot().getNotificationDeadline() * 1000L);
+				}
+				String status = processor.sendNotification(this.notification, this.roomId, this.delivery);
+				if (HipChatDelivery.RETRY.equals(status)) {
+					finished = !retry(this, this.delivery.getRetryDelay());
+				} else if (HipChatDelivery.DELIVERED.equals(status)) {
+					for (long id : this.ids) {
+						journal.acknowledge(id);
+					}
+				} else if (HipChatDelivery.REJECTED.equals(status)) {
+					// Replaying it would only be rejected again
+					logger.error(String.format("Notification for room %s discarded: %s; %s", this.roomId, this.delivery.getReason(), this.notification.message));
+					for (long id : this.ids) {
+						journal.acknowledge(id);
+					}
+				} else {
+					// Undelivered notifications stay in the journal and are replayed on the next start, up to a limit
+					for (long id : this.ids) {
+						int failures = journal.recordFailure(id);
+						if (failures >= MAX_DELIVERY_FAILURES) {
+							logger.error(String.format("Notification for room %s discarded after %s failed deliveries: %s", this.roomId, failures, this.notification.message));
+							journal.acknowledge(id);
+						}
+					}
+				}
+			} catch (Exception e) {
+				logger.error(String.format("Could not dispatch notification to room %s", this.roomId), e);
+			} finally {
+				long end = System.nanoTime();
+				busyNanos.addAndGet(end - start);
+				if (finished) {
+					recordLatency(end - this.enqueueTime);
+					dispatchedCount.incrementAndGet();
+					logger.debug(String.format("Notification for room %s dispatched after %s ms", this.roomId, TimeUnit.NANOSECONDS.toMillis(end - this.enqueueTime)));
+				}
+			}
+		}
+		
+	}
+	
+	private class CoalescingBatch {
+		
+		private String roomId;
+		private List<Long> ids = new ArrayList<Long>();
+		private List<HipChatRoomNotification> notifications = new ArrayList<HipChatRoomNotification>();
+		private ScheduledFuture<?> future;
+		
+		public CoalescingBatch(String roomId) {
+			this.roomId = roomId;
+		}
+		
+		public void add(long id, HipChatRoomNotification notification) {
+			this.ids.add(id);
+			this.notifications.add(notification);
+		}
+		
+		// Notifications are coalesced in order into as few digests as fit the message limit. Each entry is only 
+		// rendered once; the header is measured for the whole batch, which is at least as long as for part of it.
+		public List<DispatchTask> createTasks() {
+			List<DispatchTask> tasks = new ArrayList<DispatchTask>();
+			List<String> entries = new ArrayList<String>();
+			int headerLength;
+			try {
+				for (HipChatRoomNotification notification : this.notifications) {
+					entries.add(renderDigestPart(HipChatNotificationMessageTemplates.DIGEST_ENTRY_TEMPLATE, "message", notification.message));
+				}
+				headerLength = renderDigestPart(HipChatNotificationMessageTemplates.DIGEST_HEADER_TEMPLATE, "count", this.notifications.size()).length();
+			} catch (Exception e) {
+				logger.error(String.format("Could not create a digest for room %s", this.roomId), e);
+				addTasks(tasks, 0, this.notifications.size());
+				return tasks;
+			}
+			
+			int start = 0;
+			while (start < this.notifications.size()) {
+				int end = start + 1;
+				int length = headerLength + entries.get(start).length();
+				while (end < this.notifications.size() && length + entries.get(end).length() <= HipChatTemplateRenderer.MAX_MESSAGE_LENGTH) {
+					length += entries.get(end).length();
+					end++;
+				}
+				if (end - start == 1) {
+					addTasks(tasks, start, end);
+				} else {
+					try {
+						HipChatRoomNotification digest = createDigest(this.notifications.subList(start, end), entries.subList(start, end));
+						tasks.add(new DispatchTask(getIds(start, end), digest, this.roomId));
+						coalescedCount.addAndGet(end - start);
+						logger.debug(String.format("%s notifications for room %s coalesced into a digest", end - start, this.roomId));
+					} catch (Exception e) {
+						logger.error(String.format("Could not create a digest for room %s", this.roomId), e);
+						addTasks(tasks, start, end);
+					}
+				}
+				start = end;
+			}
+			return tasks;
+		}
+		
+		// Each notification is sent unchanged
+		private void addTasks(List<DispatchTask> tasks, int start, int end) {
+			for (int i = start; i < end; i++) {
+				tasks.add(new DispatchTask(getIds(i, i + 1), this.notifications.get(i), this.roomId));
+			}
+		}
+		
+		private List<Long> getIds(int start, int end) {
+			List<Long> ids = new ArrayList<Long>();
+			for (long id : this.ids.subList(start, end)) {
+				if (id != NOT_JOURNALED) {
+					ids.add(id);
+				}
+			}
+			return ids;
+		}
+		
+	}
+	
+	private static class DispatchThreadFactory implements ThreadFactory {
+		
+		private AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, String.format("hipchat-dispatcher-%s", this.threadCount.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		}
+		
+	}
+	
+}
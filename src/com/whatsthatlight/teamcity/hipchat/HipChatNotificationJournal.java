@@ -0,0 +1,472 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+// Append-only outbox of notifications that have not been delivered yet.
+// Each record is: length (int), CRC32 of the body (int), body. The body is a type (byte) and a notification ID (long), 
+// followed by the room, the notification and the failed attempts for entries, or the failed attempts for failures. 
+// Acknowledgements and failures may refer to entries in older segments.
+public class HipChatNotificationJournal {
+
+	public static final String OUTBOX_DIRECTORY = "outbox";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXTENSION = ".journal";
+	private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+	// Pending entries in older segments are copied forward when there are more segments than this
+	private static final int MAX_SEGMENTS = 4;
+	private static final int SYNC_BATCH_SIZE = 64;
+	private static final long SYNC_INTERVAL_MILLISECONDS = 200;
+	private static final byte ENTRY_RECORD = 1;
+	private static final byte ACKNOWLEDGEMENT_RECORD = 2;
+	private static final byte FAILURE_RECORD = 3;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	
+	private File directory;
+	private boolean opened;
+	private boolean closed;
+	private FileOutputStream segmentStream;
+	private FileChannel segmentChannel;
+	private long currentSegment;
+	private long nextId;
+	private int unsyncedRecords;
+	private boolean compacting;
+	private ScheduledExecutorService syncExecutor;
+	private List<HipChatJournalEntry> recoveredEntries;
+	
+	// Segment number to the number of entries in it that have not been acknowledged
+	private TreeMap<Long, Integer> segmentPendingCounts;
+	private Map<Long, Long> entrySegments;
+	private Map<Long, HipChatJournalEntry> pendingEntries;
+	
+	public HipChatNotificationJournal(@NotNull ServerPaths serverPaths) {
+		this(new File(new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY), OUTBOX_DIRECTORY));
+	}
+	
+	public HipChatNotificationJournal(@NotNull File directory) {
+		this.directory = directory;
+		this.segmentPendingCounts = new TreeMap<Long, Integer>();
+		this.entrySegments = new HashMap<Long, Long>();
+		this.pendingEntries = new LinkedHashMap<Long, HipChatJournalEntry>();
+		this.recoveredEntries = new ArrayList<HipChatJournalEntry>();
+	}
+	
+	// Returns the entries left over from a previous run, only once
+	public synchronized List<HipChatJournalEntry> recover() throws IOException {
+		open();
+		List<HipChatJournalEntry> entries = this.recoveredEntries;
+		this.recoveredEntries = new ArrayList<HipChatJournalEntry>();
+		return entries;
+	}
+	
+	public synchronized long append(String roomId, HipChatRoomNotification notification) throws IOException {
+		open();
+		HipChatJournalEntry entry = new HipChatJournalEntry(this.nextId++, roomId, notification);
+		writeEntry(entry);
+		return entry.getId();
+	}
+	
+	public synchronized void acknowledge(long id) throws IOException {
+		if (this.closed) {
+			// The entry is replayed after the restart instead
+			logger.debug(String.format("Acknowledgement of notification %s ignored, because the journal is closed", id));
+			return;
+		}
+		open();
+		Long segment = this.entrySegments.remove(id);
+		if (segment == null) {
+			return;
+		}
+		this.pendingEntries.remove(id);
+		this.segmentPendingCounts.put(segment, this.segmentPendingCounts.get(segment) - 1);
+		writeRecord(ACKNOWLEDGEMENT_RECORD, id, null);
+		if (segment.longValue() == this.segmentPendingCounts.firstKey().longValue()) {
+			compact();
+		}
+	}
+	
+	// Returns the number of failed attempts to deliver the entry so far, or 0 if it is not pending
+	public synchronized int recordFailure(long id) throws IOException {
+		if (this.closed) {
+			return 0;
+		}
+		open();
+		HipChatJournalEntry entry = this.pendingEntries.get(id);
+		if (entry == null) {
+			return 0;
+		}
+		int failures = entry.getFailures() + 1;
+		this.pendingEntries.put(id, new HipChatJournalEntry(id, entry.getRoomId(), entry.getNotification(), failures));
+		writeRecord(FAILURE_RECORD, id, ByteBuffer.allocate(4).putInt(failures).array());
+		return failures;
+	}
+	
+	public synchronized int getPendingCount() {
+		return this.pendingEntries.size();
+	}
+	
+	public synchronized int getSegmentCount() {
+		return this.segmentPendingCounts.size();
+	}
+	
+	public synchronized void sync() {
+		if (this.segmentChannel == null || this.unsyncedRecords == 0) {
+			return;
+		}
+		try {
+			this.segmentChannel.force(false);
+			this.unsyncedRecords = 0;
+		} catch (IOException e) {
+			logger.error("Could not sync notification journal", e);
+		}
+	}
+	
+	public void close() {
+		ScheduledExecutorService syncExecutor;
+		synchronized (this) {
+			syncExecutor = this.syncExecutor;
+			this.syncExecutor = null;
+			sync();
+			closeSegment();
+			this.opened = false;
+			// Never reopened, e.g. by a late acknowledgement, which would leave another sync thread behind
+			this.closed = true;
+			this.segmentPendingCounts.clear();
+			this.entrySegments.clear();
+			this.pendingEntries.clear();
+		}
+		if (syncExecutor != null) {
+			syncExecutor.shutdownNow();
+		}
+		logger.debug("Notification journal closed");
+	}
+	
+	private void open() throws IOException {
+		if (this.opened) {
+			return;
+		}
+		if (this.closed) {
+			throw new IOException("Notification journal is closed");
+		}
+		if (!this.directory.exists() && !this.directory.mkdirs()) {
+			throw new IOException(String.format("Could not create journal directory %s", this.directory));
+		}
+		
+		// Replay all segments in order, so that acknowledgements cancel the entries written before them
+		long lastSegment = -1;
+		long lastId = -1;
+		for (long segment : listSegments()) {
+			this.segmentPendingCounts.put(segment, 0);
+			lastId = Math.max(lastId, readSegment(segment));
+			lastSegment = segment;
+		}
+		this.nextId = lastId + 1;
+		this.recoveredEntries = new ArrayList<HipChatJournalEntry>(this.pendingEntries.values());
+		
+		// Never append to a segment from a previous run, as its tail may be torn
+		this.currentSegment = lastSegment + 1;
+		openSegment(this.currentSegment);
+		this.opened = true;
+		compact();
+		
+		this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hipchat-journal-sync");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.syncExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sync();
+			}
+		}, SYNC_INTERVAL_MILLISECONDS, SYNC_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+		logger.info(String.format("Notification journal opened: %s pending notifications recovered from %s", 
+				this.recoveredEntries.size(), this.directory));
+	}
+	
+	private List<Long> listSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = this.directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION);
+			}
+		});
+		if (names != null) {
+			for (String name : names) {
+				try {
+					segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length())));
+				} catch (NumberFormatException e) {
+					logger.warn(String.format("Ignoring unexpected journal file: %s", name));
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+	
+	private File getSegmentFile(long segment) {
+		return new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_EXTENSION));
+	}
+	
+	private long readSegment(long segment) throws IOException {
+		long lastId = -1;
+		File file = getSegmentFile(segment);
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			buffer.flip();
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) {
+					logger.warn(String.format("Journal segment %s ends with an incomplete record", file.getName()));
+					break;
+				}
+				byte[] body = new byte[length];
+				buffer.get(body);
+				if (checksum(body) != checksum) {
+					logger.warn(String.format("Journal segment %s contains a corrupt record; ignoring the rest of it", file.getName()));
+					break;
+				}
+				ByteBuffer record = ByteBuffer.wrap(body);
+				byte type = record.get();
+				long id = record.getLong();
+				lastId = Math.max(lastId, id);
+				if (type == ENTRY_RECORD) {
+					String roomId = getString(record);
+					String message = getString(record);
+					String messageFormat = getString(record);
+					String colour = getString(record);
+					boolean notify = record.get() != 0;
+					// Entries written before failures were counted end here
+					int failures = record.remaining() >= 4 ? record.getInt() : 0;
+					HipChatJournalEntry entry = new HipChatJournalEntry(id, roomId, new HipChatRoomNotification(message, messageFormat, colour, notify), failures);
+					// An entry may have been copied forward by compaction, in which case the newest copy wins
+					removePending(id);
+					addPending(entry, segment);
+				} else if (type == ACKNOWLEDGEMENT_RECORD) {
+					removePending(id);
+				} else if (type == FAILURE_RECORD) {
+					HipChatJournalEntry entry = this.pendingEntries.get(id);
+					if (entry != null) {
+						this.pendingEntries.put(id, new HipChatJournalEntry(id, entry.getRoomId(), entry.getNotification(), record.getInt()));
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return lastId;
+	}
+	
+	private void addPending(HipChatJournalEntry entry, long segment) {
+		this.pendingEntries.put(entry.getId(), entry);
+		this.entrySegments.put(entry.getId(), segment);
+		this.segmentPendingCounts.put(segment, this.segmentPendingCounts.get(segment) + 1);
+	}
+	
+	private void removePending(long id) {
+		Long segment = this.entrySegments.remove(id);
+		if (segment != null) {
+			this.pendingEntries.remove(id);
+			this.segmentPendingCounts.put(segment, this.segmentPendingCounts.get(segment) - 1);
+		}
+	}
+	
+	private void writeEntry(HipChatJournalEntry entry) throws IOException {
+		HipChatRoomNotification notification = entry.getNotification();
+		byte[][] fields = new byte[][] { 
+				getBytes(entry.getRoomId()), 
+				getBytes(notification.message), 
+				getBytes(notification.messageFormat), 
+				getBytes(notification.color) };
+		int size = 1 + 4;
+		for (byte[] field : fields) {
+			size += 4 + (field == null ? 0 : field.length);
+		}
+		ByteBuffer payload = ByteBuffer.allocate(size);
+		for (byte[] field : fields) {
+			putBytes(payload, field);
+		}
+		payload.put((byte) (notification.notify ? 1 : 0));
+		payload.putInt(entry.getFailures());
+		writeRecord(ENTRY_RECORD, entry.getId(), payload.array());
+		addPending(entry, this.currentSegment);
+	}
+	
+	private void writeRecord(byte type, long id, byte[] payload) throws IOException {
+		if (this.segmentChannel.size() >= MAX_SEGMENT_SIZE) {
+			rollSegment();
+		}
+		int length = 1 + 8 + (payload == null ? 0 : payload.length);
+		ByteBuffer body = ByteBuffer.allocate(length);
+		body.put(type);
+		body.putLong(id);
+		if (payload != null) {
+			body.put(payload);
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		record.putInt(length);
+		record.putInt(checksum(body.array()));
+		record.put(body.array());
+		record.flip();
+		while (record.hasRemaining()) {
+			this.segmentChannel.write(record);
+		}
+		
+		// Syncing every record would make journalling as expensive as the delivery itself, so batch them
+		if (++this.unsyncedRecords >= SYNC_BATCH_SIZE) {
+			sync();
+		}
+	}
+	
+	private void rollSegment() throws IOException {
+		sync();
+		closeSegment();
+		this.currentSegment++;
+		openSegment(this.currentSegment);
+		if (!this.compacting) {
+			compact();
+		}
+	}
+	
+	private void openSegment(long segment) throws IOException {
+		this.segmentStream = new FileOutputStream(getSegmentFile(segment), true);
+		this.segmentChannel = this.segmentStream.getChannel();
+		this.segmentPendingCounts.put(segment, 0);
+		logger.debug(String.format("Journal segment %s opened", segment));
+	}
+	
+	private void closeSegment() {
+		if (this.segmentStream != null) {
+			try {
+				this.segmentStream.close();
+			} catch (IOException e) {
+				logger.warn("Could not close journal segment", e);
+			}
+			this.segmentStream = null;
+			this.segmentChannel = null;
+		}
+	}
+	
+	// Segments can only be deleted oldest first, because acknowledgements in a segment may cancel entries in older ones
+	private void compact() throws IOException {
+		this.compacting = true;
+		try {
+			compactSegments();
+		} finally {
+			this.compacting = false;
+		}
+	}
+	
+	private void compactSegments() throws IOException {
+		while (this.segmentPendingCounts.size() > 1) {
+			long oldest = this.segmentPendingCounts.firstKey();
+			if (this.segmentPendingCounts.get(oldest) > 0) {
+				if (this.segmentPendingCounts.size() <= MAX_SEGMENTS) {
+					return;
+				}
+				
+				// A few undelivered notifications must not hold on to the whole segment, so copy them forward
+				List<HipChatJournalEntry> entries = new ArrayList<HipChatJournalEntry>();
+				for (Map.Entry<Long, Long> entrySegment : this.entrySegments.entrySet()) {
+					if (entrySegment.getValue().longValue() == oldest) {
+						entries.add(this.pendingEntries.get(entrySegment.getKey()));
+					}
+				}
+				for (HipChatJournalEntry entry : entries) {
+					removePending(entry.getId());
+					writeEntry(entry);
+				}
+				logger.debug(String.format("%s pending entries copied forward from journal segment %s", entries.size(), oldest));
+			}
+			
+			// What replaces the segment must be on disk before it goes
+			this.segmentChannel.force(false);
+			this.unsyncedRecords = 0;
+			this.segmentPendingCounts.remove(oldest);
+			if (!getSegmentFile(oldest).delete()) {
+				logger.warn(String.format("Could not delete journal segment %s", oldest));
+			}
+			logger.debug(String.format("Journal segment %s compacted", oldest));
+		}
+	}
+	
+	private static int checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+	
+	private static byte[] getBytes(String value) {
+		return value == null ? null : value.getBytes(UTF8);
+	}
+	
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+	
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+}
@@ -16,19 +16,34 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.ServerPaths;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
-import freemarker.cache.StringTemplateLoader;
-import freemarker.template.Configuration;
 import freemarker.template.Template;
 
 public class HipChatNotificationMessageTemplates {
@@ -78,23 +93,58 @@ public class HipChatNotificationMessageTemplates {
 	public static final String BUILD_INTERRUPTED_DEFAULT_TEMPLATE = "Build <a href=\"${serverUrl}/viewType.html?buildTypeId=${buildTypeId}\">${fullName}</a> <#if hasBranch>on branch <b>${branch}</b></#if> was cancelled. It was build number <a href=\"${serverUrl}/viewLog.html?buildId=${buildId}\">#${buildNumber}</a> and was cancelled by ${cancelledBy}. <img src=\"${emoticonUrl}\">";
 	public static final String SERVER_STARTUP_DEFAULT_TEMPLATE = "Build server started.";
 	public static final String SERVER_SHUTDOWN_DEFAULT_TEMPLATE = "Build server shutting down.";
+	// Coalesced notifications are sent as one digest: the header, then an entry per message, which is already rendered HTML
+	public static final String DIGEST_HEADER_TEMPLATE = "<b>${count} notifications</b>";
+	public static final String DIGEST_ENTRY_TEMPLATE = "<br/>${message}";
 		
 	public static final String STATS_PARAMETERS_PREFIX = "stats";
 	private static final String TEMPLATE_NAME_EXTENSION = ".ftl";
-	private Configuration config;
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+	private static final String TEMPLATE_ENCODING = "UTF-8";
+	private static final String HASH_ALGORITHM = "SHA-1";
+	// How often the template directory is checked for files edited outside the plugin
+	public static final long WATCH_INTERVAL_MILLISECONDS = 5000;
+	private static final String VERSION_ATTRIBUTE = "com.whatsthatlight.teamcity.hipchat.version";
+	// Every compilation gets a new version, so that output rendered from an older template is never reused
+	private static final AtomicLong compiledCount = new AtomicLong();
+	private static final String GLOBAL_TEMPLATE_OWNER = "";
+	private HipChatTemplateConfiguration config;
 	private String templateBasePathName;
 	private Map<TeamCityEvent, String> defaultTemplateCache;
 	private Map<TeamCityEvent, String> eventMap;
+	private Map<TeamCityEvent, File> templateFiles;
+	// Compiled templates, and the version of the file each was compiled from (0 for the default template)
+	private ConcurrentMap<TeamCityEvent, Template> templateCache;
+	private ConcurrentMap<TeamCityEvent, Long> templateVersions;
+	private ConcurrentMap<TeamCityEvent, Template> defaultTemplates;
+	// The content hash of each template file, and the version of the file it was computed for
+	private ConcurrentMap<TeamCityEvent, ContentHash> contentHashes;
+	private ScheduledExecutorService watcher;
+	private HipChatConfiguration configuration;
+	// The project whose override applies to each project and event, or the empty string when the global template does
+	private ConcurrentMap<ProjectTemplateKey, String> projectTemplateOwners;
+	// Compiled overrides, keyed by the project that defines them
+	private ConcurrentMap<ProjectTemplateKey, Template> projectTemplateCache;
+	// Incremented by each invalidation, so that an owner or a template looked up in an older snapshot is not kept
+	private long generation;
 
-	public HipChatNotificationMessageTemplates(@NotNull ServerPaths serverPaths) throws IOException {		
+	public HipChatNotificationMessageTemplates(@NotNull ServerPaths serverPaths) throws IOException {
+		this(serverPaths, new HipChatConfiguration());
+	}
+	
+	public HipChatNotificationMessageTemplates(@NotNull ServerPaths serverPaths, @NotNull HipChatConfiguration configuration) throws IOException {
+		this(serverPaths, configuration, new HipChatTemplateConfiguration());
+	}
+	
+	public HipChatNotificationMessageTemplates(@NotNull ServerPaths serverPaths, @NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatTemplateConfiguration templateConfiguration) throws IOException {		
 		// Template caching: http://fmpp.sourceforge.net/freemarker/pgui_config_templateloading.html
-		this.config = new Configuration();
+		this.config = templateConfiguration;
 		File templatePath = new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY);
 		if (!templatePath.exists()) {
 			templatePath.mkdir();
 		}
-		this.config.setDirectoryForTemplateLoading(templatePath);
-		this.config.setDefaultEncoding("UTF-8");
+		this.config.setTemplateDirectory(templatePath);
 		this.templateBasePathName = templatePath.getCanonicalPath();
 		logger.debug(String.format("Set \"%s\" as the template path", templateBasePathName));
 		
@@ -113,31 +163,269 @@ public class HipChatNotificationMessageTemplates {
 		this.eventMap.put(TeamCityEvent.BUILD_INTERRUPTED, BUILD_INTERRUPTED_TEMPLATE_KEY);
 		this.eventMap.put(TeamCityEvent.SERVER_STARTUP, SERVER_STARTUP_TEMPLATE_KEY);
 		this.eventMap.put(TeamCityEvent.SERVER_SHUTDOWN, SERVER_SHUTDOWN_TEMPLATE_KEY);
+		
+		this.templateFiles = new HashMap<TeamCityEvent, File>();
+		for (Map.Entry<TeamCityEvent, String> entry : this.eventMap.entrySet()) {
+			this.templateFiles.put(entry.getKey(), new File(getFullTemplatePath(this.templateBasePathName, entry.getValue())));
+		}
+		this.templateCache = new ConcurrentHashMap<TeamCityEvent, Template>();
+		this.templateVersions = new ConcurrentHashMap<TeamCityEvent, Long>();
+		this.defaultTemplates = new ConcurrentHashMap<TeamCityEvent, Template>();
+		this.contentHashes = new ConcurrentHashMap<TeamCityEvent, ContentHash>();
+		this.configuration = configuration;
+		this.projectTemplateOwners = new ConcurrentHashMap<ProjectTemplateKey, String>();
+		this.projectTemplateCache = new ConcurrentHashMap<ProjectTemplateKey, Template>();
 	}
 	
+	// Only the first read after a change touches the file system or parses the template
 	public Template readTemplate(TeamCityEvent event) throws IOException {
+		Template template = this.templateCache.get(event);
+		if (template != null) {
+			return template;
+		}
+		
 		String templateName = this.eventMap.get(event);
-		String fullPathName = getFullTemplatePath(this.templateBasePathName, templateName);
 		logger.debug(String.format("Reading template %s", templateName));
-		File fullPath = new File(fullPathName);
-		if (fullPath.exists()) {
-			return this.config.getTemplate(templateName + TEMPLATE_NAME_EXTENSION);
+		File fullPath = this.templateFiles.get(event);
+		// Record the version before reading, so that a change made meanwhile is picked up by the watcher
+		long version = getVersion(fullPath);
+		if (version != 0) {
+			template = prepare(this.config.getTemplate(templateName + TEMPLATE_NAME_EXTENSION));
+		} else {
+			template = readDefaultTemplate(event);
+		}
+		this.templateVersions.put(event, version);
+		this.templateCache.put(event, template);
+		startWatcher();
+		return template;
+	}
+	
+	public Template readTemplate(SProject project, TeamCityEvent event) throws IOException {
+		return this.readTemplate(this.configuration.getSnapshot(), project, event);
+	}
+	
+	// The template for a build in the project: its own override, its nearest ancestor's, or the global template.
+	// After the first build of each project and event this is two map lookups, without walking the hierarchy.
+	// What is worked out from the given snapshot of the configuration is only kept if the snapshot is still the 
+	// current one, as a change published before the generation was read would otherwise go unnoticed.
+	public Template readTemplate(HipChatConfiguration configuration, SProject project, TeamCityEvent event) throws IOException {
+		ProjectTemplateKey key = new ProjectTemplateKey(project.getProjectId(), event);
+		long generation;
+		synchronized (this) {
+			generation = this.generation;
+		}
+		boolean current = configuration == this.configuration.getSnapshot();
+		String ownerId = this.projectTemplateOwners.get(key);
+		if (ownerId == null) {
+			HipChatProjectConfiguration owner = Utils.findTemplateConfiguration(project, event, configuration);
+			ownerId = owner == null ? GLOBAL_TEMPLATE_OWNER : owner.getProjectId();
+			logger.debug(String.format("Template for %s in project %s: %s", event, project.getProjectId(), ownerId.length() == 0 ? "global" : ownerId));
+			if (current) {
+				this.put(this.projectTemplateOwners, key, ownerId, generation);
+			}
+		}
+		if (ownerId.length() == 0) {
+			return readTemplate(event);
+		}
+		
+		ProjectTemplateKey ownerKey = new ProjectTemplateKey(ownerId, event);
+		Template template = this.projectTemplateCache.get(ownerKey);
+		if (template != null) {
+			return template;
+		}
+		HipChatProjectConfiguration owner = configuration.getProjectConfiguration(ownerId);
+		String templateString = owner == null ? null : owner.getTemplate(event);
+		if (templateString == null) {
+			// The override was removed since it was resolved
+			this.projectTemplateOwners.remove(key);
+			return readTemplate(configuration, project, event);
+		}
+		template = prepare(createTemplate(templateString));
+		if (current) {
+			this.put(this.projectTemplateCache, ownerKey, template, generation);
+		}
+		return template;
+	}
+	
+	// A project's overrides changed, which may change what its subprojects inherit
+	public synchronized void invalidate(String projectId) {
+		logger.debug(String.format("Invalidating cached templates for project %s", projectId));
+		this.generation++;
+		this.projectTemplateOwners.clear();
+		for (TeamCityEvent event : TeamCityEvent.values()) {
+			this.projectTemplateCache.remove(new ProjectTemplateKey(projectId, event));
+		}
+	}
+	
+	// The project hierarchy or the whole configuration changed
+	public synchronized void invalidateProjects() {
+		logger.debug("Invalidating cached project templates");
+		this.generation++;
+		this.projectTemplateOwners.clear();
+		this.projectTemplateCache.clear();
+	}
+	
+	private synchronized <K, V> void put(Map<K, V> map, K key, V value, long generation) {
+		if (generation == this.generation) {
+			map.put(key, value);
+		}
+	}
+	
+	// The built-in template, which is also what a template that exceeds its render budget falls back to
+	public Template readDefaultTemplate(TeamCityEvent event) throws IOException {
+		Template template = this.defaultTemplates.get(event);
+		if (template == null) {
+			template = prepare(createTemplate(this.defaultTemplateCache.get(event)));
+			this.defaultTemplates.put(event, template);
+		}
+		return template;
+	}
+	
+	public HipChatTemplateAnalysis getTemplateAnalysis(TeamCityEvent event) throws IOException {
+		return HipChatTemplateAnalysis.of(readTemplate(event));
+	}
+	
+	// The version of a template compiled by readTemplate, or 0 for any other template
+	public static long getTemplateVersion(@NotNull Template template) {
+		Object version = template.getCustomAttribute(VERSION_ATTRIBUTE);
+		return version instanceof Long ? (Long) version : 0;
+	}
+	
+	public void invalidate(TeamCityEvent event) {
+		logger.debug(String.format("Invalidating cached template for %s", event));
+		this.templateVersions.remove(event);
+		this.templateCache.remove(event);
+		try {
+			this.config.removeTemplate(this.eventMap.get(event) + TEMPLATE_NAME_EXTENSION);
+		} catch (IOException e) {
+			logger.warn(String.format("Could not remove template for %s from the cache", event), e);
+		}
+	}
+	
+	// Invalidates the templates whose files were created, changed or deleted since they were compiled
+	public void checkForChanges() {
+		for (TeamCityEvent event : this.templateVersions.keySet()) {
+			Long cachedVersion = this.templateVersions.get(event);
+			if (cachedVersion != null && cachedVersion != getVersion(this.templateFiles.get(event))) {
+				logger.info(String.format("Template file for %s changed on disk", event));
+				invalidate(event);
+			}
+		}
+	}
+	
+	public synchronized void shutdown() {
+		if (this.watcher != null) {
+			this.watcher.shutdownNow();
+			this.watcher = null;
 		}
-		return createTemplate(this.defaultTemplateCache.get(event));		
+	}
+	
+	private synchronized void startWatcher() {
+		if (this.watcher != null) {
+			return;
+		}
+		
+		this.watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hipchat-template-watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.watcher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkForChanges();
+				} catch (Exception e) {
+					logger.error("Could not check template files for changes", e);
+				}
+			}
+		}, WATCH_INTERVAL_MILLISECONDS, WATCH_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+	}
+	
+	private static long getVersion(File file) {
+		// Zero when the file does not exist, which means the default template is in use
+		long lastModified = file.lastModified();
+		if (lastModified == 0) {
+			return 0;
+		}
+		return lastModified * 31 + file.length();
 	}
 
-	public void writeTemplate(TeamCityEvent event, String template) throws IOException {
-		String templateName = this.eventMap.get(event);
-		String fullPathName = getFullTemplatePath(this.templateBasePathName, templateName);
-		logger.debug(String.format("Writing template to %s", fullPathName));
-		File fullPath = new File(fullPathName);
-		if (!fullPath.exists()) {
-			fullPath.createNewFile();
+	// Writes the template only if its content changed, through a temporary file so that the watcher or a reader 
+	// never sees half a template. Only that event's compiled template is invalidated. Returns whether it was written.
+	public synchronized boolean writeTemplate(TeamCityEvent event, String template) throws IOException {
+		File fullPath = this.templateFiles.get(event);
+		String hash = hash(template.getBytes(TEMPLATE_ENCODING));
+		if (hash.equals(getContentHash(event))) {
+			logger.debug(String.format("Template %s is unchanged", fullPath));
+			return false;
+		}
+		
+		logger.debug(String.format("Writing template to %s", fullPath));
+		File temporaryFile = new File(fullPath.getPath() + TEMPORARY_EXTENSION);
+		OutputStream stream = new FileOutputStream(temporaryFile);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, TEMPLATE_ENCODING));
+			writer.write(template);
+			writer.close();
+		} finally {
+			stream.close();
+		}
+		if (!HipChatSnapshotFile.replace(temporaryFile, fullPath)) {
+			temporaryFile.delete();
+			throw new IOException(String.format("Could not replace template %s", fullPath));
+		}
+		invalidate(event);
+		this.contentHashes.put(event, new ContentHash(getVersion(fullPath), hash));
+		return true;
+	}
+	
+	// The hash of the template file's content, or null if there is no file
+	private String getContentHash(TeamCityEvent event) throws IOException {
+		File fullPath = this.templateFiles.get(event);
+		long version = getVersion(fullPath);
+		if (version == 0) {
+			return null;
+		}
+		// The file may have been edited outside the plugin since it was hashed
+		ContentHash contentHash = this.contentHashes.get(event);
+		if (contentHash == null || contentHash.version != version) {
+			contentHash = new ContentHash(version, hash(readFile(fullPath)));
+			this.contentHashes.put(event, contentHash);
+		}
+		return contentHash.hash;
+	}
+	
+	private static byte[] readFile(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[4096];
+			int length;
+			while ((length = stream.read(buffer)) >= 0) {
+				content.write(buffer, 0, length);
+			}
+			return content.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+	
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(content);
+			StringBuilder hash = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-1
+			throw new IllegalStateException(e);
 		}
-		FileWriter fileWriter = new FileWriter(fullPath);
-		fileWriter.write(template);
-		fileWriter.flush();
-		fileWriter.close();
 	}
 
 	private static String getFullTemplatePath(String path, String templateName) throws IOException {
@@ -145,22 +433,59 @@ public class HipChatNotificationMessageTemplates {
 		return filePath.getCanonicalPath();
 	}
 
-	private static Template createTemplate(String templateString) throws IOException {
-		String templateName = "template";
-		StringTemplateLoader loader = new StringTemplateLoader();
-		loader.putTemplate(templateName, templateString);
-		Configuration config = new Configuration();
-		config.setTemplateLoader(loader);
-		return config.getTemplate(templateName);
+	private Template createTemplate(String templateString) throws IOException {
+		return this.config.createTemplate(templateString);
 	}
 	
-	public static boolean validateTemplate(String templateString) {
-		try {
-			createTemplate(templateString);
-			return true;
-		} catch (IOException e) {
-			logger.debug(e);
-			return false;
+	// Analyses the compiled template once, so that renders only look up what it uses, and skip FreeMarker if it is simple.
+	// Templates with the same content are shared, and so keep the version they were first given.
+	private static Template prepare(Template template) {
+		HipChatTemplateAnalysis.of(template);
+		HipChatSimpleTemplate.of(template);
+		synchronized (template) {
+			if (getTemplateVersion(template) == 0) {
+				template.setCustomAttribute(VERSION_ATTRIBUTE, compiledCount.incrementAndGet());
+			}
+		}
+		return template;
+	}
+	
+	private static class ContentHash {
+		
+		private long version;
+		private String hash;
+		
+		public ContentHash(long version, String hash) {
+			this.version = version;
+			this.hash = hash;
+		}
+		
+	}
+	
+	private static class ProjectTemplateKey {
+		
+		private String projectId;
+		private TeamCityEvent event;
+		
+		public ProjectTemplateKey(String projectId, TeamCityEvent event) {
+			this.projectId = projectId;
+			this.event = event;
 		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * this.projectId.hashCode() + this.event.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof ProjectTemplateKey)) {
+				return false;
+			}
+			ProjectTemplateKey otherKey = (ProjectTemplateKey) other;
+			return this.event == otherKey.event && this.projectId.equals(otherKey.projectId);
+		}
+		
 	}
+	
 }
@@ -16,6 +16,10 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 @XStreamAlias(HipChatConfiguration.PROJECT_ROOM_KEY)
@@ -30,12 +34,26 @@ public class HipChatProjectConfiguration {
 	@XStreamAlias(HipChatConfiguration.NOTIFY_STATUS_KEY)
 	private boolean notify;
 	
+	// Template overrides, keyed by event name; absent when the project inherits all its templates
+	@XStreamAlias(HipChatConfiguration.PROJECT_TEMPLATES_KEY)
+	private TreeMap<String, String> templates;
+
+	// Changes are reported to the configuration this is part of, so that its snapshot is taken again
+	private transient HipChatConfiguration owner;
+	
+	private transient boolean frozen;
+	
 	public HipChatProjectConfiguration(String projectId, String roomId, boolean notifyStatus) {
 		this.projectId = projectId;
 		this.roomId = roomId;
 		this.notify = notifyStatus;
 	}
 	
+	public HipChatProjectConfiguration(HipChatProjectConfiguration projectConfiguration) {
+		this(projectConfiguration.projectId, projectConfiguration.roomId, projectConfiguration.notify);
+		this.setTemplates(projectConfiguration.templates);
+	}
+	
 	public String getProjectId() {
 		return this.projectId;
 	}
@@ -45,7 +63,9 @@ public class HipChatProjectConfiguration {
 	}
 
 	public void setRoomId(String roomId) {
+		this.checkMutable();
 		this.roomId = roomId;
+		this.changed();
 	}
 	
 	public boolean getNotifyStatus() {
@@ -53,6 +73,63 @@ public class HipChatProjectConfiguration {
 	}
 	
 	public void setNotifyStatus(boolean status) {
+		this.checkMutable();
 		this.notify = status;
+		this.changed();
+	}
+	
+	// The project's own template for the event, or null if it is inherited
+	public String getTemplate(TeamCityEvent event) {
+		return this.templates == null ? null : this.templates.get(event.name());
+	}
+	
+	public void setTemplate(TeamCityEvent event, String template) {
+		this.checkMutable();
+		if (template == null || template.trim().length() == 0) {
+			if (this.templates != null) {
+				this.templates.remove(event.name());
+				if (this.templates.isEmpty()) {
+					this.templates = null;
+				}
+			}
+		} else {
+			if (this.templates == null) {
+				this.templates = new TreeMap<String, String>();
+			}
+			this.templates.put(event.name(), template);
+		}
+		this.changed();
+	}
+	
+	public Map<String, String> getTemplates() {
+		return this.frozen && this.templates != null ? Collections.unmodifiableMap(this.templates) : this.templates;
 	}
+	
+	public void setTemplates(Map<String, String> templates) {
+		this.checkMutable();
+		this.templates = templates == null || templates.isEmpty() ? null : new TreeMap<String, String>(templates);
+		this.changed();
+	}
+	
+
+	void setOwner(HipChatConfiguration owner) {
+		this.owner = owner;
+	}
+	
+	void freeze() {
+		this.frozen = true;
+	}
+	
+	private void checkMutable() {
+		if (this.frozen) {
+			throw new UnsupportedOperationException("A configuration snapshot cannot be changed");
+		}
+	}
+	
+	private void changed() {
+		if (this.owner != null) {
+			this.owner.changed();
+		}
+	}
+
 }
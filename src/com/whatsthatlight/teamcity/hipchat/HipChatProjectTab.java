@@ -36,7 +36,7 @@ public class HipChatProjectTab extends ProjectTab {
 	private static final String PAGE = "projectSettings.jsp";
 	private static final String ROOM_ID_LIST = "roomIdList";
 	private HipChatConfiguration configuration;
-	private HipChatApiProcessor processor;
+	private HipChatRoomCache roomCache;
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
 	
 	public HipChatProjectTab(
@@ -44,10 +44,10 @@ public class HipChatProjectTab extends ProjectTab {
 			@NotNull ProjectManager projectManager,
 			@NotNull PluginDescriptor descriptor,
 			@NotNull HipChatConfiguration configuration,
-			@NotNull HipChatApiProcessor processor) {
+			@NotNull HipChatRoomCache roomCache) {
 		super("hipChat", "HipChat", pagePlaces, projectManager, descriptor.getPluginResourcesPath(PAGE));
 		this.configuration = configuration;
-		this.processor = processor;
+		this.roomCache = roomCache;
 		logger.info("Project configuration page registered");
 	}
 
@@ -56,7 +56,7 @@ public class HipChatProjectTab extends ProjectTab {
 		// Do we need this? It seems to create an infinite loop and a stack overflow: super.fillModel(model, request);
 		String projectId = project.getProjectId();
 		model.put(HipChatConfiguration.PROJECT_ID_KEY, projectId);
-		TreeMap<String, String> rooms = Utils.getRooms(this.processor);
+		TreeMap<String, String> rooms = this.roomCache.getRooms();
 		model.put(ROOM_ID_LIST, rooms);
 		boolean isRootProject = Utils.isRootProject(project);
 		HipChatProjectConfiguration projectConfiguration = this.configuration.getProjectConfiguration(projectId);
@@ -71,6 +71,11 @@ public class HipChatProjectTab extends ProjectTab {
 			model.put(HipChatConfiguration.NOTIFY_STATUS_KEY, configuration.getDefaultNotifyStatus());			
 		}
 		model.put(HipChatConfiguration.IS_ROOT_PROJECT_KEY, isRootProject);
+		// The project's own template overrides; empty when inherited
+		for (Map.Entry<TeamCityEvent, String> entry : HipChatConfigurationController.PROJECT_TEMPLATE_KEYS.entrySet()) {
+			String template = projectConfiguration != null ? projectConfiguration.getTemplate(entry.getKey()) : null;
+			model.put(entry.getValue(), template != null ? template : "");
+		}
 		logger.debug("Configuration page variables populated");
 	}
 
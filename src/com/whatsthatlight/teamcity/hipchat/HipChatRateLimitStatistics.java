@@ -0,0 +1,69 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatRateLimitStatistics {
+
+	private int limit;
+	private int remaining;
+	private long secondsUntilReset;
+	private long throttledMilliseconds;
+	private long throttledRequests;
+	private long rateLimitedResponses;
+	
+	public HipChatRateLimitStatistics(int limit, int remaining, long secondsUntilReset, long throttledMilliseconds, 
+			long throttledRequests, long rateLimitedResponses) {
+		this.limit = limit;
+		this.remaining = remaining;
+		this.secondsUntilReset = secondsUntilReset;
+		this.throttledMilliseconds = throttledMilliseconds;
+		this.throttledRequests = throttledRequests;
+		this.rateLimitedResponses = rateLimitedResponses;
+	}
+	
+	public int getLimit() {
+		return this.limit;
+	}
+
+	public int getRemaining() {
+		return this.remaining;
+	}
+
+	public long getSecondsUntilReset() {
+		return this.secondsUntilReset;
+	}
+
+	public long getThrottledMilliseconds() {
+		return this.throttledMilliseconds;
+	}
+
+	public long getThrottledRequests() {
+		return this.throttledRequests;
+	}
+
+	// Number of 429 Too Many Requests responses received
+	public long getRateLimitedResponses() {
+		return this.rateLimitedResponses;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Budget: %s/%s (reset in %s s)\nThrottled: %s requests, %s ms\nRate limited responses: %s", 
+				remaining, limit, secondsUntilReset, throttledRequests, throttledMilliseconds, rateLimitedResponses);
+	}
+
+}
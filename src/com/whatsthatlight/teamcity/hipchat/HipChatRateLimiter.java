@@ -0,0 +1,119 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HipChatRateLimiter {
+
+	// HipChat allows 100 requests per token per 5 minutes, unless the response headers tell us otherwise
+	public static final int DEFAULT_LIMIT = 100;
+	public static final long WINDOW_MILLISECONDS = 300000;
+	
+	// Once less than this fraction of the budget is left, the remaining requests are spread out until the reset
+	private static final double PACING_THRESHOLD = 0.25;
+	
+	private int limit;
+	private int remaining;
+	private long resetTime;
+	private long nextSendTime;
+	private AtomicLong throttledMilliseconds = new AtomicLong();
+	private AtomicLong throttledRequestCount = new AtomicLong();
+	private AtomicLong rateLimitedResponseCount = new AtomicLong();
+	
+	public HipChatRateLimiter() {
+		this.limit = DEFAULT_LIMIT;
+		this.remaining = DEFAULT_LIMIT;
+		this.resetTime = 0;
+		this.nextSendTime = 0;
+	}
+	
+	// Reserves the next send slot and returns how long the caller must wait before using it
+	public long reserve() {
+		long now = currentTimeMillis();
+		long delay;
+		synchronized (this) {
+			long sendTime = Math.max(now, this.nextSendTime);
+			if (this.remaining <= 0) {
+				sendTime = Math.max(sendTime, this.resetTime);
+			}
+			if (sendTime >= this.resetTime) {
+				this.remaining = this.limit;
+				this.resetTime = sendTime + WINDOW_MILLISECONDS;
+			}
+			this.remaining--;
+			long interval = 0;
+			if (this.remaining < this.limit * PACING_THRESHOLD) {
+				interval = (this.resetTime - sendTime) / (this.remaining + 1);
+			}
+			this.nextSendTime = sendTime + interval;
+			delay = sendTime - now;
+		}
+		if (delay > 0) {
+			this.throttledMilliseconds.addAndGet(delay);
+			this.throttledRequestCount.incrementAndGet();
+		}
+		return delay;
+	}
+	
+	// The server is the authority on the budget, so whatever it reports replaces our own estimate
+	public synchronized void update(Integer limit, Integer remaining, Long resetEpochSeconds) {
+		if (limit != null && limit > 0) {
+			this.limit = limit;
+		}
+		if (remaining != null && remaining >= 0) {
+			this.remaining = Math.min(remaining, this.limit);
+		}
+		if (resetEpochSeconds != null && resetEpochSeconds > 0) {
+			this.resetTime = resetEpochSeconds * 1000;
+		}
+	}
+	
+	public void rateLimited(Long resetEpochSeconds) {
+		this.rateLimitedResponseCount.incrementAndGet();
+		synchronized (this) {
+			this.remaining = 0;
+			if (resetEpochSeconds != null && resetEpochSeconds > 0) {
+				this.resetTime = resetEpochSeconds * 1000;
+			} else {
+				this.resetTime = Math.max(this.resetTime, currentTimeMillis() + WINDOW_MILLISECONDS);
+			}
+		}
+	}
+	
+	public HipChatRateLimitStatistics getStatistics() {
+		long now = currentTimeMillis();
+		int limit;
+		int remaining;
+		long resetTime;
+		synchronized (this) {
+			limit = this.limit;
+			remaining = this.remaining;
+			resetTime = this.resetTime;
+		}
+		if (now >= resetTime) {
+			remaining = limit;
+		}
+		return new HipChatRateLimitStatistics(limit, remaining, Math.max(0, resetTime - now) / 1000, 
+				this.throttledMilliseconds.get(), this.throttledRequestCount.get(), this.rateLimitedResponseCount.get());
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.Map;
+
+public class HipChatRenderStatistics {
+
+	private int cachedMessages;
+	private long hits;
+	private long misses;
+	private long truncated;
+	private Map<TeamCityEvent, Long> overruns;
+	
+	public HipChatRenderStatistics(int cachedMessages, long hits, long misses, long truncated, Map<TeamCityEvent, Long> overruns) {
+		this.cachedMessages = cachedMessages;
+		this.hits = hits;
+		this.misses = misses;
+		this.truncated = truncated;
+		this.overruns = overruns;
+	}
+	
+	public int getCachedMessages() {
+		return this.cachedMessages;
+	}
+	
+	public long getHits() {
+		return this.hits;
+	}
+	
+	public long getMisses() {
+		return this.misses;
+	}
+	
+	public long getTruncated() {
+		return this.truncated;
+	}
+	
+	// Renders abandoned for the default template, because they exceeded the render budget
+	public Map<TeamCityEvent, Long> getOverruns() {
+		return this.overruns;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Cached messages: %s\nHits: %s, misses: %s\nTruncated: %s\nBudget overruns: %s", 
+				cachedMessages, hits, misses, truncated, overruns);
+	}
+
+}
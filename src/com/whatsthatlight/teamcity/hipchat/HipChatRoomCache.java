@@ -0,0 +1,172 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+
+public class HipChatRoomCache {
+
+	// Rooms rarely change, and walking the whole directory takes several seconds for large organisations
+	public static final long TIME_TO_LIVE_MILLISECONDS = 600000;
+	public static final long RETRY_MILLISECONDS = 60000;
+	private static final String SNAPSHOT_FILE = "rooms.json";
+	
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatApiProcessor processor;
+	private ExecutorService executor;
+	private AtomicBoolean refreshing = new AtomicBoolean();
+	private HipChatSnapshotFile snapshot;
+	// The snapshot is replaced as a whole and never modified, so readers need no locking
+	private volatile TreeMap<String, String> rooms = new TreeMap<String, String>();
+	private volatile long lastLoaded;
+	private volatile long nextRefresh;
+	
+	public HipChatRoomCache(@NotNull HipChatApiProcessor processor) {
+		this(processor, (HipChatSnapshotFile) null);
+	}
+	
+	public HipChatRoomCache(@NotNull HipChatApiProcessor processor, @NotNull ServerPaths serverPaths) {
+		this(processor, new HipChatSnapshotFile(new File(new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY), SNAPSHOT_FILE)));
+	}
+	
+	public HipChatRoomCache(@NotNull HipChatApiProcessor processor, HipChatSnapshotFile snapshot) {
+		this.processor = processor;
+		this.snapshot = snapshot;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "hipchat-room-cache");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	// Never waits on the HipChat API; a stale snapshot is served while it is refreshed in the background
+	public TreeMap<String, String> getRooms() {
+		if (currentTimeMillis() >= this.nextRefresh) {
+			this.refresh();
+		}
+		
+		return this.rooms;
+	}
+	
+	public boolean refresh() {
+		if (!this.refreshing.compareAndSet(false, true)) {
+			return false;
+		}
+		
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reload();
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.refreshing.set(false);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	// Serves the rooms from the previous run; the snapshot is due for revalidation straight away
+	public int load() {
+		if (this.snapshot == null) {
+			return 0;
+		}
+		
+		TreeMap<String, String> rooms = this.snapshot.read();
+		if (rooms == null) {
+			return 0;
+		}
+		
+		this.rooms = rooms;
+		this.lastLoaded = this.snapshot.lastModified();
+		logger.info(String.format("Room directory loaded from snapshot: %s", rooms.size()));
+		return rooms.size();
+	}
+	
+	public int reload() {
+		logger.debug("Reloading room directory");
+		TreeMap<String, String> rooms = null;
+		try {
+			rooms = Utils.getRooms(this.processor);
+		} catch (Exception e) {
+			logger.error("Could not reload room directory", e);
+		}
+		
+		long now = currentTimeMillis();
+		if (rooms == null) {
+			logger.warn(String.format("Room directory not reloaded; keeping %s cached rooms", this.rooms.size()));
+			this.nextRefresh = now + RETRY_MILLISECONDS;
+			return -1;
+		}
+		
+		boolean changed = !rooms.equals(this.rooms);
+		this.rooms = rooms;
+		this.lastLoaded = now;
+		if (changed && this.snapshot != null) {
+			this.snapshot.write(rooms);
+		}
+		this.nextRefresh = now + TIME_TO_LIVE_MILLISECONDS;
+		logger.info(String.format("Room directory reloaded: %s", rooms.size()));
+		return rooms.size();
+	}
+	
+	public int getSize() {
+		return this.rooms.size();
+	}
+	
+	public boolean isRefreshing() {
+		return this.refreshing.get();
+	}
+	
+	// Negative until the directory has been loaded once
+	public long getSecondsSinceReload() {
+		if (this.lastLoaded == 0) {
+			return -1;
+		}
+		
+		return (currentTimeMillis() - this.lastLoaded) / 1000;
+	}
+	
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+}
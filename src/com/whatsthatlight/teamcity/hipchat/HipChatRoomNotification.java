@@ -16,11 +16,16 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.io.IOException;
+
 import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
 
 // See: https://www.hipchat.com/docs/apiv2/method/send_room_notification
 public class HipChatRoomNotification {
 
+	private static final ObjectMapper mapper = new ObjectMapper();
+
 	@JsonProperty("color")
 	public String color;
 
@@ -33,6 +38,13 @@ public class HipChatRoomNotification {
 	@JsonProperty("notify")
 	public boolean notify;
 
+	// The request body, and the fields it was serialised from, so that all rooms and retries share one serialisation
+	private String json;
+	private String jsonMessage;
+	private String jsonMessageFormat;
+	private String jsonColor;
+	private boolean jsonNotify;
+
 	public HipChatRoomNotification(String message, String messageFormat, String color, boolean notify) {
 		this.message = message;
 		this.messageFormat = messageFormat;
@@ -40,6 +52,18 @@ public class HipChatRoomNotification {
 		this.notify = notify;
 	}
 
+	public synchronized String toJson() throws IOException {
+		if (this.json == null || this.jsonMessage != this.message || this.jsonMessageFormat != this.messageFormat || 
+				this.jsonColor != this.color || this.jsonNotify != this.notify) {
+			this.jsonMessage = this.message;
+			this.jsonMessageFormat = this.messageFormat;
+			this.jsonColor = this.color;
+			this.jsonNotify = this.notify;
+			this.json = mapper.writeValueAsString(this);
+		}
+		return this.json;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Message: '%s'\nFormat: %s\nColor: %s\nNotify: %s", message, messageFormat, color, notify);
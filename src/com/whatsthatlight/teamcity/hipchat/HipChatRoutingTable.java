@@ -0,0 +1,139 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+// The room and notify status that each project's build events go to, after inheriting from parent projects and 
+// resolving the default room. A route is worked out on the first event of a project, and only worked out again 
+// when a project it was derived from changes.
+public class HipChatRoutingTable {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatConfiguration configuration;
+	private ConcurrentMap<String, Route> routes;
+	// Incremented by each invalidation, so that a route worked out meanwhile is not kept
+	private long generation;
+	
+	public HipChatRoutingTable(@NotNull HipChatConfiguration configuration) {
+		this.configuration = configuration;
+		this.routes = new ConcurrentHashMap<String, Route>();
+	}
+	
+	// The room ID is null if the project's events are not sent anywhere
+	public HipChatProjectConfiguration getRoute(@NotNull SProject project) {
+		return this.getRoute(project, this.configuration.getSnapshot());
+	}
+	
+	// A route that is not known yet is worked out from the given snapshot of the configuration.
+	// It is only kept if the snapshot is still the current one, as a change published before the generation 
+	// was read would otherwise go unnoticed.
+	public HipChatProjectConfiguration getRoute(@NotNull SProject project, @NotNull HipChatConfiguration configuration) {
+		Route route = this.routes.get(project.getProjectId());
+		if (route != null) {
+			return route.destination;
+		}
+		
+		long generation;
+		synchronized (this) {
+			generation = this.generation;
+		}
+		route = this.resolve(project, configuration);
+		if (configuration != this.configuration.getSnapshot()) {
+			return route.destination;
+		}
+		synchronized (this) {
+			if (generation == this.generation) {
+				this.routes.put(project.getProjectId(), route);
+			}
+		}
+		return route.destination;
+	}
+	
+	// The project's configuration changed, was created, moved or deleted; routes derived from it are worked out again
+	public synchronized void invalidate(@NotNull String projectId) {
+		this.generation++;
+		int removed = 0;
+		for (Iterator<Map.Entry<String, Route>> iterator = this.routes.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, Route> entry = iterator.next();
+			if (entry.getKey().equals(projectId) || entry.getValue().projectIds.contains(projectId)) {
+				iterator.remove();
+				removed++;
+			}
+		}
+		logger.debug(String.format("Invalidated %s routes derived from project %s", removed, projectId));
+	}
+	
+	// The default room or notify status changed, or the whole configuration was loaded
+	public synchronized void invalidate() {
+		this.generation++;
+		this.routes.clear();
+		logger.debug("Invalidated all routes");
+	}
+	
+	public int size() {
+		return this.routes.size();
+	}
+	
+	private Route resolve(SProject project, HipChatConfiguration configuration) {
+		Set<String> projectIds = new HashSet<String>();
+		HipChatProjectConfiguration projectConfiguration = Utils.determineProjectConfiguration(project, configuration, projectIds);
+		String roomId = projectConfiguration.getRoomId();
+		boolean notify = projectConfiguration.getNotifyStatus();
+		if (!Utils.IsRoomIdNullOrNone(roomId)) {
+			if (roomId.equals(HipChatConfiguration.ROOM_ID_DEFAULT_VALUE)) {
+				roomId = configuration.getDefaultRoomId();
+			} else if (roomId.equals(HipChatConfiguration.ROOM_ID_PARENT_VALUE)) {
+				HipChatProjectConfiguration parentProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration, projectIds);
+				if (parentProjectConfiguration != null) {
+					logger.debug("Using specific configuration in hierarchy determined implicitly");
+					roomId = parentProjectConfiguration.getRoomId();
+					notify = parentProjectConfiguration.getNotifyStatus();
+				}
+			}
+		}
+		if (Utils.IsRoomIdNullOrNone(roomId)) {
+			roomId = null;
+		}
+		
+		logger.debug(String.format("Route for project %s: %s, %s (derived from %s)", project.getProjectId(), roomId, notify, projectIds));
+		return new Route(new HipChatProjectConfiguration(project.getProjectId(), roomId, notify), projectIds);
+	}
+	
+	private static class Route {
+		
+		private HipChatProjectConfiguration destination;
+		private Set<String> projectIds;
+		
+		public Route(HipChatProjectConfiguration destination, Set<String> projectIds) {
+			this.destination = destination;
+			this.projectIds = projectIds;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,254 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateBooleanModel;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
+
+// A template made of nothing but text, ${variable} interpolations and <#if variable> blocks, like the default templates.
+// It is compiled once into a list of segments, and rendered by appending them without setting up a FreeMarker environment.
+// Anything else, including values FreeMarker would format or reject, is left to FreeMarker.
+public class HipChatSimpleTemplate {
+
+	private static final String SIMPLE_TEMPLATE_ATTRIBUTE = "com.whatsthatlight.teamcity.hipchat.simple";
+	private static final String NOT_SIMPLE = "none";
+	private static final Pattern TOKEN_PATTERN = Pattern.compile(
+			"\\$\\{\\s*([A-Za-z_][\\w]*)\\s*\\}|<#if\\s+(!?)\\s*([A-Za-z_][\\w]*)\\s*>|<#else\\s*>|</#if\\s*>");
+	// Markup the fast path does not understand
+	private static final Pattern FREEMARKER_PATTERN = Pattern.compile("\\$\\{|#\\{|</?[#@]|\\[/?[#@]");
+	
+	private List<Segment> segments;
+	// Number formats are not thread safe, and expensive to create for every render
+	private ThreadLocal<NumberFormat> numberFormats;
+	
+	private HipChatSimpleTemplate(List<Segment> segments) {
+		this.segments = segments;
+	}
+	
+	// Returns null unless the whole template is simple
+	public static HipChatSimpleTemplate compile(@NotNull String templateString) {
+		List<List<Segment>> blocks = new ArrayList<List<Segment>>();
+		List<Conditional> conditionals = new ArrayList<Conditional>();
+		List<Segment> segments = new ArrayList<Segment>();
+		Matcher matcher = TOKEN_PATTERN.matcher(templateString);
+		int position = 0;
+		while (matcher.find()) {
+			String text = templateString.substring(position, matcher.start());
+			if (FREEMARKER_PATTERN.matcher(text).find()) {
+				return null;
+			}
+			if (text.length() > 0) {
+				segments.add(new Literal(text));
+			}
+			position = matcher.end();
+			
+			String token = matcher.group();
+			if (matcher.group(1) != null) {
+				segments.add(new Variable(matcher.group(1)));
+			} else if (matcher.group(3) != null) {
+				Conditional conditional = new Conditional(matcher.group(3), matcher.group(2).length() > 0);
+				segments.add(conditional);
+				conditionals.add(conditional);
+				blocks.add(segments);
+				segments = conditional.whenTrue;
+			} else if (token.startsWith("<#else")) {
+				if (conditionals.isEmpty() || segments != conditionals.get(conditionals.size() - 1).whenTrue) {
+					return null;
+				}
+				segments = conditionals.get(conditionals.size() - 1).whenFalse;
+			} else {
+				if (conditionals.isEmpty()) {
+					return null;
+				}
+				conditionals.remove(conditionals.size() - 1);
+				segments = blocks.remove(blocks.size() - 1);
+			}
+		}
+		String text = templateString.substring(position);
+		if (!conditionals.isEmpty() || FREEMARKER_PATTERN.matcher(text).find()) {
+			return null;
+		}
+		if (text.length() > 0) {
+			segments.add(new Literal(text));
+		}
+		return new HipChatSimpleTemplate(segments);
+	}
+	
+	// Returns the simple form stored with a compiled template, or compiles it now; null if the template is not simple
+	public static HipChatSimpleTemplate of(@NotNull final Template template) {
+		Object simpleTemplate = template.getCustomAttribute(SIMPLE_TEMPLATE_ATTRIBUTE);
+		if (simpleTemplate == null) {
+			// The canonical form has the same output as the source, with white-space already stripped
+			HipChatSimpleTemplate newSimpleTemplate = compile(template.toString());
+			if (newSimpleTemplate != null && "number".equals(template.getNumberFormat())) {
+				// The format FreeMarker uses by default, see: http://freemarker.org/docs/ref_directive_setting.html
+				newSimpleTemplate.numberFormats = new ThreadLocal<NumberFormat>() {
+					@Override
+					protected NumberFormat initialValue() {
+						return NumberFormat.getNumberInstance(template.getLocale());
+					}
+				};
+			}
+			simpleTemplate = newSimpleTemplate == null ? NOT_SIMPLE : newSimpleTemplate;
+			template.setCustomAttribute(SIMPLE_TEMPLATE_ATTRIBUTE, simpleTemplate);
+		}
+		return simpleTemplate instanceof HipChatSimpleTemplate ? (HipChatSimpleTemplate) simpleTemplate : null;
+	}
+	
+	// Returns false, possibly after partial output, if the data model needs FreeMarker after all
+	public boolean render(@NotNull Object dataModel, @NotNull Writer writer) throws TemplateModelException, IOException {
+		if (!(dataModel instanceof Map<?, ?>) && !(dataModel instanceof TemplateHashModel)) {
+			return false;
+		}
+		NumberFormat numberFormat = this.numberFormats == null ? null : this.numberFormats.get();
+		return render(this.segments, new Context(dataModel, writer, numberFormat));
+	}
+	
+	public int getSegmentCount() {
+		return this.segments.size();
+	}
+	
+	private static boolean render(List<Segment> segments, Context context) throws TemplateModelException, IOException {
+		for (Segment segment : segments) {
+			if (!segment.render(context)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static class Context {
+		
+		private Object model;
+		private Writer writer;
+		private NumberFormat numberFormat;
+		
+		public Context(Object model, Writer writer, NumberFormat numberFormat) {
+			this.model = model;
+			this.writer = writer;
+			this.numberFormat = numberFormat;
+		}
+		
+		// Plain maps are read directly, rather than wrapped into a copy as FreeMarker does
+		public Object get(String name) throws TemplateModelException {
+			if (this.model instanceof Map<?, ?>) {
+				return ((Map<?, ?>) this.model).get(name);
+			}
+			return ((TemplateHashModel) this.model).get(name);
+		}
+		
+	}
+	
+	private interface Segment {
+		
+		boolean render(Context context) throws TemplateModelException, IOException;
+		
+	}
+	
+	private static class Literal implements Segment {
+		
+		private String text;
+		
+		public Literal(String text) {
+			this.text = text;
+		}
+		
+		@Override
+		public boolean render(Context context) throws IOException {
+			context.writer.write(this.text);
+			return true;
+		}
+		
+	}
+	
+	private static class Variable implements Segment {
+		
+		private String name;
+		
+		public Variable(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public boolean render(Context context) throws TemplateModelException, IOException {
+			// Numbers take precedence over strings, as in FreeMarker
+			Object value = context.get(this.name);
+			if (value instanceof TemplateNumberModel) {
+				value = ((TemplateNumberModel) value).getAsNumber();
+			}
+			if (value instanceof Number) {
+				if (context.numberFormat == null) {
+					return false;
+				}
+				context.writer.write(context.numberFormat.format(value));
+				return true;
+			}
+			if (value instanceof TemplateScalarModel) {
+				value = ((TemplateScalarModel) value).getAsString();
+			}
+			if (value instanceof String) {
+				context.writer.write((String) value);
+				return true;
+			}
+			return false;
+		}
+		
+	}
+	
+	private static class Conditional implements Segment {
+		
+		private String name;
+		private boolean negated;
+		private List<Segment> whenTrue = new ArrayList<Segment>();
+		private List<Segment> whenFalse = new ArrayList<Segment>();
+		
+		public Conditional(String name, boolean negated) {
+			this.name = name;
+			this.negated = negated;
+		}
+		
+		@Override
+		public boolean render(Context context) throws TemplateModelException, IOException {
+			Object value = context.get(this.name);
+			if (value instanceof TemplateBooleanModel) {
+				value = ((TemplateBooleanModel) value).getAsBoolean();
+			}
+			if (!(value instanceof Boolean)) {
+				return false;
+			}
+			boolean condition = ((Boolean) value).booleanValue() != this.negated;
+			return HipChatSimpleTemplate.render(condition ? this.whenTrue : this.whenFalse, context);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,113 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.jetbrains.annotations.NotNull;
+
+// A name to value map kept on disk, so that caches can start warm and without the HipChat API
+public class HipChatSnapshotFile {
+
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+	private static final int RENAME_ATTEMPTS = 3;
+	private static final long RENAME_RETRY_MILLISECONDS = 50;
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private File file;
+	private ObjectMapper mapper;
+	
+	public HipChatSnapshotFile(@NotNull File file) {
+		this.file = file;
+		this.mapper = new ObjectMapper();
+	}
+	
+	// Returns null when there is no usable snapshot
+	public synchronized TreeMap<String, String> read() {
+		if (!this.file.isFile()) {
+			return null;
+		}
+		
+		try {
+			return this.mapper.readValue(this.file, new TypeReference<TreeMap<String, String>>() {});
+		} catch (Exception e) {
+			logger.warn(String.format("Ignoring unreadable snapshot %s", this.file), e);
+			return null;
+		}
+	}
+	
+	public synchronized boolean write(Map<String, String> entries) {
+		// Write to a temporary file first, so that a crash never leaves a truncated snapshot behind
+		File temporaryFile = new File(this.file.getPath() + TEMPORARY_EXTENSION);
+		try {
+			File directory = this.file.getParentFile();
+			if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+				logger.error(String.format("Could not create snapshot directory %s", directory));
+				return false;
+			}
+			this.mapper.writeValue(temporaryFile, new TreeMap<String, String>(entries));
+			if (!replace(temporaryFile, this.file)) {
+				logger.error(String.format("Could not replace snapshot %s", this.file));
+				return false;
+			}
+			logger.debug(String.format("Snapshot written: %s (%s entries)", this.file, entries.size()));
+			return true;
+		} catch (Exception e) {
+			logger.error(String.format("Could not write snapshot %s", this.file), e);
+			temporaryFile.delete();
+			return false;
+		}
+	}
+	
+	// Moves the file into place, replacing the target if it exists. The rename is atomic where the platform 
+	// replaces files on rename. Elsewhere, e.g. on Windows, the target is deleted first, so that a reader may 
+	// briefly find it missing; the rename is retried before that, as it may fail while a reader has the target open.
+	public static boolean replace(@NotNull File source, @NotNull File target) {
+		for (int attempt = 1; attempt <= RENAME_ATTEMPTS; attempt++) {
+			if (source.renameTo(target)) {
+				return true;
+			}
+			if (!target.exists()) {
+				break;
+			}
+			if (attempt < RENAME_ATTEMPTS) {
+				try {
+					Thread.sleep(RENAME_RETRY_MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		logger.debug(String.format("Could not rename %s over %s; deleting it first", source, target));
+		target.delete();
+		return source.renameTo(target);
+	}
+	
+	public long lastModified() {
+		return this.file.lastModified();
+	}
+	
+	public File getFile() {
+		return this.file;
+	}
+	
+}
@@ -0,0 +1,246 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.template.Template;
+
+// The variables a template can read, found by scanning its FreeMarker tags and interpolations once when it is compiled.
+// The scan over-approximates: a name that only looks like a variable is harmless, but a missed one would not be resolved.
+// Templates that enumerate or evaluate their data model are marked dynamic, and may read anything.
+public class HipChatTemplateAnalysis {
+
+	public static final String CONTRIBUTORS = "contributors";
+	public static final String TEST_STATISTICS = "test statistics";
+	public static final String BUILD_STATISTICS = "build statistics";
+	public static final String CANCELLING_USER = "cancelling user";
+	public static final String PARAMETERS = "build and agent parameters";
+	
+	private static final String ANALYSIS_ATTRIBUTE = "com.whatsthatlight.teamcity.hipchat.analysis";
+	private static final String STATS_PREFIX = HipChatNotificationMessageTemplates.STATS_PARAMETERS_PREFIX + ".";
+	
+	// Interpolations, and start tags of directives and macro calls, in both angle and square bracket syntax
+	private static final Pattern TAG_PATTERN = Pattern.compile("\\$\\{(.*?)\\}|#\\{(.*?)\\}|<[#@]([^>]*)>|\\[[#@]([^\\]]*)\\]", Pattern.DOTALL);
+	private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("r?\"((?:[^\"\\\\]|\\\\.)*)\"|r?'((?:[^'\\\\]|\\\\.)*)'", Pattern.DOTALL);
+	// Names not preceded by a dot (sub-variables), question mark (built-ins), or hash or at sign (directive names)
+	private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("(?<![\\w.?#@$])([A-Za-z_$][\\w$]*)");
+	// The special variables that give access to the whole data model
+	private static final Pattern DATA_MODEL_PATTERN = Pattern.compile("\\.\\s*(data_model|vars|globals)\\b(\\s*\\[\\s*\\x00(\\d+)\\x00\\s*\\])?");
+	private static final Pattern DIRECTIVE_NAME_PATTERN = Pattern.compile("^\\s*([\\w.]+)");
+	private static final Set<String> DYNAMIC_DIRECTIVES = new HashSet<String>(Arrays.asList("include", "import", "visit", "recurse"));
+	// The current time is the only input a render takes from outside the data model
+	private static final Pattern NOW_PATTERN = Pattern.compile("\\.\\s*now\\b");
+	// Enumerating any hash, not only the data model, is treated as reading everything
+	private static final Pattern DYNAMIC_BUILT_IN_PATTERN = Pattern.compile("\\?\\s*(eval|interpret|keys|values)\\b");
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+			"as", "in", "using", "true", "false", "gt", "gte", "lt", "lte"));
+	private static final List<String> CONTRIBUTORS_KEYS = Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS,
+			HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS);
+	private static final List<String> TEST_STATISTICS_KEYS = Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS,
+			HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS);
+	private static final List<String> STANDARD_KEYS = Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL,
+			HipChatNotificationMessageTemplates.Parameters.FULL_NAME,
+			HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY,
+			HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH,
+			HipChatNotificationMessageTemplates.Parameters.BRANCH,
+			HipChatNotificationMessageTemplates.Parameters.SERVER_URL,
+			HipChatNotificationMessageTemplates.Parameters.PROJECT_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID,
+			HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER);
+	
+	private SortedSet<String> variables;
+	private boolean dynamic;
+	private boolean timeDependent;
+	
+	private HipChatTemplateAnalysis(SortedSet<String> variables, boolean dynamic, boolean timeDependent) {
+		this.variables = Collections.unmodifiableSortedSet(variables);
+		this.dynamic = dynamic;
+		this.timeDependent = timeDependent;
+	}
+	
+	public static HipChatTemplateAnalysis analyse(@NotNull String templateString) {
+		SortedSet<String> variables = new TreeSet<String>();
+		boolean dynamic = scan(templateString, variables);
+		boolean timeDependent = NOW_PATTERN.matcher(templateString).find();
+		return new HipChatTemplateAnalysis(variables, dynamic, timeDependent);
+	}
+	
+	// Returns the analysis stored with a compiled template, or analyses it now
+	public static HipChatTemplateAnalysis of(@NotNull Template template) {
+		Object analysis = template.getCustomAttribute(ANALYSIS_ATTRIBUTE);
+		if (analysis instanceof HipChatTemplateAnalysis) {
+			return (HipChatTemplateAnalysis) analysis;
+		}
+		
+		HipChatTemplateAnalysis newAnalysis = analyse(template.toString());
+		template.setCustomAttribute(ANALYSIS_ATTRIBUTE, newAnalysis);
+		return newAnalysis;
+	}
+	
+	private static boolean scan(String templateString, Set<String> variables) {
+		boolean dynamic = false;
+		Matcher tagMatcher = TAG_PATTERN.matcher(templateString);
+		while (tagMatcher.find()) {
+			String expression = null;
+			int group = 1;
+			while (expression == null) {
+				expression = tagMatcher.group(group++);
+			}
+			if (group > 3) {
+				// The directive or macro name is not a variable
+				Matcher nameMatcher = DIRECTIVE_NAME_PATTERN.matcher(expression);
+				if (nameMatcher.find()) {
+					dynamic |= DYNAMIC_DIRECTIVES.contains(nameMatcher.group(1));
+					expression = expression.substring(nameMatcher.end());
+				}
+			}
+			
+			// Set the string literals aside, as they contain data model keys but no names
+			List<String> literals = new ArrayList<String>();
+			StringBuffer buffer = new StringBuffer();
+			Matcher literalMatcher = STRING_LITERAL_PATTERN.matcher(expression);
+			while (literalMatcher.find()) {
+				String literal = literalMatcher.group(1) != null ? literalMatcher.group(1) : literalMatcher.group(2);
+				// Interpolations inside string literals are expressions too
+				dynamic |= scan(literal, variables);
+				literalMatcher.appendReplacement(buffer, Matcher.quoteReplacement(String.format("\u0000%s\u0000", literals.size())));
+				literals.add(literal);
+			}
+			literalMatcher.appendTail(buffer);
+			String code = buffer.toString();
+			
+			if (DYNAMIC_BUILT_IN_PATTERN.matcher(code).find()) {
+				dynamic = true;
+			}
+			
+			// Keys looked up through the special variables, e.g. ${.data_model["some.variable"]}
+			Matcher dataModelMatcher = DATA_MODEL_PATTERN.matcher(code);
+			while (dataModelMatcher.find()) {
+				if (dataModelMatcher.group(3) != null) {
+					variables.add(literals.get(Integer.parseInt(dataModelMatcher.group(3))));
+				} else {
+					dynamic = true;
+				}
+			}
+			
+			Matcher identifierMatcher = IDENTIFIER_PATTERN.matcher(code.replaceAll("\u0000\\d+\u0000", " "));
+			while (identifierMatcher.find()) {
+				String identifier = identifierMatcher.group(1);
+				if (!KEYWORDS.contains(identifier)) {
+					variables.add(identifier);
+				}
+			}
+		}
+		
+		return dynamic;
+	}
+	
+	public boolean references(String key) {
+		return this.dynamic || this.variables.contains(key);
+	}
+	
+	public SortedSet<String> getVariables() {
+		return this.variables;
+	}
+	
+	public boolean isDynamic() {
+		return this.dynamic;
+	}
+	
+	// Whether the values of the variables alone determine the rendered message
+	public boolean isCacheable() {
+		return !this.dynamic && !this.timeDependent;
+	}
+	
+	// The costly lookups a render of this template needs, beyond the details every build event has
+	public List<String> getEnrichments() {
+		List<String> enrichments = new ArrayList<String>();
+		if (requiresAny(CONTRIBUTORS_KEYS)) {
+			enrichments.add(CONTRIBUTORS);
+		}
+		if (requiresAny(TEST_STATISTICS_KEYS)) {
+			enrichments.add(TEST_STATISTICS);
+		}
+		boolean buildStatistics = this.dynamic;
+		boolean parameters = this.dynamic;
+		for (String variable : this.variables) {
+			if (variable.startsWith(STATS_PREFIX)) {
+				buildStatistics = true;
+			} else if (!CONTRIBUTORS_KEYS.contains(variable) && !TEST_STATISTICS_KEYS.contains(variable) && !STANDARD_KEYS.contains(variable) 
+					&& !variable.equals(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY)) {
+				parameters = true;
+			}
+		}
+		if (buildStatistics) {
+			enrichments.add(BUILD_STATISTICS);
+		}
+		if (references(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY)) {
+			enrichments.add(CANCELLING_USER);
+		}
+		if (parameters) {
+			enrichments.add(PARAMETERS);
+		}
+		return enrichments;
+	}
+	
+	public String getSummary() {
+		if (this.dynamic) {
+			return "This template lists or evaluates its data model, so all build details are looked up.";
+		}
+		
+		StringBuilder summary = new StringBuilder();
+		summary.append(this.variables.isEmpty() ? "Uses no variables." : String.format("Uses %s.", Utils.join(this.variables)));
+		List<String> enrichments = getEnrichments();
+		summary.append(enrichments.isEmpty() ? " No additional build details are looked up." : String.format(" Looks up %s.", Utils.join(enrichments)));
+		return summary.toString();
+	}
+	
+	private boolean requiresAny(List<String> keys) {
+		for (String key : keys) {
+			if (references(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+	
+}
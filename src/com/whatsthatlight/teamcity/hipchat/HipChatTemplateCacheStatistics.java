@@ -0,0 +1,48 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatTemplateCacheStatistics {
+
+	private long hits;
+	private long misses;
+	
+	public HipChatTemplateCacheStatistics(long hits, long misses) {
+		this.hits = hits;
+		this.misses = misses;
+	}
+	
+	public long getHits() {
+		return this.hits;
+	}
+	
+	public long getMisses() {
+		return this.misses;
+	}
+	
+	// As a percentage, or 0 before the first lookup
+	public int getHitRate() {
+		long lookups = this.hits + this.misses;
+		return lookups == 0 ? 0 : (int) (100 * this.hits / lookups);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Hits: %s, misses: %s (%s%% hit rate)", this.hits, this.misses, getHitRate());
+	}
+	
+}
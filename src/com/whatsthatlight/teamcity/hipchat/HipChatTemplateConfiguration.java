@@ -0,0 +1,230 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.cache.CacheStorage;
+import freemarker.cache.FileTemplateLoader;
+import freemarker.cache.MruCacheStorage;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.core.TemplateClassResolver;
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+
+// The plugin's FreeMarker configuration, of which there is one bean. Template files, the default templates, project 
+// overrides, digests, validation and previews all share its template cache, so that the same content is only parsed once.
+public class HipChatTemplateConfiguration {
+
+	// Recently used templates are kept; older ones until memory runs low
+	public static final int STRONG_CACHE_SIZE = 32;
+	public static final int SOFT_CACHE_SIZE = 256;
+	// Template files are watched for changes by the plugin itself, so FreeMarker need not check them on every read
+	public static final int UPDATE_DELAY_SECONDS = (int) (HipChatNotificationMessageTemplates.WATCH_INTERVAL_MILLISECONDS / 1000);
+	public static final String ENCODING = "UTF-8";
+	private static final String INLINE_PREFIX = "inline/";
+	private static final String HASH_ALGORITHM = "SHA-1";
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	
+	private Configuration config;
+	private InlineTemplateLoader inlineLoader;
+	private CountingCacheStorage cacheStorage;
+	private File templateDirectory;
+	
+	public HipChatTemplateConfiguration() {
+		this.config = new Configuration();
+		this.inlineLoader = new InlineTemplateLoader(STRONG_CACHE_SIZE + SOFT_CACHE_SIZE);
+		this.cacheStorage = new CountingCacheStorage(new MruCacheStorage(STRONG_CACHE_SIZE, SOFT_CACHE_SIZE));
+		this.config.setTemplateLoader(this.inlineLoader);
+		this.config.setCacheStorage(this.cacheStorage);
+		this.config.setTemplateUpdateDelay(UPDATE_DELAY_SECONDS);
+		this.config.setDefaultEncoding(ENCODING);
+		// There is only one file per template, so don't look for a file per locale first
+		this.config.setLocalizedLookup(false);
+		// Templates are edited by administrators, but must not reach beyond the values of their data model.
+		// Only strings, numbers, booleans, maps and lists are exposed; no Java methods.
+		this.config.setObjectWrapper(ObjectWrapper.SIMPLE_WRAPPER);
+		// No ?new, which could instantiate e.g. freemarker.template.utility.Execute
+		this.config.setNewBuiltinClassResolver(TemplateClassResolver.ALLOWS_NOTHING_RESOLVER);
+	}
+	
+	public synchronized void setTemplateDirectory(@NotNull File templateDirectory) throws IOException {
+		if (templateDirectory.equals(this.templateDirectory)) {
+			return;
+		}
+		logger.debug(String.format("Loading template files from %s", templateDirectory));
+		this.config.setTemplateLoader(new MultiTemplateLoader(new TemplateLoader[] { this.inlineLoader, new FileTemplateLoader(templateDirectory) }));
+		this.templateDirectory = templateDirectory;
+	}
+	
+	// A template file, as of its last change that was removed from the cache, or that FreeMarker noticed itself
+	public Template getTemplate(@NotNull String name) throws IOException {
+		return this.config.getTemplate(name);
+	}
+	
+	// The template file changed, so the next read parses it again, however recently it was checked
+	public void removeTemplate(@NotNull String name) throws IOException {
+		this.config.removeTemplateFromCache(name);
+	}
+	
+	// A template that is not a file; templates with the same content are the same template
+	public Template createTemplate(@NotNull String templateString) throws IOException {
+		String name = INLINE_PREFIX + hash(templateString);
+		this.inlineLoader.put(name, templateString);
+		return this.config.getTemplate(name);
+	}
+	
+	// A template that is not saved, e.g. to preview it
+	public Template compileTemplate(String templateString) throws IOException {
+		Template template = createTemplate(templateString);
+		HipChatTemplateAnalysis.of(template);
+		HipChatSimpleTemplate.of(template);
+		return template;
+	}
+	
+	public boolean validateTemplate(String templateString) {
+		try {
+			createTemplate(templateString);
+			return true;
+		} catch (IOException e) {
+			logger.debug(e);
+			return false;
+		}
+	}
+	
+	public HipChatTemplateCacheStatistics getStatistics() {
+		return new HipChatTemplateCacheStatistics(this.cacheStorage.getHitCount(), this.cacheStorage.getMissCount());
+	}
+	
+	private static String hash(String content) {
+		try {
+			byte[] digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(content.getBytes(ENCODING));
+			StringBuilder hash = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-1 and UTF-8
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// Serves template strings by name. The sources never change, and are only kept as long as the cache might ask for them.
+	private static class InlineTemplateLoader implements TemplateLoader {
+		
+		private Map<String, String> sources;
+		
+		public InlineTemplateLoader(final int capacity) {
+			this.sources = new LinkedHashMap<String, String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+		
+		public synchronized void put(String name, String source) {
+			this.sources.put(name, source);
+		}
+
+		@Override
+		public synchronized Object findTemplateSource(String name) {
+			return this.sources.get(name);
+		}
+
+		@Override
+		public long getLastModified(Object source) {
+			// The name is the hash of the content, so an inline template never changes
+			return 0;
+		}
+
+		@Override
+		public Reader getReader(Object source, String encoding) {
+			return new StringReader((String) source);
+		}
+
+		@Override
+		public void closeTemplateSource(Object source) {
+		}
+		
+	}
+	
+	// FreeMarker's cache is not concurrent, so it only calls this while holding the storage's lock
+	private static class CountingCacheStorage implements CacheStorage {
+		
+		private CacheStorage storage;
+		private AtomicLong hitCount = new AtomicLong();
+		private AtomicLong missCount = new AtomicLong();
+		
+		public CountingCacheStorage(CacheStorage storage) {
+			this.storage = storage;
+		}
+
+		@Override
+		public Object get(Object key) {
+			Object value = this.storage.get(key);
+			if (value != null) {
+				this.hitCount.incrementAndGet();
+			} else {
+				this.missCount.incrementAndGet();
+			}
+			return value;
+		}
+
+		@Override
+		public void put(Object key, Object value) {
+			this.storage.put(key, value);
+		}
+
+		@Override
+		public void remove(Object key) {
+			this.storage.remove(key);
+		}
+
+		@Override
+		public void clear() {
+			this.storage.clear();
+		}
+		
+		public long getHitCount() {
+			return this.hitCount.get();
+		}
+		
+		public long getMissCount() {
+			return this.missCount.get();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,72 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
+
+// The outcome of rendering a candidate template, returned to the admin page before the template is saved
+public class HipChatTemplatePreview {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@JsonProperty("html")
+	public String html;
+
+	@JsonProperty("error")
+	public String error;
+
+	// In milliseconds
+	@JsonProperty("renderTime")
+	public double renderTime;
+
+	// Negative when the JVM cannot measure allocations per thread
+	@JsonProperty("allocatedBytes")
+	public long allocatedBytes;
+
+	@JsonProperty("enrichments")
+	public List<String> enrichments;
+
+	@JsonProperty("truncated")
+	public boolean truncated;
+
+	@JsonProperty("source")
+	public String source;
+
+	public HipChatTemplatePreview(String html, String error, double renderTime, long allocatedBytes, List<String> enrichments, boolean truncated) {
+		this.html = html;
+		this.error = error;
+		this.renderTime = renderTime;
+		this.allocatedBytes = allocatedBytes;
+		this.enrichments = enrichments;
+		this.truncated = truncated;
+	}
+
+	public String toJson() throws IOException {
+		return mapper.writeValueAsString(this);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Source: %s\nRender time: %s ms\nAllocated: %s bytes\nEnrichments: %s\nTruncated: %s\nError: %s", 
+				source, renderTime, allocatedBytes, enrichments, truncated, error);
+	}
+
+}
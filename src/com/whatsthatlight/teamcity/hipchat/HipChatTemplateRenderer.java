@@ -0,0 +1,339 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+// Renders notification messages, reusing the output of an earlier render of the same template version with an equal model.
+// Identical server event messages, or build messages that do not depend on the build, are then only rendered once.
+public class HipChatTemplateRenderer {
+
+	public static final int MAX_CACHED_MESSAGES = 256;
+	// See: https://www.hipchat.com/docs/apiv2/method/send_room_notification
+	public static final int MAX_MESSAGE_LENGTH = 10000;
+	public static final String TRUNCATED_TEXT = "(truncated)";
+	// The default templates are built in and cheap, so falling back to one gets this small allowance of its own rather 
+	// than a second render budget. A render takes at most the budget plus this allowance.
+	public static final long FALLBACK_ALLOWANCE_MILLISECONDS = 100;
+	private static final Pattern TAG_PATTERN = Pattern.compile("<(/?)([A-Za-z][A-Za-z0-9]*)[^>]*?(/?)>");
+	private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+			"area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	
+	private HipChatConfiguration configuration;
+	private HipChatNotificationMessageTemplates templates;
+	private Map<RenderKey, String> cache;
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	private AtomicLong truncatedCount = new AtomicLong();
+	private ConcurrentMap<TeamCityEvent, AtomicLong> overrunCounts = new ConcurrentHashMap<TeamCityEvent, AtomicLong>();
+	// Each rendering thread reuses one writer, whose buffer is bounded by the message limit
+	private ThreadLocal<HipChatBoundedWriter> writers = new ThreadLocal<HipChatBoundedWriter>() {
+		@Override
+		protected HipChatBoundedWriter initialValue() {
+			return new HipChatBoundedWriter(MAX_MESSAGE_LENGTH);
+		}
+	};
+	
+	public HipChatTemplateRenderer(@NotNull HipChatConfiguration configuration, @NotNull HipChatNotificationMessageTemplates templates) {
+		this.configuration = configuration;
+		this.templates = templates;
+		// Least recently used messages are evicted first
+		this.cache = new LinkedHashMap<RenderKey, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RenderKey, String> eldest) {
+				return size() > MAX_CACHED_MESSAGES;
+			}
+		};
+		for (TeamCityEvent event : TeamCityEvent.values()) {
+			this.overrunCounts.put(event, new AtomicLong());
+		}
+	}
+	
+	public String render(@NotNull TeamCityEvent event, @NotNull Template template, @NotNull Object dataModel, Object modelKey, String truncatedUrl) 
+			throws TemplateException, IOException {
+		return this.render(this.configuration.getSnapshot(), event, template, dataModel, modelKey, truncatedUrl);
+	}
+	
+	// The model key must have value equality and must not change afterwards; without one, the message is not cached.
+	// A message that is too long is cut short, and ends in a link to the given URL, if any.
+	// A template that exceeds the render budget of the given snapshot of the configuration is abandoned for the 
+	// default template of the event.
+	public String render(@NotNull HipChatConfiguration configuration, @NotNull TeamCityEvent event, @NotNull Template template, 
+			@NotNull Object dataModel, Object modelKey, String truncatedUrl) throws TemplateException, IOException {
+		long version = HipChatNotificationMessageTemplates.getTemplateVersion(template);
+		RenderKey key = null;
+		if (modelKey != null && version != 0) {
+			key = new RenderKey(version, modelKey);
+			String message;
+			synchronized (this.cache) {
+				message = this.cache.get(key);
+			}
+			if (message != null) {
+				this.hitCount.incrementAndGet();
+				logger.debug(String.format("Reusing message rendered from template version %s", version));
+				return message;
+			}
+			this.missCount.incrementAndGet();
+		}
+		
+		String message;
+		long budget = configuration.getRenderBudget();
+		try {
+			message = renderWithinBudget(template, dataModel, truncatedUrl, budget);
+		} catch (HipChatBoundedWriter.BudgetExceededException e) {
+			this.overrunCounts.get(event).incrementAndGet();
+			Template defaultTemplate = this.templates.readDefaultTemplate(event);
+			if (defaultTemplate == template) {
+				throw e;
+			}
+			logger.warn(String.format("Template for %s exceeded its render budget of %s ms; using the default template", 
+					event, budget));
+			// The model may have been narrowed down to what the custom template reads
+			if (dataModel instanceof HipChatBuildEventDataModel) {
+				dataModel = ((HipChatBuildEventDataModel) dataModel).forTemplate(defaultTemplate);
+			}
+			message = renderWithinBudget(defaultTemplate, dataModel, truncatedUrl, FALLBACK_ALLOWANCE_MILLISECONDS);
+			// The custom template's next render may well be within budget
+			key = null;
+		}
+		
+		// A truncated message links to where it was rendered for, and is not reused
+		if (this.writers.get().isTruncated()) {
+			this.truncatedCount.incrementAndGet();
+			logger.warn(String.format("Rendered message exceeds %s characters and was truncated", MAX_MESSAGE_LENGTH));
+		} else if (key != null) {
+			synchronized (this.cache) {
+				this.cache.put(key, message);
+			}
+		}
+		return message;
+	}
+	
+	public HipChatTemplatePreview preview(@NotNull Template template, @NotNull Object dataModel) throws IOException {
+		return this.preview(this.configuration.getSnapshot(), template, dataModel);
+	}
+	
+	// Renders a candidate template once, without the cache or the fallback, and measures what it costs
+	public HipChatTemplatePreview preview(@NotNull HipChatConfiguration configuration, @NotNull Template template, @NotNull Object dataModel) 
+			throws IOException {
+		String html = null;
+		String error = null;
+		long budget = configuration.getRenderBudget();
+		long allocatedBefore = getAllocatedBytes();
+		long start = System.nanoTime();
+		try {
+			html = renderWithinBudget(template, dataModel, null, budget);
+		} catch (HipChatBoundedWriter.BudgetExceededException e) {
+			error = String.format("The template exceeded the render budget of %s ms", budget);
+		} catch (TemplateException e) {
+			error = e.getMessage();
+		}
+		double renderTime = (System.nanoTime() - start) / 1000000.0;
+		long allocatedAfter = getAllocatedBytes();
+		long allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+		List<String> enrichments = dataModel instanceof HipChatBuildEventDataModel ? 
+				((HipChatBuildEventDataModel) dataModel).getEnrichments() : new ArrayList<String>();
+		return new HipChatTemplatePreview(html, error, renderTime, allocatedBytes, enrichments, this.writers.get().isTruncated());
+	}
+	
+	// Cuts HTML short, so that with the suffix and the end tags of the elements still open it fits the limit
+	public static String truncate(@NotNull String html, @NotNull String suffix, int limit) {
+		int end = Math.max(0, Math.min(html.length(), limit - suffix.length()));
+		while (true) {
+			String kept = trimPartialMarkup(html.substring(0, end));
+			String endTags = createEndTags(kept);
+			int excess = kept.length() + endTags.length() + suffix.length() - limit;
+			if (excess <= 0 || kept.length() == 0) {
+				return kept + endTags + suffix;
+			}
+			end = Math.max(0, kept.length() - excess);
+		}
+	}
+	
+	private String renderWithinBudget(Template template, Object dataModel, String truncatedUrl, long budget) throws TemplateException, IOException {
+		HipChatBoundedWriter writer = this.writers.get();
+		writer.reset(budget);
+		HipChatBuildEventDataModel buildEventDataModel = dataModel instanceof HipChatBuildEventDataModel ? (HipChatBuildEventDataModel) dataModel : null;
+		if (buildEventDataModel != null) {
+			buildEventDataModel.setBudget(writer);
+		}
+		try {
+			// Simple templates skip FreeMarker, unless a value needs its formatting or error handling
+			HipChatSimpleTemplate simpleTemplate = HipChatSimpleTemplate.of(template);
+			if (simpleTemplate == null || !simpleTemplate.render(dataModel, writer)) {
+				writer.clear();
+				template.process(dataModel, writer);
+			}
+		} catch (HipChatBoundedWriter.LimitExceededException e) {
+			// Rendering stops at the limit, rather than build output HipChat would reject anyway
+		} catch (TemplateException e) {
+			// The model reports an exceeded budget as a template error
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof HipChatBoundedWriter.BudgetExceededException) {
+					throw (HipChatBoundedWriter.BudgetExceededException) cause;
+				}
+			}
+			throw e;
+		} finally {
+			if (buildEventDataModel != null) {
+				buildEventDataModel.setBudget(null);
+			}
+		}
+		
+		String message = writer.toString();
+		if (writer.isTruncated()) {
+			return truncate(message, createTruncatedSuffix(truncatedUrl), MAX_MESSAGE_LENGTH);
+		}
+		return message;
+	}
+	
+	// Bytes allocated by the current thread so far, or -1 where the JVM does not track them
+	private static long getAllocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+			if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+				return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+	
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+	
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+	
+	public long getTruncatedCount() {
+		return this.truncatedCount.get();
+	}
+	
+	public long getOverrunCount(TeamCityEvent event) {
+		return this.overrunCounts.get(event).get();
+	}
+	
+	public HipChatRenderStatistics getStatistics() {
+		Map<TeamCityEvent, Long> overruns = new EnumMap<TeamCityEvent, Long>(TeamCityEvent.class);
+		for (TeamCityEvent event : TeamCityEvent.values()) {
+			overruns.put(event, getOverrunCount(event));
+		}
+		return new HipChatRenderStatistics(getSize(), getHitCount(), getMissCount(), getTruncatedCount(), overruns);
+	}
+	
+	public int getSize() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+	
+	private static String createTruncatedSuffix(String url) {
+		if (url == null) {
+			return String.format(" %s", TRUNCATED_TEXT);
+		}
+		return String.format(" <a href=\"%s\">%s</a>", url, TRUNCATED_TEXT);
+	}
+	
+	// Drops a tag or character reference the limit cut in half
+	private static String trimPartialMarkup(String html) {
+		int tagStart = html.lastIndexOf('<');
+		if (tagStart > html.lastIndexOf('>')) {
+			html = html.substring(0, tagStart);
+		}
+		int referenceStart = html.lastIndexOf('&');
+		if (referenceStart > html.lastIndexOf(';') && html.indexOf(' ', referenceStart) < 0) {
+			html = html.substring(0, referenceStart);
+		}
+		return html;
+	}
+	
+	private static String createEndTags(String html) {
+		List<String> openElements = new ArrayList<String>();
+		Matcher matcher = TAG_PATTERN.matcher(html);
+		while (matcher.find()) {
+			String name = matcher.group(2).toLowerCase();
+			if (matcher.group(1).length() > 0) {
+				int index = openElements.lastIndexOf(name);
+				if (index >= 0) {
+					openElements.subList(index, openElements.size()).clear();
+				}
+			} else if (matcher.group(3).length() == 0 && !VOID_ELEMENTS.contains(name)) {
+				openElements.add(name);
+			}
+		}
+		StringBuilder endTags = new StringBuilder();
+		for (int i = openElements.size() - 1; i >= 0; i--) {
+			endTags.append(String.format("</%s>", openElements.get(i)));
+		}
+		return endTags.toString();
+	}
+	
+	private static class RenderKey {
+		
+		private long version;
+		private Object model;
+		private int hash;
+		
+		public RenderKey(long version, Object model) {
+			this.version = version;
+			this.model = model;
+			this.hash = 31 * (int) (version ^ (version >>> 32)) + model.hashCode();
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof RenderKey)) {
+				return false;
+			}
+			RenderKey otherKey = (RenderKey) other;
+			// The hash only narrows the search; equal hashes of different models must not share a message
+			return this.version == otherKey.version && this.hash == otherKey.hash && this.model.equals(otherKey.model);
+		}
+		
+	}
+	
+}
@@ -42,12 +42,16 @@ public class Utils {
 		return stringBuilder.toString();
 	}
 	
+	// Null unless every page was retrieved; a partial directory is never returned
 	public static TreeMap<String, String> getRooms(HipChatApiProcessor processor) {
 		TreeMap<String, String> map = new TreeMap<String, String>();
 		int startIndex = 0;
 		HipChatRooms rooms = null;
 		do {
 			rooms = processor.getRooms(startIndex);
+			if (rooms == null) {
+				return null;
+			}
 			for (HipChatRoom room : rooms.items) {
 				map.put(room.name, room.id);
 			}
@@ -61,18 +65,46 @@ public class Utils {
 	}
 
 	public static HipChatProjectConfiguration findFirstSpecificParentConfiguration(SProject project, HipChatConfiguration configuration) {
+		return findFirstSpecificParentConfiguration(project, configuration, null);
+	}
+	
+	// Adds the ID of each project whose configuration was looked up to the given collection, if any
+	public static HipChatProjectConfiguration findFirstSpecificParentConfiguration(SProject project, HipChatConfiguration configuration, Collection<String> projectIds) {
+		if (projectIds != null) {
+			projectIds.add(project.getParentProjectId());
+		}
 		HipChatProjectConfiguration projectConfiguration = configuration.getProjectConfiguration(project.getParentProjectId());
 		if ((!isRootProject(project) && projectConfiguration == null) ||
 				(projectConfiguration != null && projectConfiguration.getRoomId().equals(HipChatConfiguration.ROOM_ID_PARENT_VALUE))) {
-			return findFirstSpecificParentConfiguration(project.getParentProject(), configuration);
+			return findFirstSpecificParentConfiguration(project.getParentProject(), configuration, projectIds);
 		} else if (projectConfiguration != null) {
 			return projectConfiguration;
 		}
 		return null;
 	}
 	
+	// Templates are inherited like rooms, except that a project is only specific for the events it overrides
+	public static HipChatProjectConfiguration findTemplateConfiguration(SProject project, TeamCityEvent event, HipChatConfiguration configuration) {
+		HipChatProjectConfiguration projectConfiguration = configuration.getProjectConfiguration(project.getProjectId());
+		if (projectConfiguration != null && projectConfiguration.getTemplate(event) != null) {
+			return projectConfiguration;
+		}
+		SProject parentProject = project.getParentProject();
+		if (parentProject == null) {
+			return null;
+		}
+		return findTemplateConfiguration(parentProject, event, configuration);
+	}
+	
 	public static HipChatProjectConfiguration determineProjectConfiguration(SProject project, HipChatConfiguration configuration) {
+		return determineProjectConfiguration(project, configuration, null);
+	}
+	
+	public static HipChatProjectConfiguration determineProjectConfiguration(SProject project, HipChatConfiguration configuration, Collection<String> projectIds) {
 		String projectId = project.getProjectId();
+		if (projectIds != null) {
+			projectIds.add(projectId);
+		}
 		String roomId = configuration.getDefaultRoomId();
 		boolean notify = configuration.getDefaultNotifyStatus();
 		boolean isRootProject = Utils.isRootProject(project);
@@ -86,7 +118,7 @@ public class Utils {
 			logger.debug(String.format("Found specific configuration for project ID %s: %s, %s", projectId, roomId, notify));
 		} else if (!isRootProject) {
 			roomId = configuration.getDefaultRoomId();
-			HipChatProjectConfiguration parentProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+			HipChatProjectConfiguration parentProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration, projectIds);
 			if (parentProjectConfiguration != null) {
 				logger.debug("Found specific configuration in hierarchy");
 				roomId = parentProjectConfiguration.getRoomId();
@@ -26,6 +26,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -45,6 +49,10 @@ import org.testng.annotations.BeforeClass;
 import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
 import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatCircuitBreaker;
+import com.whatsthatlight.teamcity.hipchat.HipChatDelivery;
+import com.whatsthatlight.teamcity.hipchat.HipChatConnectionPoolStatistics;
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimitStatistics;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticon;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticons;
 import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
@@ -209,7 +217,7 @@ public class HipChatApiProcessorTest {
 	}
 	
 	@Test
-	public void testGetRoomsReturnsEmptyInCaseOfFailure() throws URISyntaxException {
+	public void testGetRoomsReturnsNullInCaseOfFailure() throws URISyntaxException {
 		
 		String apiUrl = "https://api.hipchat.com/v2/";
 		String apiToken = "invalid_token";
@@ -221,9 +229,7 @@ public class HipChatApiProcessorTest {
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		
 		HipChatRooms rooms = processor.getRooms(0);
-		assertNotNull(rooms);
-		assertNotNull(rooms.items);
-		assertEquals(0, rooms.items.size());
+		assertNull(rooms);
 	}
 	
 	@Test(enabled = false)
@@ -314,7 +320,6 @@ public class HipChatApiProcessorTest {
 	@Test
 	public void testGetRoomsException() throws Exception {
 		// Test parameters
-		int expectedNumberOfRooms = 0;
 		String expectedExceptionText = "UnsupportedSchemeException";
 		int port = 8080;
 		String uri = String.format("nohttp://localhost:%s/", port);
@@ -343,10 +348,7 @@ public class HipChatApiProcessorTest {
 			}
 		}
 		assertTrue(exceptionFound);
-		assertEquals(expectedNumberOfRooms, actualRooms.startIndex);
-		assertEquals(expectedNumberOfRooms, actualRooms.maxResults);
-		assertEquals(expectedNumberOfRooms, actualRooms.items.size());
-		assertNull(actualRooms.links);
+		assertNull(actualRooms);
 	}
 	
 	@Test
@@ -400,7 +402,7 @@ public class HipChatApiProcessorTest {
 		server.start();
 				
 		// Execute
-		processor.sendNotification(notification, expectedRoomId);
+		deliver(processor, configuration, notification, expectedRoomId);
 		
 		// Clean up
 		server.stop();
@@ -428,7 +430,7 @@ public class HipChatApiProcessorTest {
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		
 		// Execute
-		processor.sendNotification(new HipChatRoomNotification(null, null, null, false), "1");
+		deliver(processor, configuration, new HipChatRoomNotification(null, null, null, false), "1");
 		logger.removeAppender(appender);
 		
 		// Test
@@ -485,7 +487,7 @@ public class HipChatApiProcessorTest {
 		server.start();
 				
 		// Execute
-		processor.sendNotification(notification, expectedRoomId);
+		deliver(processor, configuration, notification, expectedRoomId);
 		
 		// Clean up
 		logger.removeAppender(appender);
@@ -704,6 +706,582 @@ public class HipChatApiProcessorTest {
 		assertFalse(actualAuthResult);
 	}
 	
+	@Test
+	public void testPooledConnectionIsReused() throws Exception {
+		// Test parameters
+		int expectedStatusCode = HttpServletResponse.SC_NO_CONTENT;
+		int expectedRequests = 3;
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class Handler extends AbstractHandler {
+			
+			private int statusCode;
+
+			public Handler(int statusCode) {
+				this.statusCode = statusCode;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		        response.setStatus(this.statusCode);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler(expectedStatusCode));
+		server.start();
+		
+		// Execute
+		for (int i = 0; i < expectedRequests; i++) {
+			deliver(processor, configuration, notification, "1");
+		}
+		HipChatConnectionPoolStatistics statistics = processor.getConnectionPoolStatistics();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertEquals(expectedRequests, statistics.getRequests());
+		assertEquals(1, statistics.getMisses());
+		assertEquals(expectedRequests - 1, statistics.getHits());
+		assertEquals(0, statistics.getLeased());
+		assertEquals(1, statistics.getAvailable());
+		assertEquals(1, statistics.getClientBuilds());
+	}
+	
+	@Test
+	public void testSendNotificationIsRetriedWhenRateLimited() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		int expectedLimit = 100;
+		int expectedRemaining = 99;
+		long resetEpochSeconds = System.currentTimeMillis() / 1000 + 1;
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler that rejects the first request
+		class Handler extends AbstractHandler {
+			
+			private int requestCount;
+			private long resetEpochSeconds;
+			
+			public Handler(long resetEpochSeconds) {
+				this.resetEpochSeconds = resetEpochSeconds;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestCount++;
+				response.setHeader("X-Ratelimit-Limit", "100");
+				if (this.requestCount == 1) {
+					response.setHeader("X-Ratelimit-Reset", Long.toString(this.resetEpochSeconds));
+					response.setHeader("X-Ratelimit-Remaining", "0");
+					response.setStatus(429);
+				} else {
+					// The next window
+					response.setHeader("X-Ratelimit-Reset", Long.toString(this.resetEpochSeconds + 300));
+					response.setHeader("X-Ratelimit-Remaining", "99");
+					response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				}
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler(resetEpochSeconds);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute
+		deliver(processor, configuration, notification, "1");
+		HipChatRateLimitStatistics statistics = processor.getRateLimitStatistics();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertEquals(2, handler.requestCount);
+		assertEquals(1, statistics.getRateLimitedResponses());
+		assertEquals(expectedLimit, statistics.getLimit());
+		assertEquals(expectedRemaining, statistics.getRemaining());
+	}
+	
+	@Test
+	public void testCircuitBreakerFailsFastForUnknownRoom() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class Handler extends AbstractHandler {
+			
+			private int requestCount;
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestCount++;
+		        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		configuration.setNotificationDeadline(1);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute: the breaker opens for longer than the deadline
+		for (int i = 0; i < HipChatCircuitBreaker.FAILURE_THRESHOLD + 2; i++) {
+			assertFalse(deliver(processor, configuration, notification, "deleted"));
+		}
+		HipChatDelivery deferred = new HipChatDelivery(System.currentTimeMillis() + 2 * HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS);
+		processor.sendNotification(notification, "deleted", deferred);
+		List<HipChatCircuitBreaker> circuitBreakers = processor.getCircuitBreakers();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertEquals(HipChatCircuitBreaker.FAILURE_THRESHOLD, handler.requestCount);
+		assertEquals(2, circuitBreakers.size());
+		HipChatCircuitBreaker endpointCircuitBreaker = circuitBreakers.get(0);
+		HipChatCircuitBreaker roomCircuitBreaker = circuitBreakers.get(1);
+		assertEquals(String.format("Endpoint %s", uri), endpointCircuitBreaker.getName());
+		assertEquals(HipChatCircuitBreaker.CLOSED, endpointCircuitBreaker.getState());
+		assertEquals("Room deleted", roomCircuitBreaker.getName());
+		assertEquals(HipChatCircuitBreaker.OPEN, roomCircuitBreaker.getState());
+		assertEquals(3, roomCircuitBreaker.getRejectedCount());
+		
+		// Test: with time left, the notification waits for the trial request rather than be discarded
+		assertEquals(HipChatDelivery.RETRY, deferred.getStatus());
+		assertTrue(deferred.getRetryDelay() > 0);
+		assertTrue(deferred.getRetryDelay() <= HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS);
+	}
+	
+	@Test
+	public void testUnauthorisedIsCountedAgainstEndpoint() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class Handler extends AbstractHandler {
+			
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		        response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler());
+		server.start();
+		
+		// Execute
+		HipChatDelivery delivery = new HipChatDelivery(System.currentTimeMillis() + 10000);
+		processor.sendNotification(notification, "1", delivery);
+		List<HipChatCircuitBreaker> circuitBreakers = processor.getCircuitBreakers();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test: the token is at fault, not the room
+		assertEquals(HipChatDelivery.REJECTED, delivery.getStatus());
+		assertEquals(2, circuitBreakers.size());
+		HipChatCircuitBreaker endpointCircuitBreaker = circuitBreakers.get(0);
+		HipChatCircuitBreaker roomCircuitBreaker = circuitBreakers.get(1);
+		assertEquals(1, endpointCircuitBreaker.getConsecutiveFailures());
+		assertEquals(0, roomCircuitBreaker.getConsecutiveFailures());
+	}
+	
+	@Test
+	public void testClientErrorIsRejected() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class Handler extends AbstractHandler {
+			
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		        response.setStatus(target.contains("deleted") ? HttpServletResponse.SC_NOT_FOUND : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler());
+		server.start();
+		
+		// Execute
+		HipChatDelivery rejected = new HipChatDelivery(System.currentTimeMillis() + 10000);
+		processor.sendNotification(notification, "deleted", rejected);
+		HipChatDelivery failed = new HipChatDelivery(System.currentTimeMillis() + 10000);
+		while (HipChatDelivery.RETRY.equals(processor.sendNotification(notification, "1", failed))) {
+			Thread.sleep(failed.getRetryDelay());
+		}
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test: a missing room is permanent, an unavailable server is not
+		assertEquals(HipChatDelivery.REJECTED, rejected.getStatus());
+		assertEquals("404 Not Found", rejected.getReason());
+		assertEquals(HipChatDelivery.FAILED, failed.getStatus());
+	}
+	
+	@Test
+	public void testServerErrorIsRetried() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler that fails the first request
+		class Handler extends AbstractHandler {
+			
+			private int requestCount;
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestCount++;
+		        response.setStatus(this.requestCount == 1 ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_NO_CONTENT);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute
+		boolean delivered = deliver(processor, configuration, notification, "1");
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertTrue(delivered);
+		assertEquals(2, handler.requestCount);
+		for (HipChatCircuitBreaker circuitBreaker : processor.getCircuitBreakers()) {
+			assertEquals(HipChatCircuitBreaker.CLOSED, circuitBreaker.getState());
+			assertEquals(0, circuitBreaker.getConsecutiveFailures());
+		}
+	}
+	
+	@Test
+	public void testSocketTimeoutIsCountedAndRetried() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler that stalls the first request beyond the socket timeout
+		class Handler extends AbstractHandler {
+			
+			private int requestCount;
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestCount++;
+				if (this.requestCount == 1) {
+					try {
+						Thread.sleep(2000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+		        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		configuration.setSocketTimeout(1);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute
+		boolean delivered = deliver(processor, configuration, notification, "1");
+		HipChatConnectionPoolStatistics statistics = processor.getConnectionPoolStatistics();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertTrue(delivered);
+		assertEquals(2, handler.requestCount);
+		assertEquals(1, statistics.getTimeouts());
+		assertEquals(0, statistics.getCancelled());
+	}
+	
+	@Test
+	public void testNotificationIsCancelledAtDeadline() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler that stalls every request beyond the deadline
+		class Handler extends AbstractHandler {
+			
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				try {
+					Thread.sleep(3000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+		        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		configuration.setNotificationDeadline(1);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler());
+		server.start();
+		
+		// Execute
+		long start = System.currentTimeMillis();
+		boolean delivered = deliver(processor, configuration, notification, "1");
+		long elapsed = System.currentTimeMillis() - start;
+		HipChatConnectionPoolStatistics statistics = processor.getConnectionPoolStatistics();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertFalse(delivered);
+		assertTrue(elapsed < 2500);
+		assertEquals(1, statistics.getCancelled());
+		assertEquals(0, statistics.getTimeouts());
+	}
+	
+	@Test
+	public void testRateLimitWaitDoesNotExtendDeadline() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler that rate limits every request until well after the deadline
+		class Handler extends AbstractHandler {
+			
+			private int requestCount;
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestCount++;
+				response.setHeader("X-Ratelimit-Reset", Long.toString(System.currentTimeMillis() / 1000 + 5));
+				response.setHeader("X-Ratelimit-Remaining", "0");
+		        response.setStatus(429);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+		configuration.setNotificationDeadline(1);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute
+		long start = System.currentTimeMillis();
+		boolean delivered = deliver(processor, configuration, notification, "1");
+		long elapsed = System.currentTimeMillis() - start;
+		HipChatConnectionPoolStatistics statistics = processor.getConnectionPoolStatistics();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test: it gives up rather than wait for the reset
+		assertFalse(delivered);
+		assertTrue(elapsed < 2500);
+		assertEquals(1, handler.requestCount);
+		assertEquals(1, statistics.getCancelled());
+	}
+	
+	@Test
+	public void testClientIsRebuiltWhenApiUrlChanges() throws Exception {
+		// Test parameters
+		int port = 8080;
+		String token = "token";
+
+		// Handler
+		class Handler extends AbstractHandler {
+			
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(String.format("http://localhost:%s/", port));
+		configuration.setApiToken(token);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler());
+		server.start();
+		
+		// Execute
+		processor.testAuthentication();
+		processor.testAuthentication();
+		long buildsBeforeChange = processor.getConnectionPoolStatistics().getClientBuilds();
+		configuration.setApiUrl(String.format("http://127.0.0.1:%s/", port));
+		boolean actualAuthResult = processor.testAuthentication();
+		long buildsAfterChange = processor.getConnectionPoolStatistics().getClientBuilds();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertTrue(actualAuthResult);
+		assertEquals(1, buildsBeforeChange);
+		assertEquals(2, buildsAfterChange);
+	}
+	
+	@Test
+	public void testRequestInProgressCompletesWhenClientIsRebuilt() throws Exception {
+		// Test parameters
+		int port = 8080;
+		String token = "token";
+
+		// Handler that only answers the first request after a while
+		class Handler extends AbstractHandler {
+			
+			private AtomicInteger requestCount = new AtomicInteger();
+			private CountDownLatch received = new CountDownLatch(1);
+			
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				if (this.requestCount.incrementAndGet() == 1) {
+					this.received.countDown();
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+		        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		        baseRequest.setHandled(true);
+			}
+			
+		}
+		
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(String.format("http://localhost:%s/", port));
+		configuration.setApiToken(token);
+		final HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+		
+		// Execute: the settings change while the first request is in progress
+		final AtomicBoolean slowAuthResult = new AtomicBoolean();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				slowAuthResult.set(processor.testAuthentication());
+			}
+		});
+		thread.start();
+		assertTrue(handler.received.await(5, TimeUnit.SECONDS));
+		configuration.setApiUrl(String.format("http://127.0.0.1:%s/", port));
+		boolean actualAuthResult = processor.testAuthentication();
+		thread.join(5000);
+		long builds = processor.getConnectionPoolStatistics().getClientBuilds();
+		
+		// Clean up
+		processor.shutdown();
+		server.stop();
+
+		// Test
+		assertTrue(actualAuthResult);
+		assertTrue(slowAuthResult.get());
+		assertEquals(2, builds);
+	}
+	
 	@Test(enabled = false)
 	public void testTestAuthentication() throws URISyntaxException {
 
@@ -733,5 +1311,37 @@ public class HipChatApiProcessorTest {
 
 		assertTrue(processor.testAuthentication());
 	}
+	
+	@Test
+	public void testNotificationIsSerialisedOnce() throws IOException {
+		// Prepare
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.HTML, HipChatMessageColour.INFO, false);
+		
+		// Execute
+		String first = notification.toJson();
+		String second = notification.toJson();
+		
+		// Test
+		assertSame(first, second);
+		ObjectMapper mapper = new ObjectMapper();
+		assertEquals(false, mapper.readTree(first).get("notify").getBooleanValue());
+		assertEquals("foo", mapper.readTree(first).get("message").getTextValue());
 		
+		// Changing the notification serialises it again
+		notification.notify = true;
+		String third = notification.toJson();
+		assertNotSame(first, third);
+		assertEquals(true, mapper.readTree(third).get("notify").getBooleanValue());
+		assertEquals(4, mapper.readTree(third).size());
+	}
+	
+	// Waits for each retry, as the dispatcher would
+	private static boolean deliver(HipChatApiProcessor processor, HipChatConfiguration configuration, HipChatRoomNotification notification, String roomId) throws InterruptedException {
+		HipChatDelivery delivery = new HipChatDelivery(System.currentTimeMillis() + configuration.getNotificationDeadline() * 1000L);
+		while (HipChatDelivery.RETRY.equals(processor.sendNotification(notification, roomId, delivery))) {
+			Thread.sleep(delivery.getRetryDelay());
+		}
+		return HipChatDelivery.DELIVERED.equals(delivery.getStatus());
+	}
+
 }
@@ -0,0 +1,221 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.serverSide.BuildStatistics;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TriggeredBy;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserSet;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBuildEventDataModel;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateAnalysis;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplatePreview;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateRenderer;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
+
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+public class HipChatBuildEventDataModelTest {
+
+	private static String render(String templateString, HipChatBuildEventDataModel dataModel) throws IOException, TemplateException {
+		StringTemplateLoader loader = new StringTemplateLoader();
+		loader.putTemplate("template", templateString);
+		Configuration config = new Configuration();
+		config.setTemplateLoader(loader);
+		Template template = config.getTemplate("template");
+		StringWriter writer = new StringWriter();
+		template.process(dataModel, writer);
+		return writer.toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static SRunningBuild createBuild(Map<String, String> buildParameters, Map<String, String> agentParameters, Map<String, BigDecimal> statisticValues) {
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getFullName()).thenReturn("Project :: Build");
+		SRunningBuild build = mock(SRunningBuild.class);
+		when(build.getBuildType()).thenReturn(buildType);
+		when(build.getBuildNumber()).thenReturn("42");
+		TriggeredBy triggeredBy = mock(TriggeredBy.class);
+		when(triggeredBy.getAsString()).thenReturn("user");
+		when(build.getTriggeredBy()).thenReturn(triggeredBy);
+		UserSet<SUser> userSet = (UserSet<SUser>) mock(UserSet.class);
+		when(userSet.getUsers()).thenReturn(new HashSet<SUser>());
+		when(build.getCommitters(SelectPrevBuildPolicy.SINCE_LAST_BUILD)).thenReturn(userSet);
+		ParametersProvider parametersProvider = mock(ParametersProvider.class);
+		when(parametersProvider.getAll()).thenReturn(buildParameters);
+		when(build.getParametersProvider()).thenReturn(parametersProvider);
+		SBuildAgent agent = mock(SBuildAgent.class);
+		when(agent.getAvailableParameters()).thenReturn(agentParameters);
+		when(build.getAgent()).thenReturn(agent);
+		BuildStatistics fullStatistics = mock(BuildStatistics.class);
+		when(fullStatistics.getAllTestCount()).thenReturn(7);
+		when(build.getFullStatistics()).thenReturn(fullStatistics);
+		when(build.getStatisticValues()).thenReturn(statisticValues);
+		return build;
+	}
+	
+	@Test
+	public void testOnlyReadVariablesAreResolved() throws Exception {
+		// Prepare
+		SRunningBuild build = createBuild(new HashMap<String, String>(), new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		SBuildServer server = mock(SBuildServer.class);
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(server, build, TeamCityEvent.BUILD_SUCCESSFUL, null, new Configuration().getObjectWrapper());
+		
+		// Execute
+		String message = render("${fullName} #${buildNumber} ${fullName}", dataModel);
+		
+		// Test: nothing else about the build was looked up
+		AssertJUnit.assertEquals("Project :: Build #42 Project :: Build", message);
+		verify(build, times(1)).getBuildType();
+		verify(build, never()).getParametersProvider();
+		verify(build, never()).getAgent();
+		verify(build, never()).getFullStatistics();
+		verify(build, never()).getStatisticValues();
+		verify(build, never()).getCommitters(any(SelectPrevBuildPolicy.class));
+		verifyZeroInteractions(server);
+	}
+	
+	@Test
+	public void testParameterPrecedence() throws Exception {
+		// Prepare
+		Map<String, String> buildParameters = new HashMap<String, String>();
+		buildParameters.put("shared", "build");
+		buildParameters.put("build.only", "build");
+		buildParameters.put("fullName", "overridden");
+		Map<String, String> agentParameters = new HashMap<String, String>();
+		agentParameters.put("shared", "agent");
+		Map<String, BigDecimal> statisticValues = new HashMap<String, BigDecimal>();
+		statisticValues.put("BuildDuration", new BigDecimal(12));
+		SRunningBuild build = createBuild(buildParameters, agentParameters, statisticValues);
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, "http://example.com/", new Configuration().getObjectWrapper());
+		
+		// Execute
+		String message = render("${fullName} ${.data_model[\"shared\"]} ${.data_model[\"build.only\"]} ${noOfTests} ${.data_model[\"stats.BuildDuration\"]} ${emoticonUrl} ${.data_model[\"missing\"]!\"none\"}", dataModel);
+		
+		// Test: standard parameters win over agent parameters, which win over build parameters
+		AssertJUnit.assertEquals("Project :: Build agent build 7 12 http://example.com/ none", message);
+	}
+	
+	@Test
+	public void testKeysCanBeListed() throws Exception {
+		// Prepare
+		Map<String, String> buildParameters = new HashMap<String, String>();
+		buildParameters.put("env.FOO", "bar");
+		SRunningBuild build = createBuild(buildParameters, new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, new Configuration().getObjectWrapper());
+		
+		// Execute
+		String message = render("<#list .data_model?keys as key><#if key == \"env.FOO\">${key}=${.data_model[key]}</#if></#list>", dataModel);
+		
+		// Test
+		AssertJUnit.assertEquals("env.FOO=bar", message);
+	}
+	
+	@Test
+	public void testUnreferencedVariablesAreNotLookedUp() throws Exception {
+		// Prepare
+		Map<String, String> buildParameters = new HashMap<String, String>();
+		buildParameters.put("env.FOO", "bar");
+		SRunningBuild build = createBuild(buildParameters, new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse("${fullName}");
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, 
+				new Configuration().getObjectWrapper(), analysis);
+		
+		// Execute
+		Object contributors = dataModel.get("contributors");
+		Object parameter = dataModel.get("env.FOO");
+		
+		// Test
+		AssertJUnit.assertNull(contributors);
+		AssertJUnit.assertNull(parameter);
+		verify(build, never()).getCommitters(any(SelectPrevBuildPolicy.class));
+		verify(build, never()).getParametersProvider();
+		verify(build, never()).getAgent();
+	}
+	
+	@Test
+	public void testEnrichmentsAreRecorded() throws Exception {
+		// Prepare
+		Map<String, String> buildParameters = new HashMap<String, String>();
+		buildParameters.put("env.FOO", "bar");
+		SRunningBuild build = createBuild(buildParameters, new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, 
+				new Configuration().getObjectWrapper(), HipChatTemplateAnalysis.analyse("${fullName} ${contributors} ${.data_model[\"env.FOO\"]} ${fullName}"));
+		
+		// Execute
+		String message = render("${fullName} ${contributors} ${.data_model[\"env.FOO\"]} ${fullName}", dataModel);
+		
+		// Test: the build's own fields are not enrichments, and each lookup is only made once
+		AssertJUnit.assertEquals("Project :: Build  bar Project :: Build", message);
+		AssertJUnit.assertEquals(Arrays.asList("contributors", "agent parameters", "build parameters"), dataModel.getEnrichments());
+	}
+	
+	@Test
+	public void testNoFingerprintForBuildUniqueVariables() throws Exception {
+		// Prepare
+		SRunningBuild build = createBuild(new HashMap<String, String>(), new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		HipChatBuildEventDataModel uniqueDataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, 
+				new Configuration().getObjectWrapper(), HipChatTemplateAnalysis.analyse("#${buildNumber}<#if hasContributors> ${contributors}</#if>"));
+		HipChatBuildEventDataModel sharedDataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, 
+				new Configuration().getObjectWrapper(), HipChatTemplateAnalysis.analyse("${fullName}"));
+		
+		// Execute
+		Map<String, Object> uniqueFingerprint = uniqueDataModel.getFingerprint();
+		Map<String, Object> sharedFingerprint = sharedDataModel.getFingerprint();
+		
+		// Test: the contributors are not resolved for a fingerprint that could never be reused
+		AssertJUnit.assertNull(uniqueFingerprint);
+		verify(build, never()).getCommitters(any(SelectPrevBuildPolicy.class));
+		AssertJUnit.assertEquals("Project :: Build", sharedFingerprint.get("fullName"));
+	}
+	
+	@Test
+	public void testLoopsOverTheModelAreBoundedByTheBudget() throws Exception {
+		// Prepare: the loop writes nothing, so only the model can stop it
+		Map<String, String> buildParameters = new HashMap<String, String>();
+		for (int i = 0; i < 2000; i++) {
+			buildParameters.put(String.format("env.VARIABLE_%s", i), "value");
+		}
+		SRunningBuild build = createBuild(buildParameters, new HashMap<String, String>(), new HashMap<String, BigDecimal>());
+		String templateString = "<#list .data_model?keys as a><#list .data_model?keys as b><#if a == b && a == \"none\">${a}</#if></#list></#list>";
+		Template template = new HipChatTemplateConfiguration().compileTemplate(templateString);
+		HipChatBuildEventDataModel dataModel = new HipChatBuildEventDataModel(mock(SBuildServer.class), build, TeamCityEvent.BUILD_SUCCESSFUL, null, 
+				template.getObjectWrapper(), HipChatTemplateAnalysis.of(template));
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setRenderBudget(1);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, mock(HipChatNotificationMessageTemplates.class));
+		
+		// Execute
+		long start = System.currentTimeMillis();
+		HipChatTemplatePreview preview = renderer.preview(template, dataModel);
+		long duration = System.currentTimeMillis() - start;
+		
+		// Test
+		AssertJUnit.assertEquals("The template exceeded the render budget of 1 ms", preview.error);
+		AssertJUnit.assertTrue(String.format("Took %s ms", duration), duration < 1000);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBuildStatusIndex;
+
+public class HipChatBuildStatusIndexTest {
+
+	private static Branch mockBranch(String name) {
+		Branch branch = mock(Branch.class);
+		when(branch.getName()).thenReturn(name);
+		return branch;
+	}
+	
+	private static SFinishedBuild mockFinishedBuild(long buildId, Branch branch, Status status) {
+		SFinishedBuild build = mock(SFinishedBuild.class);
+		when(build.getBuildId()).thenReturn(buildId);
+		when(build.getBranch()).thenReturn(branch);
+		when(build.getBuildStatus()).thenReturn(status);
+		return build;
+	}
+	
+	private static SRunningBuild mockBuild(SBuildType buildType, long buildId, Branch branch, Status status) {
+		SRunningBuild build = mock(SRunningBuild.class);
+		when(build.getBuildType()).thenReturn(buildType);
+		when(build.getBuildTypeId()).thenReturn("bt1");
+		when(build.getBuildId()).thenReturn(buildId);
+		when(build.getBranch()).thenReturn(branch);
+		when(build.getBuildStatus()).thenReturn(status);
+		return build;
+	}
+	
+	@Test
+	public void testHistoryIsOnlyReadForUnknownBranches() {
+		// Prepare
+		Branch master = mockBranch("master");
+		Branch feature = mockBranch("feature");
+		List<SFinishedBuild> history = new ArrayList<SFinishedBuild>();
+		history.add(mockFinishedBuild(3, master, Status.NORMAL));
+		history.add(mockFinishedBuild(2, feature, Status.FAILURE));
+		history.add(mockFinishedBuild(1, master, Status.FAILURE));
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getHistory()).thenReturn(history);
+		SRunningBuild first = mockBuild(buildType, 3, master, Status.NORMAL);
+		SRunningBuild second = mockBuild(buildType, 4, master, Status.FAILURE);
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+		
+		// Execute and test: the first build is seeded from the history, skipping itself and other branches
+		AssertJUnit.assertEquals(Status.FAILURE, index.getPreviousStatus(first));
+		index.record(first);
+		verify(buildType, times(1)).getHistory();
+		
+		// The next build on the branch is looked up
+		AssertJUnit.assertEquals(Status.NORMAL, index.getPreviousStatus(second));
+		index.record(second);
+		verify(buildType, times(1)).getHistory();
+		AssertJUnit.assertEquals(1, index.size());
+		
+		// Another branch is not affected
+		SRunningBuild other = mockBuild(buildType, 5, feature, Status.NORMAL);
+		AssertJUnit.assertEquals(Status.FAILURE, index.getPreviousStatus(other));
+		verify(buildType, times(2)).getHistory();
+	}
+	
+	@Test
+	public void testNoPreviousBuild() {
+		// Prepare
+		List<SFinishedBuild> history = new ArrayList<SFinishedBuild>();
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getHistory()).thenReturn(history);
+		SRunningBuild build = mockBuild(buildType, 1, null, Status.NORMAL);
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+		
+		// Execute and test
+		AssertJUnit.assertNull(index.getPreviousStatus(build));
+		index.record(build);
+		// The build itself is never its own previous build
+		AssertJUnit.assertNull(index.getPreviousStatus(build));
+	}
+	
+	@Test
+	public void testLeastRecentBranchIsEvicted() {
+		// Prepare
+		List<SFinishedBuild> history = new ArrayList<SFinishedBuild>();
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getHistory()).thenReturn(history);
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex(2);
+		
+		// Execute
+		index.record(mockBuild(buildType, 1, mockBranch("a"), Status.NORMAL));
+		index.record(mockBuild(buildType, 2, mockBranch("b"), Status.NORMAL));
+		index.record(mockBuild(buildType, 3, mockBranch("c"), Status.FAILURE));
+		
+		// Test: the evicted branch falls back to the history
+		AssertJUnit.assertEquals(2, index.size());
+		AssertJUnit.assertNull(index.getPreviousStatus(mockBuild(buildType, 4, mockBranch("a"), Status.NORMAL)));
+		AssertJUnit.assertEquals(Status.FAILURE, index.getPreviousStatus(mockBuild(buildType, 5, mockBranch("c"), Status.NORMAL)));
+	}
+	
+}
@@ -0,0 +1,133 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatCircuitBreaker;
+
+public class HipChatCircuitBreakerTest {
+
+	private static class MockClockCircuitBreaker extends HipChatCircuitBreaker {
+		
+		public long now = 1000000;
+
+		public MockClockCircuitBreaker() {
+			super("Room 1");
+		}
+		
+		@Override
+		protected long currentTimeMillis() {
+			return this.now;
+		}
+		
+	}
+	
+	private static void fail(HipChatCircuitBreaker circuitBreaker, int times) {
+		for (int i = 0; i < times; i++) {
+			AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+			circuitBreaker.recordFailure("404 Not Found");
+		}
+	}
+	
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD - 1);
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.CLOSED, circuitBreaker.getState());
+		fail(circuitBreaker, 1);
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.OPEN, circuitBreaker.getState());
+		AssertJUnit.assertFalse(circuitBreaker.allowRequest());
+		AssertJUnit.assertEquals(1, circuitBreaker.getRejectedCount());
+		AssertJUnit.assertEquals("404 Not Found", circuitBreaker.getLastFailure());
+	}
+	
+	@Test
+	public void testSuccessResetsFailures() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD - 1);
+		circuitBreaker.recordSuccess();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD - 1);
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.CLOSED, circuitBreaker.getState());
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.FAILURE_THRESHOLD - 1, circuitBreaker.getConsecutiveFailures());
+	}
+	
+	@Test
+	public void testSingleTrialRequestAfterOpenPeriod() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		circuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS;
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+		AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+		AssertJUnit.assertFalse(circuitBreaker.allowRequest());
+		circuitBreaker.recordSuccess();
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.CLOSED, circuitBreaker.getState());
+		AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+	}
+	
+	@Test
+	public void testFailedTrialBacksOffExponentially() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		circuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS;
+		
+		// A single failed trial opens the breaker again, for between one and two initial periods
+		fail(circuitBreaker, 1);
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.OPEN, circuitBreaker.getState());
+		long secondsUntilRetry = circuitBreaker.getSecondsUntilRetry();
+		AssertJUnit.assertTrue(secondsUntilRetry >= HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS / 1000 - 1);
+		AssertJUnit.assertTrue(secondsUntilRetry <= 2 * HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS / 1000);
+		circuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS / 2;
+		AssertJUnit.assertFalse(circuitBreaker.allowRequest());
+	}
+	
+	@Test
+	public void testRetryDelayLastsUntilNextRequestIsLetThrough() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		AssertJUnit.assertEquals(0, circuitBreaker.getRetryDelay());
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		long retryDelay = circuitBreaker.getRetryDelay();
+		AssertJUnit.assertTrue(retryDelay >= HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS / 2);
+		AssertJUnit.assertTrue(retryDelay <= HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS);
+		circuitBreaker.now += retryDelay;
+		AssertJUnit.assertEquals(0, circuitBreaker.getRetryDelay());
+		
+		// Once the trial is under way, the next request waits for its outcome
+		AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+		AssertJUnit.assertTrue(circuitBreaker.getRetryDelay() > 0);
+		circuitBreaker.recordInconclusive();
+		AssertJUnit.assertEquals(0, circuitBreaker.getRetryDelay());
+	}
+	
+	@Test
+	public void testTrialIsNotStartedWhenOtherBreakerRejects() {
+		MockClockCircuitBreaker roomCircuitBreaker = new MockClockCircuitBreaker();
+		MockClockCircuitBreaker endpointCircuitBreaker = new MockClockCircuitBreaker();
+		fail(roomCircuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		roomCircuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS;
+		fail(endpointCircuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		
+		// The room is due a trial, but the endpoint is still open, so the room must not wait for a trial that never happens
+		AssertJUnit.assertSame(endpointCircuitBreaker, HipChatCircuitBreaker.allowRequest(roomCircuitBreaker, endpointCircuitBreaker));
+		AssertJUnit.assertEquals(0, roomCircuitBreaker.getRejectedCount());
+		AssertJUnit.assertEquals(1, endpointCircuitBreaker.getRejectedCount());
+		endpointCircuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS;
+		AssertJUnit.assertNull(HipChatCircuitBreaker.allowRequest(roomCircuitBreaker, endpointCircuitBreaker));
+		AssertJUnit.assertSame(roomCircuitBreaker, HipChatCircuitBreaker.allowRequest(roomCircuitBreaker, endpointCircuitBreaker));
+	}
+	
+	@Test
+	public void testInconclusiveTrialLetsNextRequestThrough() {
+		MockClockCircuitBreaker circuitBreaker = new MockClockCircuitBreaker();
+		fail(circuitBreaker, HipChatCircuitBreaker.FAILURE_THRESHOLD);
+		circuitBreaker.now += HipChatCircuitBreaker.INITIAL_OPEN_MILLISECONDS;
+		AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+		AssertJUnit.assertFalse(circuitBreaker.allowRequest());
+		
+		// E.g. the trial was rate limited
+		circuitBreaker.recordInconclusive();
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.HALF_OPEN, circuitBreaker.getState());
+		AssertJUnit.assertTrue(circuitBreaker.allowRequest());
+		AssertJUnit.assertFalse(circuitBreaker.allowRequest());
+	}
+
+}
@@ -16,7 +16,11 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat.test;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -32,14 +36,19 @@ import javax.xml.transform.TransformerException;
 
 import jetbrains.buildServer.controllers.BaseControllerTestCase;
 import jetbrains.buildServer.controllers.MockRequest;
+import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
 
 import org.apache.http.HttpStatus;
 import org.apache.log4j.BasicConfigurator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.jdom.Document;
 import org.jdom.Element;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
 import org.testng.AssertJUnit;
@@ -51,9 +60,11 @@ import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfigurationController;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonCache;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
 import com.whatsthatlight.teamcity.hipchat.HipChatEventConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomCache;
 import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 
 import freemarker.template.Template;
@@ -65,6 +76,8 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 	private HipChatApiProcessor processor;
 	private HipChatNotificationMessageTemplates templates;
 	private HipChatEmoticonCache emoticonCache;
+	private HipChatNotificationDispatcher dispatcher;
+	private HipChatRoomCache roomCache;
 
 	@BeforeClass
 	public static void ClassSetup() {
@@ -81,6 +94,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		String expectedRoomId2 = "room2";
 		boolean expectedNotify1 = true;
 		boolean expectedNotify2 = false;
+		String expectedTemplate1 = "<b>${fullName}</b> failed";
 		String expectedConfigDir = ".";
 
 		// Mocks
@@ -89,22 +103,26 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 
 		// Prepare
 		HipChatConfiguration configuration = new HipChatConfiguration();
-		configuration.setProjectConfiguration(new HipChatProjectConfiguration(expectedProjectId1, expectedRoomId1, expectedNotify1));
+		HipChatProjectConfiguration projectConfiguration = new HipChatProjectConfiguration(expectedProjectId1, expectedRoomId1, expectedNotify1);
+		projectConfiguration.setTemplate(TeamCityEvent.BUILD_FAILED, expectedTemplate1);
+		configuration.setProjectConfiguration(projectConfiguration);
 		configuration.setProjectConfiguration(new HipChatProjectConfiguration(expectedProjectId2, expectedRoomId2, expectedNotify2));
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.saveConfiguration();
 
 		// Execute
 		configuration = new HipChatConfiguration();
 		AssertJUnit.assertNull(configuration.getProjectConfiguration(expectedProjectId1));
 		AssertJUnit.assertNull(configuration.getProjectConfiguration(expectedProjectId2));
-		controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates, emoticonCache);
+		controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates, emoticonCache, dispatcher, roomCache);
 		controller.loadConfiguration();
 
 		// Test
@@ -114,6 +132,9 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		HipChatProjectConfiguration projectConfiguration2 = configuration.getProjectConfiguration(expectedProjectId2);
 		AssertJUnit.assertEquals(expectedRoomId2, projectConfiguration2.getRoomId());
 		AssertJUnit.assertEquals(expectedNotify2, projectConfiguration2.getNotifyStatus());
+		AssertJUnit.assertEquals(expectedTemplate1, projectConfiguration1.getTemplate(TeamCityEvent.BUILD_FAILED));
+		AssertJUnit.assertNull(projectConfiguration1.getTemplate(TeamCityEvent.BUILD_STARTED));
+		AssertJUnit.assertNull(projectConfiguration2.getTemplates());
 	}
 
 	@Test
@@ -141,6 +162,8 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 
 		// Pre-conditions
@@ -159,7 +182,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		// The config file must exist on disk after initialisation
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.initialise();
 		File postRegistrationConfigFile = new File(expectedFileName);
 		AssertJUnit.assertTrue(postRegistrationConfigFile.exists());
@@ -242,6 +265,8 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 		// Pre-conditions
 		// @formatter:off
@@ -273,7 +298,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		HipChatConfiguration configuration = new HipChatConfiguration();
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.initialise();
 		File postInitConfigFile = new File(expectedConfigDir, expectedFileName);
 		SAXBuilder builder = new SAXBuilder();
@@ -329,6 +354,8 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 
 		// Pre-conditions
@@ -362,7 +389,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		HipChatConfiguration configuration = new HipChatConfiguration();
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.initialise();
 		File postInitConfigFile = new File(expectedConfigDir, expectedFileName);
 		SAXBuilder builder = new SAXBuilder();
@@ -427,6 +454,8 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 
 		// Pre-conditions
@@ -462,7 +491,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		// initialisation
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.initialise();
 		File postInitConfigFile = new File(expectedConfigDir, expectedFileName);
 		SAXBuilder builder = new SAXBuilder();
@@ -533,13 +562,15 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
 		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
 
 		// After initialisation, the config must've been upgraded
 		HipChatConfiguration configuration = new HipChatConfiguration();
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
-				emoticonCache);
+				emoticonCache, dispatcher, roomCache);
 		controller.initialise();
 
 		// Test XML was upgraded
@@ -556,6 +587,36 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		AssertJUnit.assertEquals(expectedDefaultRoomIdValue, configuration.getDefaultRoomId());
 	}
 
+	@Test
+	public void testInitialiseStartsFromSnapshots() throws Exception {
+		// Mocks
+		ServerPaths serverPaths = org.mockito.Mockito.mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		SBuildServer server = org.mockito.Mockito.mock(SBuildServer.class);
+		WebControllerManager manager = org.mockito.Mockito.mock(WebControllerManager.class);
+		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+		HipChatRoomCache roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
+		HipChatNotificationMessageTemplates templates = org.mockito.Mockito.mock(HipChatNotificationMessageTemplates.class);
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor processor = org.mockito.Mockito.mock(HipChatApiProcessor.class);
+
+		// Execute
+		HipChatConfigurationController controller = new HipChatConfigurationController(server, serverPaths, manager, configuration, processor, templates,
+				emoticonCache, dispatcher, roomCache);
+		controller.initialise();
+
+		// Test: the snapshots are loaded first, and nothing waits on the HipChat API
+		InOrder emoticonOrder = inOrder(emoticonCache);
+		emoticonOrder.verify(emoticonCache).load();
+		emoticonOrder.verify(emoticonCache).refresh();
+		InOrder roomOrder = inOrder(roomCache);
+		roomOrder.verify(roomCache).load();
+		roomOrder.verify(roomCache).refresh();
+		verify(emoticonCache, times(0)).reload();
+		verify(roomCache, times(0)).reload();
+	}
+
 	@Test
 	public void testNoParameterMatch() throws Exception {
 		// Mocks
@@ -595,6 +656,131 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		AssertJUnit.assertEquals(expectedNotifyStatus, actualProjectConfiguration.getNotifyStatus());
 	}
 
+	@Test
+	public void testProjectTemplateChange() throws Exception {
+		// Test parameters
+		String expectedProjectId = "project1";
+		String expectedTemplate = "Built ${buildNumber}";
+
+		// Mocks
+		MockRequest request = new MockRequest();
+		request.addParameters("project", "1");
+		request.addParameters("roomId", "room1");
+		request.addParameters("notify", "false");
+		request.addParameters("projectId", expectedProjectId);
+		request.addParameters("buildSuccessfulTemplate", expectedTemplate);
+		request.addParameters("buildFailedTemplate", "");
+		this.myRequest = request;
+
+		// Execute
+		processRequest();
+
+		// Test
+		HipChatProjectConfiguration actualProjectConfiguration = this.configuration.getProjectConfiguration(expectedProjectId);
+		AssertJUnit.assertEquals(expectedTemplate, actualProjectConfiguration.getTemplate(TeamCityEvent.BUILD_SUCCESSFUL));
+		AssertJUnit.assertNull(actualProjectConfiguration.getTemplate(TeamCityEvent.BUILD_FAILED));
+		AssertJUnit.assertNull(actualProjectConfiguration.getTemplate(TeamCityEvent.BUILD_STARTED));
+		
+		// An invalid template is not saved
+		request = new MockRequest();
+		request.addParameters("project", "1");
+		request.addParameters("roomId", "room2");
+		request.addParameters("notify", "false");
+		request.addParameters("projectId", expectedProjectId);
+		request.addParameters("buildSuccessfulTemplate", "<#if ${fullName}>x</#if>");
+		this.myRequest = request;
+		processRequest();
+		actualProjectConfiguration = this.configuration.getProjectConfiguration(expectedProjectId);
+		AssertJUnit.assertEquals("room1", actualProjectConfiguration.getRoomId());
+		AssertJUnit.assertEquals(expectedTemplate, actualProjectConfiguration.getTemplate(TeamCityEvent.BUILD_SUCCESSFUL));
+	}
+
+	@Test
+	public void testPreviewWithSampleValues() throws Exception {
+		// Mocks
+		when(this.myServer.getRootUrl()).thenReturn("http://example.com");
+		MockRequest request = new MockRequest();
+		request.addParameters("preview", "1");
+		request.addParameters("event", TeamCityEvent.BUILD_FAILED.name());
+		request.addParameters("template", "<a href=\"${serverUrl}\">${fullName}</a> failed");
+		request.addParameters("buildId", "");
+		this.myRequest = request;
+
+		// Execute
+		ModelAndView result = processRequest();
+
+		// Test
+		AssertJUnit.assertNull(result);
+		AssertJUnit.assertEquals("application/json", this.myResponse.getContentType());
+		JsonNode preview = new ObjectMapper().readTree(this.myResponse.getContentAsString());
+		AssertJUnit.assertEquals("<a href=\"http://example.com\">Sample Project :: Sample Build</a> failed", preview.get("html").getTextValue());
+		AssertJUnit.assertTrue(preview.get("error").isNull());
+		AssertJUnit.assertEquals("Sample build", preview.get("source").getTextValue());
+		AssertJUnit.assertTrue(preview.get("renderTime").getDoubleValue() > 0);
+		AssertJUnit.assertEquals(0, preview.get("enrichments").size());
+	}
+
+	@Test
+	public void testPreviewReportsSyntaxErrors() throws Exception {
+		// Mocks
+		MockRequest request = new MockRequest();
+		request.addParameters("preview", "1");
+		request.addParameters("event", TeamCityEvent.SERVER_STARTUP.name());
+		request.addParameters("template", "<#if ${foo}>x</#if>");
+		this.myRequest = request;
+
+		// Execute
+		processRequest();
+
+		// Test
+		JsonNode preview = new ObjectMapper().readTree(this.myResponse.getContentAsString());
+		AssertJUnit.assertTrue(preview.get("html").isNull());
+		AssertJUnit.assertFalse(preview.get("error").isNull());
+	}
+
+	@Test
+	public void testPreviewReportsInvalidEvent() throws Exception {
+		// Mocks
+		MockRequest request = new MockRequest();
+		request.addParameters("preview", "1");
+		request.addParameters("event", "NO_SUCH_EVENT");
+		request.addParameters("template", "${fullName}");
+		this.myRequest = request;
+
+		// Execute
+		processRequest();
+
+		// Test
+		AssertJUnit.assertEquals(HttpStatus.SC_BAD_REQUEST, this.myResponse.getStatus());
+		JsonNode preview = new ObjectMapper().readTree(this.myResponse.getContentAsString());
+		AssertJUnit.assertTrue(preview.get("html").isNull());
+		AssertJUnit.assertEquals("Invalid event: NO_SUCH_EVENT", preview.get("error").getTextValue());
+	}
+
+	@Test
+	public void testPreviewOfBuildRequiresPermission() throws Exception {
+		// Mocks
+		SBuild build = org.mockito.Mockito.mock(SBuild.class);
+		when(build.getProjectId()).thenReturn("project1");
+		when(this.myServer.findBuildInstanceById(1)).thenReturn(build);
+		MockRequest request = new MockRequest();
+		request.addParameters("preview", "1");
+		request.addParameters("event", TeamCityEvent.BUILD_FAILED.name());
+		request.addParameters("template", "${fullName}");
+		request.addParameters("buildId", "1");
+		this.myRequest = request;
+
+		// Execute: nobody is logged in
+		processRequest();
+
+		// Test
+		AssertJUnit.assertEquals(HttpStatus.SC_FORBIDDEN, this.myResponse.getStatus());
+		JsonNode preview = new ObjectMapper().readTree(this.myResponse.getContentAsString());
+		AssertJUnit.assertTrue(preview.get("html").isNull());
+		AssertJUnit.assertFalse(preview.get("error").isNull());
+		verify(build, never()).getBuildType();
+	}
+
 	@Test
 	public void testEnablePlugin() throws Exception {
 		// Test parameters
@@ -643,12 +829,17 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		this.myRequest = request;
 
 		// Execute
-		when(this.processor.testAuthentication()).thenReturn(true);
+		when(this.processor.testAuthentication(any(HipChatConfiguration.class))).thenReturn(true);
 		ModelAndView result = processRequest();
 
-		// Test
+		// Test: the settings are tested without being applied
 		AssertJUnit.assertNull(result);
 		AssertJUnit.assertEquals(HttpStatus.SC_OK, this.myResponse.getStatus());
+		ArgumentCaptor<HipChatConfiguration> testedConfiguration = ArgumentCaptor.forClass(HipChatConfiguration.class);
+		verify(this.processor).testAuthentication(testedConfiguration.capture());
+		AssertJUnit.assertEquals("http://example.com/", testedConfiguration.getValue().getApiUrl());
+		AssertJUnit.assertEquals("1234567890", testedConfiguration.getValue().getApiToken());
+		AssertJUnit.assertFalse("1234567890".equals(this.configuration.getApiToken()));
 	}
 
 	@Test
@@ -661,7 +852,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 		this.myRequest = request;
 
 		// Execute
-		when(this.processor.testAuthentication()).thenReturn(false);
+		when(this.processor.testAuthentication(any(HipChatConfiguration.class))).thenReturn(false);
 		ModelAndView result = processRequest();
 
 		// Test
@@ -997,7 +1188,7 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 	}
 
 	@Test
-	public void testReloadEmoticons() throws Exception {
+	public void testReloadEmoticonsInBackground() throws Exception {
 		// Mocks
 		MockRequest request = new MockRequest();
 		request.addParameters("reloadEmoticons", "1");
@@ -1008,7 +1199,24 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 
 		// Test
 		AssertJUnit.assertNull(result);
-		org.mockito.Mockito.verify(this.emoticonCache, times(1)).reload();
+		verify(this.emoticonCache, times(1)).refresh();
+		verify(this.emoticonCache, times(0)).reload();
+	}
+
+	@Test
+	public void testReloadRoomsRefreshesInBackground() throws Exception {
+		// Mocks
+		MockRequest request = new MockRequest();
+		request.addParameters("reloadRooms", "1");
+		this.myRequest = request;
+
+		// Execute
+		ModelAndView result = processRequest();
+
+		// Test
+		AssertJUnit.assertNull(result);
+		verify(this.roomCache, times(1)).refresh();
+		verify(this.roomCache, times(0)).reload();
 	}
 
 	@Override
@@ -1017,10 +1225,12 @@ public class HipChatConfigurationControllerTest extends BaseControllerTestCase<H
 			ServerPaths serverPaths = org.mockito.Mockito.mock(ServerPaths.class);
 			when(serverPaths.getConfigDir()).thenReturn(".");
 			this.emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+			this.dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
+			this.roomCache = org.mockito.Mockito.mock(HipChatRoomCache.class);
 			this.configuration = new HipChatConfiguration();
 			this.templates = new HipChatNotificationMessageTemplates(serverPaths);
 			this.processor = org.mockito.Mockito.mock(HipChatApiProcessor.class);
-			return new HipChatConfigurationController(this.myServer, serverPaths, this.myWebManager, configuration, processor, templates, emoticonCache);
+			return new HipChatConfigurationController(this.myServer, serverPaths, this.myWebManager, configuration, processor, templates, emoticonCache, dispatcher, roomCache);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
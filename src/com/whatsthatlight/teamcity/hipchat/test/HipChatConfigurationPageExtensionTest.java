@@ -27,10 +27,14 @@ import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfigurationPageExtension;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonCache;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
 import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomCache;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoom;
 import com.whatsthatlight.teamcity.hipchat.HipChatRooms;
 import com.whatsthatlight.teamcity.hipchat.HipChatServerExtension;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateRenderer;
 import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 
 import jetbrains.buildServer.controllers.WebFixture;
@@ -73,9 +77,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
         
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 		
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -100,9 +108,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
 
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 
         // Execute
 		String actualGroup = myPage.getGroup();
@@ -114,7 +126,7 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
 	@Test
 	public void testFillModel() throws Exception {
 		// Test parameters
-		int expectedModelSize = 31;
+		int expectedModelSize = 45;
 		String expectedRoomId = "room1";
 		String expectedRoomName = "test room";
 		
@@ -140,9 +152,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
 
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -158,7 +174,7 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
 	@Test
 	public void testFillModelUsingServerEventRoomId() throws Exception {
 		// Test parameters
-		int expectedModelSize = 31;
+		int expectedModelSize = 45;
 		String expectedDefaultRoomId = "room1";
 		String expectedServerEventRoomId = "room2";
 		String expectedRoomName = "test room";
@@ -187,9 +203,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
 
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -207,7 +227,7 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
 	@Test
 	public void testFillModelNoEventsConfiguration() throws Exception {
 		// Test parameters
-		int expectedModelSize = 23;
+		int expectedModelSize = 37;
 		String expectedRoomId = "room1";
 		String expectedRoomName = "test room";
 		
@@ -234,9 +254,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
 
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -252,7 +276,7 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
 	@Test
 	public void testFillModelGetTemplateRaisesException() throws IOException {
 		// Test parameters
-		int expectedModelSize = 19;
+		int expectedModelSize = 32;
 		String expectedRoomId = "room1";
 		String expectedRoomName = "test room";
 		String expectedExceptionText = "This is a test!";
@@ -283,9 +307,13 @@ public class HipChatConfigurationPageExtensionTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
         HipChatServerExtension serverExtension = org.mockito.Mockito.mock(HipChatServerExtension.class);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
+		HipChatNotificationDispatcher dispatcher = org.mockito.Mockito.mock(HipChatNotificationDispatcher.class);
 
         // The test page
-        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		roomCache.reload();
+        HipChatConfigurationPageExtension myPage = new HipChatConfigurationPageExtension(pagePlaces, descriptor, configuration, processor, templates, serverExtension, emoticonCache, dispatcher, roomCache, renderer, new HipChatTemplateConfiguration());
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
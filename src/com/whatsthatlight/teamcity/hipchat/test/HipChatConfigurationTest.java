@@ -23,6 +23,7 @@ import java.net.URISyntaxException;
 
 import org.testng.annotations.Test;
 
+import com.thoughtworks.xstream.XStream;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 
@@ -56,4 +57,77 @@ public class HipChatConfigurationTest {
 		assertEquals(expectedNotifyStatusLatter, projectConfigurationLatter.getNotifyStatus());
 	}
 
+	@Test
+	public void testProjectConfigurationIsIndexedAfterDeserialization() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room1", true));
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project2", "room2", false));
+		XStream xstream = new XStream();
+		xstream.processAnnotations(HipChatConfiguration.class);
+		
+		// Execute
+		String xml = xstream.toXML(configuration);
+		HipChatConfiguration actualConfiguration = (HipChatConfiguration) xstream.fromXML(xml);
+		actualConfiguration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room3", false));
+		
+		// Test: the index is not written, and is rebuilt when read
+		assertFalse(xml.contains("projectIndex"));
+		assertEquals(2, actualConfiguration.getProjectRoomMap().size());
+		assertEquals("room3", actualConfiguration.getProjectConfiguration("project1").getRoomId());
+		assertEquals("room3", actualConfiguration.getProjectRoomMap().get(0).getRoomId());
+		assertEquals("room2", actualConfiguration.getProjectConfiguration("project2").getRoomId());
+		assertNull(actualConfiguration.getProjectConfiguration("project3"));
+	}
+
+	@Test
+	public void testSnapshotIsImmutableAndReplacedOnChange() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("room1");
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room1", true));
+		
+		// Execute
+		HipChatConfiguration snapshot = configuration.getSnapshot();
+		
+		// Test: the snapshot is taken once, and cannot be changed
+		assertTrue(snapshot.isSnapshot());
+		assertSame(snapshot, configuration.getSnapshot());
+		assertSame(snapshot, snapshot.getSnapshot());
+		try {
+			snapshot.setDefaultRoomId("room2");
+			fail("A snapshot cannot be changed");
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			snapshot.getEvents().setBuildStartedStatus(false);
+			fail("A snapshot cannot be changed");
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			snapshot.getProjectConfiguration("project1").setRoomId("room2");
+			fail("A snapshot cannot be changed");
+		} catch (UnsupportedOperationException e) {
+		}
+		
+		// Changes to the configuration or its parts are seen by the next snapshot only
+		configuration.getEvents().setBuildStartedStatus(false);
+		HipChatConfiguration nextSnapshot = configuration.getSnapshot();
+		assertNotSame(snapshot, nextSnapshot);
+		assertTrue(snapshot.getEvents().getBuildStartedStatus());
+		assertFalse(nextSnapshot.getEvents().getBuildStartedStatus());
+		
+		// A published configuration replaces the whole configuration
+		HipChatConfiguration next = new HipChatConfiguration(nextSnapshot);
+		next.setDefaultRoomId("room2");
+		next.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room3", false));
+		configuration.publish(next);
+		assertEquals("room1", nextSnapshot.getDefaultRoomId());
+		assertEquals("room1", nextSnapshot.getProjectConfiguration("project1").getRoomId());
+		assertEquals("room2", configuration.getDefaultRoomId());
+		assertEquals("room2", configuration.getSnapshot().getDefaultRoomId());
+		assertEquals("room3", configuration.getSnapshot().getProjectConfiguration("project1").getRoomId());
+		assertFalse(configuration.getSnapshot().getEvents().getBuildStartedStatus());
+	}
+
 }
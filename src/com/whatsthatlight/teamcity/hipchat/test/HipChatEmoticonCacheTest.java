@@ -2,14 +2,20 @@ package com.whatsthatlight.teamcity.hipchat.test;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.BasicConfigurator;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.AssertJUnit;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -20,6 +26,7 @@ import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticon;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonCache;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticons;
+import com.whatsthatlight.teamcity.hipchat.HipChatSnapshotFile;
 
 public class HipChatEmoticonCacheTest {
 
@@ -130,4 +137,104 @@ public class HipChatEmoticonCacheTest {
 		verify(processor).getEmoticons(startIndex2);
 	}
 	
+	@Test
+	public void testFailedReloadKeepsEmoticons() throws IOException {
+		// First load
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "emo1", "http://example.com/"));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, 1, new HipChatApiResultLinks(null, null, null));
+
+		// API call mocks: the second reload fails
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getEmoticons(0)).thenReturn(emoticons, (HipChatEmoticons) null);
+
+		// Execute
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor);
+		emoticonCache.reload();
+		int size = emoticonCache.reload();
+
+		// Test
+		AssertJUnit.assertEquals(1, size);
+		AssertJUnit.assertEquals("http://example.com/", emoticonCache.get("emo1"));
+	}
+	
+	@Test
+	public void testBackgroundReloadDoesNotBlockReaders() throws Exception {
+		// First load
+		List<HipChatEmoticon> items1 = new ArrayList<HipChatEmoticon>();
+		items1.add(new HipChatEmoticon("id1", null, "emo1", "http://example.com/1"));
+		final HipChatEmoticons emoticons1 = new HipChatEmoticons(items1, 0, 1, new HipChatApiResultLinks(null, null, null));
+		
+		// Second load
+		List<HipChatEmoticon> items2 = new ArrayList<HipChatEmoticon>();
+		items2.add(new HipChatEmoticon("id1", null, "emo1", "http://example.com/2"));
+		items2.add(new HipChatEmoticon("id2", null, "emo2", "http://example.com/2"));
+		final HipChatEmoticons emoticons2 = new HipChatEmoticons(items2, 0, 2, new HipChatApiResultLinks(null, null, null));
+
+		// API call mocks: the second reload stalls until released
+		final CountDownLatch release = new CountDownLatch(1);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getEmoticons(0)).thenAnswer(new Answer<HipChatEmoticons>() {
+			private int calls;
+			
+			@Override
+			public HipChatEmoticons answer(InvocationOnMock invocation) throws Throwable {
+				if (++this.calls == 1) {
+					return emoticons1;
+				}
+				release.await(5, TimeUnit.SECONDS);
+				return emoticons2;
+			}
+		});
+
+		// Execute
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor);
+		emoticonCache.reload();
+		AssertJUnit.assertTrue(emoticonCache.refresh());
+		AssertJUnit.assertFalse(emoticonCache.refresh());
+
+		// Test: the previous emoticons are served while the reload is in progress
+		AssertJUnit.assertTrue(emoticonCache.isReloading());
+		AssertJUnit.assertEquals(1, emoticonCache.getSize());
+		AssertJUnit.assertEquals("http://example.com/1", emoticonCache.get("emo1"));
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (emoticonCache.isReloading() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		AssertJUnit.assertEquals(2, emoticonCache.getSize());
+		AssertJUnit.assertEquals("http://example.com/2", emoticonCache.get("emo1"));
+		emoticonCache.shutdown();
+	}
+	
+	@Test
+	public void testSnapshotIsLoadedWithoutApi() throws IOException {
+		File file = File.createTempFile("emoticons", ".json");
+		file.delete();
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "emo1", "http://example.com/1"));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, 1, new HipChatApiResultLinks(null, null, null));
+
+		// A reload persists the emoticons
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getEmoticons(0)).thenReturn(emoticons);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, new HipChatSnapshotFile(file));
+		AssertJUnit.assertEquals(0, emoticonCache.load());
+		emoticonCache.reload();
+		AssertJUnit.assertTrue(file.exists());
+		
+		// Execute: load them in a new cache, as after a restart
+		HipChatApiProcessor unavailableProcessor = mock(HipChatApiProcessor.class);
+		HipChatEmoticonCache restartedEmoticonCache = new HipChatEmoticonCache(unavailableProcessor, new HipChatSnapshotFile(file));
+		int size = restartedEmoticonCache.load();
+
+		// Test
+		AssertJUnit.assertEquals(1, size);
+		AssertJUnit.assertEquals("http://example.com/1", restartedEmoticonCache.get("emo1"));
+		verifyZeroInteractions(unavailableProcessor);
+		emoticonCache.shutdown();
+		restartedEmoticonCache.shutdown();
+		file.delete();
+	}
+	
 }
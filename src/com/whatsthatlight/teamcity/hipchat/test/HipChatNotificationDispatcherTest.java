@@ -0,0 +1,443 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatDelivery;
+import com.whatsthatlight.teamcity.hipchat.HipChatDispatchStatistics;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationJournal;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateRenderer;
+
+public class HipChatNotificationDispatcherTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+	
+	// Journal directories created by the test, which are deleted after it with the journal files in them
+	private List<File> directories = new ArrayList<File>();
+	
+	@AfterMethod
+	public void deleteJournalDirectories() {
+		for (File directory : this.directories) {
+			delete(directory);
+		}
+		this.directories.clear();
+	}
+	
+	private File createJournalDirectory() throws IOException {
+		File directory = File.createTempFile("hipchat", "outbox");
+		directory.delete();
+		this.directories.add(directory);
+		return directory;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testShutdownDrainsQueue() {
+		// Test parameters
+		int notificationCount = 5;
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchWorkers(1);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		for (int i = 0; i < notificationCount; i++) {
+			AssertJUnit.assertTrue(dispatcher.dispatch(notification, roomId));
+		}
+		dispatcher.shutdown();
+		
+		// Test
+		HipChatDispatchStatistics statistics = dispatcher.getStatistics();
+		AssertJUnit.assertEquals(notificationCount, statistics.getEnqueued());
+		AssertJUnit.assertEquals(notificationCount, statistics.getDispatched());
+		AssertJUnit.assertEquals(0, statistics.getDropped());
+		
+		// Verifications
+		verify(processor, times(notificationCount)).sendNotification(eq(notification), eq(roomId), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testNotificationsAreDroppedWhenQueueIsFull() throws InterruptedException {
+		// Test parameters
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchWorkers(1);
+		configuration.setDispatchQueueCapacity(1);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				sending.countDown();
+				release.await();
+				return HipChatDelivery.DELIVERED;
+			}
+		}).when(processor).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+		
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		// The first occupies the only worker, the second the only queue slot
+		AssertJUnit.assertTrue(dispatcher.dispatch(notification, roomId));
+		AssertJUnit.assertTrue(sending.await(5, TimeUnit.SECONDS));
+		AssertJUnit.assertTrue(dispatcher.dispatch(notification, roomId));
+		boolean thirdAccepted = dispatcher.dispatch(notification, roomId);
+		HipChatDispatchStatistics busyStatistics = dispatcher.getStatistics();
+		release.countDown();
+		dispatcher.shutdown();
+		
+		// Test
+		AssertJUnit.assertFalse(thirdAccepted);
+		AssertJUnit.assertEquals(1, busyStatistics.getQueueDepth());
+		AssertJUnit.assertEquals(1, busyStatistics.getQueueCapacity());
+		AssertJUnit.assertEquals(1, busyStatistics.getActiveWorkers());
+		HipChatDispatchStatistics statistics = dispatcher.getStatistics();
+		AssertJUnit.assertEquals(2, statistics.getEnqueued());
+		AssertJUnit.assertEquals(2, statistics.getDispatched());
+		AssertJUnit.assertEquals(1, statistics.getDropped());
+		
+		// Verifications
+		verify(processor, times(2)).sendNotification(eq(notification), eq(roomId), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testFailedSendDoesNotStopWorker() {
+		// Test parameters
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchWorkers(1);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		doAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				throw new RuntimeException("Send failed");
+			}
+		}).when(processor).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+		
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(notification, roomId);
+		dispatcher.dispatch(notification, roomId);
+		dispatcher.shutdown();
+		
+		// Test
+		AssertJUnit.assertEquals(2, dispatcher.getStatistics().getDispatched());
+		
+		// Verifications
+		verify(processor, times(2)).sendNotification(eq(notification), eq(roomId), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testUndeliveredNotificationsAreReplayed() throws IOException {
+		// Test parameters
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor failingProcessor = mock(HipChatApiProcessor.class);
+		when(failingProcessor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.FAILED);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.DELIVERED);
+		
+		// Execute: the first delivery fails, e.g. because HipChat is down
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, failingProcessor, new HipChatNotificationJournal(directory));
+		dispatcher.dispatch(notification, roomId);
+		dispatcher.shutdown();
+		
+		// Execute: restart
+		HipChatNotificationDispatcher restartedDispatcher = new HipChatNotificationDispatcher(configuration, processor, new HipChatNotificationJournal(directory));
+		int replayed = restartedDispatcher.replay();
+		restartedDispatcher.shutdown();
+		
+		// Execute: restart again
+		HipChatNotificationDispatcher restartedAgainDispatcher = new HipChatNotificationDispatcher(configuration, processor, new HipChatNotificationJournal(directory));
+		int replayedAgain = restartedAgainDispatcher.replay();
+		restartedAgainDispatcher.shutdown();
+		
+		// Test
+		AssertJUnit.assertEquals(1, replayed);
+		AssertJUnit.assertEquals(0, replayedAgain);
+		
+		// Verifications
+		verify(failingProcessor, times(1)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+		verify(processor, times(1)).sendNotification(any(HipChatRoomNotification.class), eq(roomId), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testRejectedNotificationsAreNotReplayed() throws IOException {
+		// Test parameters
+		String roomId = "deleted";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor rejectingProcessor = mock(HipChatApiProcessor.class);
+		when(rejectingProcessor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.REJECTED);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		
+		// Execute: HipChat rejects the notification, e.g. because the room does not exist
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, rejectingProcessor, new HipChatNotificationJournal(directory));
+		dispatcher.dispatch(notification, roomId);
+		dispatcher.shutdown();
+		
+		// Execute: restart
+		HipChatNotificationDispatcher restartedDispatcher = new HipChatNotificationDispatcher(configuration, processor, new HipChatNotificationJournal(directory));
+		int replayed = restartedDispatcher.replay();
+		restartedDispatcher.shutdown();
+		
+		// Test
+		AssertJUnit.assertEquals(0, replayed);
+		verify(processor, never()).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testFailedNotificationsAreReplayedUpToLimit() throws IOException {
+		// Test parameters
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor failingProcessor = mock(HipChatApiProcessor.class);
+		when(failingProcessor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.FAILED);
+		
+		// Execute: HipChat stays down across restarts
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, failingProcessor, new HipChatNotificationJournal(directory));
+		dispatcher.dispatch(notification, roomId);
+		dispatcher.shutdown();
+		int replayed = 0;
+		for (int i = 1; i <= HipChatNotificationDispatcher.MAX_DELIVERY_FAILURES; i++) {
+			HipChatNotificationDispatcher restartedDispatcher = new HipChatNotificationDispatcher(configuration, failingProcessor, new HipChatNotificationJournal(directory));
+			replayed += restartedDispatcher.replay();
+			restartedDispatcher.shutdown();
+		}
+		
+		// Test
+		AssertJUnit.assertEquals(HipChatNotificationDispatcher.MAX_DELIVERY_FAILURES - 1, replayed);
+		verify(failingProcessor, times(HipChatNotificationDispatcher.MAX_DELIVERY_FAILURES)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testNotificationsForTheSameRoomAreCoalesced() {
+		// Test parameters
+		HipChatRoomNotification successful = new HipChatRoomNotification("<b>Build 1</b> successful", HipChatMessageFormat.HTML, HipChatMessageColour.SUCCESS, false);
+		HipChatRoomNotification failed = new HipChatRoomNotification("<b>Build 2</b> failed", HipChatMessageFormat.HTML, HipChatMessageColour.ERROR, true);
+		HipChatRoomNotification other = new HipChatRoomNotification("<b>Build 3</b> successful", HipChatMessageFormat.HTML, HipChatMessageColour.SUCCESS, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.DELIVERED);
+		
+		// Execute: the window is long enough that nothing is sent before the shutdown flushes it
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(successful, "room1");
+		dispatcher.dispatch(failed, "room1");
+		dispatcher.dispatch(other, "room2");
+		dispatcher.shutdown();
+		
+		// Test
+		ArgumentCaptor<HipChatRoomNotification> digest = ArgumentCaptor.forClass(HipChatRoomNotification.class);
+		verify(processor).sendNotification(digest.capture(), eq("room1"), any(HipChatDelivery.class));
+		AssertJUnit.assertEquals("<b>2 notifications</b><br/><b>Build 1</b> successful<br/><b>Build 2</b> failed", digest.getValue().message);
+		AssertJUnit.assertEquals(HipChatMessageColour.ERROR, digest.getValue().color);
+		AssertJUnit.assertTrue(digest.getValue().notify);
+		verify(processor).sendNotification(eq(other), eq("room2"), any(HipChatDelivery.class));
+		AssertJUnit.assertEquals(2, dispatcher.getStatistics().getCoalesced());
+	}
+	
+	@Test
+	public void testDigestIsSplitToFitMessageLimit() {
+		// Test parameters: three messages fit in a digest, four do not
+		StringBuilder text = new StringBuilder();
+		while (text.length() < HipChatTemplateRenderer.MAX_MESSAGE_LENGTH / 4 + 100) {
+			text.append("x");
+		}
+		HipChatRoomNotification notification = new HipChatRoomNotification(text.toString(), HipChatMessageFormat.HTML, HipChatMessageColour.INFO, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class))).thenReturn(HipChatDelivery.DELIVERED);
+		
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		for (int i = 0; i < 4; i++) {
+			dispatcher.dispatch(notification, "room1");
+		}
+		dispatcher.shutdown();
+		
+		// Test
+		ArgumentCaptor<HipChatRoomNotification> sent = ArgumentCaptor.forClass(HipChatRoomNotification.class);
+		verify(processor, times(2)).sendNotification(sent.capture(), eq("room1"), any(HipChatDelivery.class));
+		// The digest and the remaining notification are sent by different workers, so in either order
+		List<HipChatRoomNotification> messages = new ArrayList<HipChatRoomNotification>(sent.getAllValues());
+		AssertJUnit.assertTrue(messages.remove(notification));
+		HipChatRoomNotification digest = messages.get(0);
+		AssertJUnit.assertTrue(digest.message.startsWith("<b>3 notifications</b>"));
+		AssertJUnit.assertEquals("<b>3 notifications</b>".length() + 3 * ("<br/>".length() + text.length()), digest.message.length());
+		AssertJUnit.assertTrue(digest.message.length() <= HipChatTemplateRenderer.MAX_MESSAGE_LENGTH);
+		AssertJUnit.assertEquals(3, dispatcher.getStatistics().getCoalesced());
+	}
+	
+	@Test
+	public void testFullBatchIsSentBeforeWindowCloses() {
+		// Test parameters
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.HTML, HipChatMessageColour.INFO, false);
+		
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		configuration.setCoalescingMaxBatchSize(2);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(notification, "room1");
+		dispatcher.dispatch(notification, "room1");
+		
+		// Verifications
+		verify(processor, timeout(5000).times(1)).sendNotification(any(HipChatRoomNotification.class), eq("room1"), any(HipChatDelivery.class));
+		dispatcher.shutdown();
+		verify(processor, times(1)).sendNotification(any(HipChatRoomNotification.class), eq("room1"), any(HipChatDelivery.class));
+	}
+	
+	@Test
+	public void testRetryDoesNotHoldOnToWorker() throws InterruptedException {
+		// Test parameters
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+
+		// Mocks and other dependencies: room1 asks to be retried once, after a delay
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchWorkers(1);
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch delivered = new CountDownLatch(2);
+		doAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String roomId = (String) invocation.getArguments()[1];
+				HipChatDelivery delivery = (HipChatDelivery) invocation.getArguments()[2];
+				attempts.add(roomId);
+				if (roomId.equals("room1") && attempts.size() == 1) {
+					return delivery.retry(500, "Rate limit approaching");
+				}
+				delivered.countDown();
+				return delivery.delivered();
+			}
+		}).when(processor).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
+
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(notification, "room1");
+		dispatcher.dispatch(notification, "room2");
+		AssertJUnit.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+
+		// Test: the only worker delivered room2 while room1 was waiting
+		AssertJUnit.assertEquals(Arrays.asList("room1", "room2", "room1"), attempts);
+		HipChatDispatchStatistics statistics = dispatcher.getStatistics();
+		AssertJUnit.assertEquals(2, statistics.getEnqueued());
+		AssertJUnit.assertEquals(2, statistics.getDispatched());
+	}
+
+	@Test
+	public void testDispatchAfterShutdownIsRejected() {
+		// Test parameters
+		String roomId = "room1";
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+
+		// Mocks and other dependencies
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+
+		// Execute
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		AssertJUnit.assertTrue(dispatcher.dispatch(notification, roomId));
+		dispatcher.shutdown();
+		boolean accepted = dispatcher.dispatch(notification, roomId);
+
+		// Test: the queue is not recreated
+		AssertJUnit.assertFalse(accepted);
+		HipChatDispatchStatistics statistics = dispatcher.getStatistics();
+		AssertJUnit.assertEquals(1, statistics.getEnqueued());
+		AssertJUnit.assertEquals(1, statistics.getDropped());
+		AssertJUnit.assertEquals(0, statistics.getActiveWorkers());
+
+		// Verifications
+		verify(processor, times(1)).sendNotification(eq(notification), eq(roomId), any(HipChatDelivery.class));
+	}
+
+	@Test
+	public void testDefaultSettings() {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatDispatchStatistics statistics = dispatcher.getStatistics();
+		AssertJUnit.assertEquals(HipChatConfiguration.DEFAULT_DISPATCH_WORKERS, statistics.getWorkers());
+		AssertJUnit.assertEquals(HipChatConfiguration.DEFAULT_DISPATCH_QUEUE_CAPACITY, statistics.getQueueCapacity());
+		AssertJUnit.assertEquals(0, statistics.getQueueDepth());
+	}
+
+}
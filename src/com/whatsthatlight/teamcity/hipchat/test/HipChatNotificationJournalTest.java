@@ -0,0 +1,207 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatJournalEntry;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationJournal;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+
+public class HipChatNotificationJournalTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+	
+	// Journal directories created by the test, which are deleted after it with the journal files in them
+	private List<File> directories = new ArrayList<File>();
+	
+	@AfterMethod
+	public void deleteJournalDirectories() {
+		for (File directory : this.directories) {
+			delete(directory);
+		}
+		this.directories.clear();
+	}
+	
+	private File createJournalDirectory() throws IOException {
+		File directory = File.createTempFile("hipchat", "outbox");
+		directory.delete();
+		this.directories.add(directory);
+		return directory;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	@Test
+	public void testUnacknowledgedEntriesAreRecovered() throws IOException {
+		// Test parameters
+		String expectedRoomId = "room1";
+		String expectedMessage = "Build <b>failed</b> ☹";
+		HipChatRoomNotification notification = new HipChatRoomNotification(expectedMessage, HipChatMessageFormat.HTML, HipChatMessageColour.ERROR, true);
+		File directory = createJournalDirectory();
+		
+		// Execute
+		HipChatNotificationJournal journal = new HipChatNotificationJournal(directory);
+		AssertJUnit.assertTrue(journal.recover().isEmpty());
+		long acknowledgedId = journal.append("room0", notification);
+		long pendingId = journal.append(expectedRoomId, notification);
+		journal.acknowledge(acknowledgedId);
+		journal.close();
+		
+		HipChatNotificationJournal reopenedJournal = new HipChatNotificationJournal(directory);
+		List<HipChatJournalEntry> entries = reopenedJournal.recover();
+		long nextId = reopenedJournal.append(expectedRoomId, notification);
+		List<HipChatJournalEntry> entriesRecoveredAgain = reopenedJournal.recover();
+		reopenedJournal.close();
+		
+		// Test
+		AssertJUnit.assertEquals(1, entries.size());
+		HipChatJournalEntry entry = entries.get(0);
+		AssertJUnit.assertEquals(pendingId, entry.getId());
+		AssertJUnit.assertEquals(expectedRoomId, entry.getRoomId());
+		AssertJUnit.assertEquals(expectedMessage, entry.getNotification().message);
+		AssertJUnit.assertEquals(HipChatMessageFormat.HTML, entry.getNotification().messageFormat);
+		AssertJUnit.assertEquals(HipChatMessageColour.ERROR, entry.getNotification().color);
+		AssertJUnit.assertTrue(entry.getNotification().notify);
+		AssertJUnit.assertTrue(nextId > pendingId);
+		AssertJUnit.assertTrue(entriesRecoveredAgain.isEmpty());
+	}
+	
+	@Test
+	public void testTornRecordIsIgnored() throws IOException {
+		// Test parameters
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Execute
+		HipChatNotificationJournal journal = new HipChatNotificationJournal(directory);
+		journal.append("room1", notification);
+		journal.append("room2", notification);
+		journal.close();
+		
+		// Cut the last record short, as a crash half way through a write would
+		File segment = directory.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+		
+		HipChatNotificationJournal reopenedJournal = new HipChatNotificationJournal(directory);
+		List<HipChatJournalEntry> entries = reopenedJournal.recover();
+		reopenedJournal.close();
+		
+		// Test
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals("room1", entries.get(0).getRoomId());
+	}
+	
+	@Test
+	public void testAcknowledgedSegmentsAreCompacted() throws IOException {
+		// Test parameters
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			message.append('x');
+		}
+		HipChatRoomNotification notification = new HipChatRoomNotification(message.toString(), HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Execute: enough to fill several segments, with one entry that is never acknowledged
+		HipChatNotificationJournal journal = new HipChatNotificationJournal(directory);
+		long stuckId = journal.append("stuck", notification);
+		for (int i = 0; i < 1000; i++) {
+			journal.acknowledge(journal.append("room1", notification));
+		}
+		int segmentCount = journal.getSegmentCount();
+		int fileCount = directory.listFiles().length;
+		journal.close();
+		
+		HipChatNotificationJournal reopenedJournal = new HipChatNotificationJournal(directory);
+		List<HipChatJournalEntry> entries = reopenedJournal.recover();
+		reopenedJournal.close();
+		
+		// Test
+		AssertJUnit.assertTrue(segmentCount <= 4);
+		AssertJUnit.assertEquals(segmentCount, fileCount);
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals(stuckId, entries.get(0).getId());
+	}
+	
+	@Test
+	public void testFailuresAreCountedAcrossRestarts() throws IOException {
+		// Test parameters
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Execute
+		HipChatNotificationJournal journal = new HipChatNotificationJournal(directory);
+		long id = journal.append("room1", notification);
+		int firstFailures = journal.recordFailure(id);
+		int secondFailures = journal.recordFailure(id);
+		journal.close();
+		
+		HipChatNotificationJournal reopenedJournal = new HipChatNotificationJournal(directory);
+		List<HipChatJournalEntry> entries = reopenedJournal.recover();
+		int thirdFailures = reopenedJournal.recordFailure(id);
+		reopenedJournal.acknowledge(id);
+		int unknownFailures = reopenedJournal.recordFailure(id);
+		reopenedJournal.close();
+		
+		// Test
+		AssertJUnit.assertEquals(1, firstFailures);
+		AssertJUnit.assertEquals(2, secondFailures);
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals(2, entries.get(0).getFailures());
+		AssertJUnit.assertEquals(3, thirdFailures);
+		AssertJUnit.assertEquals(0, unknownFailures);
+	}
+	
+	@Test
+	public void testClosedJournalIsNotReopened() throws IOException {
+		// Test parameters
+		HipChatRoomNotification notification = new HipChatRoomNotification("message", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		File directory = createJournalDirectory();
+		
+		// Execute
+		HipChatNotificationJournal journal = new HipChatNotificationJournal(directory);
+		long id = journal.append("room1", notification);
+		journal.close();
+		int segments = directory.list().length;
+		
+		// Late acknowledgements are ignored, and the entry is replayed after the restart instead
+		journal.acknowledge(id);
+		AssertJUnit.assertEquals(0, journal.recordFailure(id));
+		try {
+			journal.append("room1", notification);
+			AssertJUnit.fail("Appended to a closed journal");
+		} catch (IOException e) {
+		}
+		
+		// Test
+		AssertJUnit.assertEquals(segments, directory.list().length);
+		HipChatNotificationJournal reopenedJournal = new HipChatNotificationJournal(directory);
+		AssertJUnit.assertEquals(1, reopenedJournal.recover().size());
+		reopenedJournal.close();
+	}
+
+}
@@ -3,6 +3,7 @@ package com.whatsthatlight.teamcity.hipchat.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -10,6 +11,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
 
+import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import static org.mockito.Mockito.*;
 
@@ -19,7 +21,11 @@ import org.testng.annotations.DataProvider;
 
 import org.apache.log4j.BasicConfigurator;
 
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateCacheStatistics;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateConfiguration;
 import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 
 import freemarker.cache.StringTemplateLoader;
@@ -234,4 +240,255 @@ public class HipChatNotificationMessageTemplatesTest {
 	    assertEquals(expectedTemplateStringSecond, actualTemplate.toString());
 	}
 	
+	@Test
+	public void testCompiledTemplateIsCached() throws IOException {
+		// Pre-conditions
+		File templateFile = new File("hipchat", "buildFailedTemplate.ftl");
+		templateFile.delete();
+		
+		// Prepare
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		
+		// Execute
+		Template first = templates.readTemplate(TeamCityEvent.BUILD_FAILED);
+		Template second = templates.readTemplate(TeamCityEvent.BUILD_FAILED);
+		
+		// Test
+		assertSame(first, second);
+		
+		// Writing the template replaces the cached one
+		templates.writeTemplate(TeamCityEvent.BUILD_FAILED, "foo");
+		Template third = templates.readTemplate(TeamCityEvent.BUILD_FAILED);
+		assertNotSame(first, third);
+		assertEquals("foo", third.toString());
+		assertSame(third, templates.readTemplate(TeamCityEvent.BUILD_FAILED));
+		templates.shutdown();
+		templateFile.delete();
+	}
+	
+	@Test
+	public void testTemplateFileIsOnlyParsedAgainAfterAChange() throws IOException {
+		// Pre-conditions
+		File templateFile = new File("hipchat", "serverShutdownTemplate.ftl");
+		templateFile.delete();
+		
+		// Prepare
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatTemplateConfiguration config = new HipChatTemplateConfiguration();
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths, new HipChatConfiguration(), config);
+		templates.writeTemplate(TeamCityEvent.SERVER_SHUTDOWN, "shutting down");
+		
+		// Execute
+		Template first = config.getTemplate("serverShutdownTemplate.ftl");
+		Template second = config.getTemplate("serverShutdownTemplate.ftl");
+		templates.writeTemplate(TeamCityEvent.SERVER_SHUTDOWN, "shutting down now");
+		Template third = config.getTemplate("serverShutdownTemplate.ftl");
+		
+		// Test: reads within the update delay share the parsed file, until the plugin sees it change
+		assertSame(first, second);
+		assertEquals("shutting down now", third.toString());
+		templates.shutdown();
+		templateFile.delete();
+	}
+	
+	@Test
+	public void testTemplateChangedOnDiskIsReloaded() throws IOException {
+		// Pre-conditions
+		File templateFile = new File("hipchat", "buildInterruptedTemplate.ftl");
+		templateFile.delete();
+		
+		// Prepare
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		assertEquals(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE, templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED).toString());
+		
+		// Execute: create the file behind the plugin's back
+		FileWriter fileWriter = new FileWriter(templateFile);
+		fileWriter.write("edited");
+		fileWriter.close();
+		templates.checkForChanges();
+		
+		// Test
+		assertEquals("edited", templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED).toString());
+		
+		// Deleting the file falls back to the default template
+		assertTrue(templateFile.delete());
+		templates.checkForChanges();
+		assertEquals(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE, templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED).toString());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testProjectTemplateIsInherited() throws IOException {
+		// Pre-conditions
+		new File("hipchat", "buildFailedTemplate.ftl").delete();
+		new File("hipchat", "buildStartedTemplate.ftl").delete();
+		
+		// Prepare: _Root > parent > child, where only the parent overrides the failed template
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatProjectConfiguration parentConfiguration = new HipChatProjectConfiguration("parent", HipChatConfiguration.ROOM_ID_DEFAULT_VALUE, false);
+		parentConfiguration.setTemplate(TeamCityEvent.BUILD_FAILED, "parent failed");
+		configuration.setProjectConfiguration(parentConfiguration);
+		SProject rootProject = mock(SProject.class);
+		when(rootProject.getProjectId()).thenReturn(HipChatConfiguration.ROOT_PROJECT_ID_VALUE);
+		SProject parentProject = mock(SProject.class);
+		when(parentProject.getProjectId()).thenReturn("parent");
+		when(parentProject.getParentProject()).thenReturn(rootProject);
+		SProject childProject = mock(SProject.class);
+		when(childProject.getProjectId()).thenReturn("child");
+		when(childProject.getParentProject()).thenReturn(parentProject);
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths, configuration);
+		
+		// Execute
+		Template childFailed = templates.readTemplate(childProject, TeamCityEvent.BUILD_FAILED);
+		Template parentFailed = templates.readTemplate(parentProject, TeamCityEvent.BUILD_FAILED);
+		Template childStarted = templates.readTemplate(childProject, TeamCityEvent.BUILD_STARTED);
+		
+		// Test: the parent's override is compiled once and shared, and other events use the global template
+		assertEquals("parent failed", childFailed.toString());
+		assertSame(childFailed, parentFailed);
+		assertSame(templates.readTemplate(TeamCityEvent.BUILD_STARTED), childStarted);
+		
+		// The child overrides the template itself
+		HipChatProjectConfiguration childConfiguration = new HipChatProjectConfiguration("child", HipChatConfiguration.ROOM_ID_PARENT_VALUE, false);
+		childConfiguration.setTemplate(TeamCityEvent.BUILD_FAILED, "child failed");
+		configuration.setProjectConfiguration(childConfiguration);
+		templates.invalidate("child");
+		assertEquals("child failed", templates.readTemplate(childProject, TeamCityEvent.BUILD_FAILED).toString());
+		assertSame(parentFailed, templates.readTemplate(parentProject, TeamCityEvent.BUILD_FAILED));
+		
+		// The parent's override is removed
+		parentConfiguration.setTemplate(TeamCityEvent.BUILD_FAILED, "");
+		templates.invalidate("parent");
+		assertEquals(HipChatNotificationMessageTemplates.BUILD_FAILED_DEFAULT_TEMPLATE, templates.readTemplate(parentProject, TeamCityEvent.BUILD_FAILED).toString());
+		assertEquals("child failed", templates.readTemplate(childProject, TeamCityEvent.BUILD_FAILED).toString());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testProjectTemplateIsResolvedOnce() throws IOException {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatProjectConfiguration parentConfiguration = new HipChatProjectConfiguration("parent", HipChatConfiguration.ROOM_ID_DEFAULT_VALUE, false);
+		parentConfiguration.setTemplate(TeamCityEvent.BUILD_SUCCESSFUL, "parent successful");
+		configuration.setProjectConfiguration(parentConfiguration);
+		SProject parentProject = mock(SProject.class);
+		when(parentProject.getProjectId()).thenReturn("parent");
+		SProject childProject = mock(SProject.class);
+		when(childProject.getProjectId()).thenReturn("child");
+		when(childProject.getParentProject()).thenReturn(parentProject);
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths, configuration);
+		
+		// Execute
+		Template first = templates.readTemplate(childProject, TeamCityEvent.BUILD_SUCCESSFUL);
+		Template second = templates.readTemplate(childProject, TeamCityEvent.BUILD_SUCCESSFUL);
+		
+		// Test: the hierarchy is only walked for the first build
+		assertSame(first, second);
+		verify(childProject, times(1)).getParentProject();
+		
+		// Moving projects around walks it again
+		templates.invalidateProjects();
+		assertEquals("parent successful", templates.readTemplate(childProject, TeamCityEvent.BUILD_SUCCESSFUL).toString());
+		verify(childProject, times(2)).getParentProject();
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testProjectTemplateFromStaleSnapshotIsNotKept() throws IOException {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatConfiguration staleConfiguration = configuration.getSnapshot();
+		HipChatConfiguration changedConfiguration = new HipChatConfiguration(staleConfiguration);
+		HipChatProjectConfiguration projectConfiguration = new HipChatProjectConfiguration("project", HipChatConfiguration.ROOM_ID_DEFAULT_VALUE, false);
+		projectConfiguration.setTemplate(TeamCityEvent.BUILD_SUCCESSFUL, "project successful");
+		changedConfiguration.setProjectConfiguration(projectConfiguration);
+		configuration.publish(changedConfiguration);
+		SProject project = mock(SProject.class);
+		when(project.getProjectId()).thenReturn("project");
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths, configuration);
+		
+		// Execute: an event received before the change was published
+		Template stale = templates.readTemplate(staleConfiguration, project, TeamCityEvent.BUILD_SUCCESSFUL);
+		Template current = templates.readTemplate(configuration.getSnapshot(), project, TeamCityEvent.BUILD_SUCCESSFUL);
+		
+		// Test
+		assertSame(templates.readTemplate(TeamCityEvent.BUILD_SUCCESSFUL), stale);
+		assertEquals("project successful", current.toString());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testUnchangedTemplateIsNotWritten() throws IOException {
+		// Pre-conditions
+		File failedFile = new File("hipchat", "buildFailedTemplate.ftl");
+		File startedFile = new File("hipchat", "buildStartedTemplate.ftl");
+		failedFile.delete();
+		startedFile.delete();
+		
+		// Prepare
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		assertTrue(templates.writeTemplate(TeamCityEvent.BUILD_FAILED, "failed \u2013 ${fullName}"));
+		assertTrue(templates.writeTemplate(TeamCityEvent.BUILD_STARTED, "started"));
+		Template failed = templates.readTemplate(TeamCityEvent.BUILD_FAILED);
+		Template started = templates.readTemplate(TeamCityEvent.BUILD_STARTED);
+		long lastModified = failedFile.lastModified();
+		
+		// Execute
+		boolean failedWritten = templates.writeTemplate(TeamCityEvent.BUILD_FAILED, "failed \u2013 ${fullName}");
+		boolean startedWritten = templates.writeTemplate(TeamCityEvent.BUILD_STARTED, "started again");
+		
+		// Test: only the changed template is written and recompiled, and the content is UTF-8
+		assertFalse(failedWritten);
+		assertTrue(startedWritten);
+		assertEquals(lastModified, failedFile.lastModified());
+		assertSame(failed, templates.readTemplate(TeamCityEvent.BUILD_FAILED));
+		assertNotSame(started, templates.readTemplate(TeamCityEvent.BUILD_STARTED));
+		assertEquals("failed \u2013 ${fullName}", templates.readTemplate(TeamCityEvent.BUILD_FAILED).toString());
+		assertEquals("started again", templates.readTemplate(TeamCityEvent.BUILD_STARTED).toString());
+		assertFalse(new File("hipchat", "buildStartedTemplate.ftl.tmp").exists());
+		
+		// A file edited outside the plugin is rewritten, even with the content last written
+		FileWriter fileWriter = new FileWriter(failedFile);
+		fileWriter.write("edited outside");
+		fileWriter.close();
+		assertTrue(templates.writeTemplate(TeamCityEvent.BUILD_FAILED, "failed \u2013 ${fullName}"));
+		templates.shutdown();
+		failedFile.delete();
+		startedFile.delete();
+	}
+	
+	@Test
+	public void testSameTemplateIsCompiledOnce() throws IOException {
+		// Prepare
+		String templateString = String.format("Compiled once at ${%s}", System.nanoTime());
+		HipChatTemplateConfiguration config = new HipChatTemplateConfiguration();
+		HipChatTemplateCacheStatistics before = config.getStatistics();
+		
+		// Execute
+		boolean valid = config.validateTemplate(templateString);
+		Template first = config.compileTemplate(templateString);
+		Template second = config.compileTemplate(templateString);
+		HipChatTemplateCacheStatistics after = config.getStatistics();
+		
+		// Test: validating parses the template, and the previews reuse it
+		assertTrue(valid);
+		assertSame(first, second);
+		assertEquals(templateString, first.toString());
+		assertTrue(after.getMisses() > before.getMisses());
+		assertTrue(after.getHits() >= before.getHits() + 2);
+	}
+	
 }
@@ -23,6 +23,7 @@ import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectTab;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoom;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomCache;
 import com.whatsthatlight.teamcity.hipchat.HipChatRooms;
 
 import jetbrains.buildServer.controllers.WebFixture;
@@ -54,7 +55,7 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
 	@Test
 	public void testFillModel() throws Exception {
 		// Test parameters
-		int expectedModelSize = 5;
+		int expectedModelSize = 9;
 		String expectedRoomId = "room1";
 		String expectedRoomName = "test room";
 		boolean expectedNotifyStatus = true;
@@ -93,7 +94,9 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
 		
         // The test page
-        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, processor);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		roomCache.reload();
+        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, roomCache);
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -115,7 +118,7 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
 	@Test
 	public void testFillModelNoConfigurationAndIsRootProject() throws Exception {
 		// Test parameters
-		int expectedModelSize = 5;
+		int expectedModelSize = 9;
 		String expectedRoomId = "default";
 		String expectedRoomName = "test room";
 		boolean expectedNotifyStatus = false;
@@ -155,7 +158,9 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
 		
         // The test page
-        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, processor);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		roomCache.reload();
+        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, roomCache);
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -177,7 +182,7 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
 	@Test
 	public void testFillModelNoConfigurationAndNotRootProject() throws Exception {
 		// Test parameters
-		int expectedModelSize = 5;
+		int expectedModelSize = 9;
 		String expectedRoomId = "parent";
 		String expectedRoomName = "test room";
 		boolean expectedNotifyStatus = false;
@@ -217,7 +222,9 @@ public class HipChatProjectTabTest extends BaseServerTestCase {
         when(descriptor.getPluginResourcesPath(anyString())).thenReturn("");
 		
         // The test page
-        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, processor);
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		roomCache.reload();
+        HipChatProjectTab myPage = new HipChatProjectTab(pagePlaces, this.myProjectManager, descriptor, configuration, roomCache);
 
         // Execute
 		HttpServletRequest request = org.mockito.Mockito.mock(HttpServletRequest.class);
@@ -0,0 +1,94 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimitStatistics;
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimiter;
+
+public class HipChatRateLimiterTest {
+
+	private static class MockClockRateLimiter extends HipChatRateLimiter {
+		
+		public long now = 1000000;
+
+		@Override
+		protected long currentTimeMillis() {
+			return this.now;
+		}
+		
+	}
+	
+	@Test
+	public void testNoDelayWhileBudgetIsAmple() {
+		MockClockRateLimiter rateLimiter = new MockClockRateLimiter();
+		for (int i = 0; i < 50; i++) {
+			AssertJUnit.assertEquals(0, rateLimiter.reserve());
+		}
+		HipChatRateLimitStatistics statistics = rateLimiter.getStatistics();
+		AssertJUnit.assertEquals(HipChatRateLimiter.DEFAULT_LIMIT - 50, statistics.getRemaining());
+		AssertJUnit.assertEquals(0, statistics.getThrottledRequests());
+	}
+	
+	@Test
+	public void testSendsArePacedWhenBudgetIsLow() {
+		// Test parameters
+		long resetEpochSeconds = 1100;
+		
+		// Execute
+		MockClockRateLimiter rateLimiter = new MockClockRateLimiter();
+		rateLimiter.update(100, 10, resetEpochSeconds);
+		long firstDelay = rateLimiter.reserve();
+		long secondDelay = rateLimiter.reserve();
+		
+		// Test: the remaining 100 s are split between the remaining 10 requests
+		AssertJUnit.assertEquals(0, firstDelay);
+		AssertJUnit.assertEquals(10000, secondDelay);
+		HipChatRateLimitStatistics statistics = rateLimiter.getStatistics();
+		AssertJUnit.assertEquals(1, statistics.getThrottledRequests());
+		AssertJUnit.assertEquals(10000, statistics.getThrottledMilliseconds());
+	}
+	
+	@Test
+	public void testExhaustedBudgetWaitsForReset() {
+		// Test parameters
+		long resetEpochSeconds = 1030;
+		
+		// Execute
+		MockClockRateLimiter rateLimiter = new MockClockRateLimiter();
+		rateLimiter.update(100, 0, resetEpochSeconds);
+		long delay = rateLimiter.reserve();
+		
+		// Test
+		AssertJUnit.assertEquals(30000, delay);
+	}
+	
+	@Test
+	public void testRateLimitedResponseBlocksUntilReset() {
+		// Test parameters
+		long resetEpochSeconds = 1005;
+		
+		// Execute
+		MockClockRateLimiter rateLimiter = new MockClockRateLimiter();
+		AssertJUnit.assertEquals(0, rateLimiter.reserve());
+		rateLimiter.rateLimited(resetEpochSeconds);
+		long delay = rateLimiter.reserve();
+		
+		// Test
+		AssertJUnit.assertEquals(5000, delay);
+		AssertJUnit.assertEquals(1, rateLimiter.getStatistics().getRateLimitedResponses());
+	}
+	
+	@Test
+	public void testBudgetIsRestoredAfterReset() {
+		// Execute
+		MockClockRateLimiter rateLimiter = new MockClockRateLimiter();
+		rateLimiter.update(100, 0, 1010L);
+		rateLimiter.now = 1011000;
+		
+		// Test
+		AssertJUnit.assertEquals(0, rateLimiter.reserve());
+		AssertJUnit.assertEquals(99, rateLimiter.getStatistics().getRemaining());
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoom;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomCache;
+import com.whatsthatlight.teamcity.hipchat.HipChatRooms;
+import com.whatsthatlight.teamcity.hipchat.HipChatSnapshotFile;
+
+public class HipChatRoomCacheTest {
+
+	private class MockClockRoomCache extends HipChatRoomCache {
+		
+		private long now = 1000000;
+		
+		public MockClockRoomCache(HipChatApiProcessor processor) {
+			super(processor);
+		}
+		
+		@Override
+		protected long currentTimeMillis() {
+			return this.now;
+		}
+		
+	}
+	
+	private static HipChatRooms createRooms(String... names) {
+		List<HipChatRoom> items = new ArrayList<HipChatRoom>();
+		for (int i = 0; i < names.length; i++) {
+			items.add(new HipChatRoom(Integer.toString(i), null, names[i]));
+		}
+		return new HipChatRooms(items, 0, names.length, new HipChatApiResultLinks());
+	}
+	
+	private static void waitForRefresh(HipChatRoomCache roomCache) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (roomCache.isRefreshing() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+	
+	@Test
+	public void testGetRoomsDoesNotWaitForFirstLoad() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final HipChatRooms rooms = createRooms("Room A", "Room B");
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getRooms(0)).thenAnswer(new Answer<HipChatRooms>() {
+			@Override
+			public HipChatRooms answer(InvocationOnMock invocation) throws Throwable {
+				release.await(5, TimeUnit.SECONDS);
+				return rooms;
+			}
+		});
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor);
+		
+		// The first page view gets an empty list straight away and triggers the load
+		TreeMap<String, String> snapshot = roomCache.getRooms();
+		AssertJUnit.assertEquals(0, snapshot.size());
+		AssertJUnit.assertEquals(-1, roomCache.getSecondsSinceReload());
+		AssertJUnit.assertTrue(roomCache.isRefreshing());
+		
+		// Only one refresh is in flight at a time
+		AssertJUnit.assertFalse(roomCache.refresh());
+		
+		release.countDown();
+		waitForRefresh(roomCache);
+		AssertJUnit.assertEquals(2, roomCache.getRooms().size());
+		AssertJUnit.assertEquals("1", roomCache.getRooms().get("Room B"));
+		verify(processor, times(1)).getRooms(0);
+		roomCache.shutdown();
+	}
+	
+	@Test
+	public void testStaleSnapshotIsServedWhileRefreshing() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<HipChatRooms> responses = new ArrayList<HipChatRooms>();
+		responses.add(createRooms("Room A"));
+		responses.add(createRooms("Room A", "Room B"));
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getRooms(0)).thenAnswer(new Answer<HipChatRooms>() {
+			public HipChatRooms answer(InvocationOnMock invocation) throws Throwable {
+				if (responses.size() == 1) {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				return responses.remove(0);
+			}
+		});
+		MockClockRoomCache roomCache = new MockClockRoomCache(processor);
+		AssertJUnit.assertEquals(1, roomCache.reload());
+		
+		// Within the time to live, the API is not called again
+		roomCache.now += HipChatRoomCache.TIME_TO_LIVE_MILLISECONDS - 1;
+		AssertJUnit.assertEquals(1, roomCache.getRooms().size());
+		AssertJUnit.assertFalse(roomCache.isRefreshing());
+		verify(processor, times(1)).getRooms(0);
+		
+		// Once expired, the old snapshot is still returned and the new one follows
+		roomCache.now += 1;
+		AssertJUnit.assertEquals(1, roomCache.getRooms().size());
+		release.countDown();
+		waitForRefresh(roomCache);
+		AssertJUnit.assertEquals(2, roomCache.getRooms().size());
+		AssertJUnit.assertEquals(0, roomCache.getSecondsSinceReload());
+		roomCache.shutdown();
+	}
+	
+	@Test
+	public void testFailedReloadKeepsSnapshot() throws Exception {
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getRooms(0)).thenReturn(createRooms("Room A"), (HipChatRooms) null);
+		MockClockRoomCache roomCache = new MockClockRoomCache(processor);
+		AssertJUnit.assertEquals(1, roomCache.reload());
+		
+		roomCache.now += HipChatRoomCache.TIME_TO_LIVE_MILLISECONDS;
+		AssertJUnit.assertEquals(-1, roomCache.reload());
+		AssertJUnit.assertEquals(1, roomCache.getSize());
+		AssertJUnit.assertEquals(HipChatRoomCache.TIME_TO_LIVE_MILLISECONDS / 1000, roomCache.getSecondsSinceReload());
+		
+		// A failed reload is retried sooner than the time to live
+		roomCache.now += HipChatRoomCache.RETRY_MILLISECONDS - 1;
+		roomCache.getRooms();
+		AssertJUnit.assertFalse(roomCache.isRefreshing());
+		roomCache.shutdown();
+	}
+	
+	@Test
+	public void testSnapshotSurvivesRestart() throws Exception {
+		File file = File.createTempFile("rooms", ".json");
+		file.delete();
+		
+		// A reload persists the directory
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getRooms(0)).thenReturn(createRooms("Room A", "Room B"));
+		HipChatRoomCache roomCache = new HipChatRoomCache(processor, new HipChatSnapshotFile(file));
+		AssertJUnit.assertEquals(0, roomCache.load());
+		AssertJUnit.assertEquals(2, roomCache.reload());
+		AssertJUnit.assertTrue(file.exists());
+		roomCache.shutdown();
+		
+		// After a restart, the rooms are available without calling the API, and are still due for revalidation
+		HipChatApiProcessor unavailableProcessor = mock(HipChatApiProcessor.class);
+		HipChatRoomCache snapshotRoomCache = new HipChatRoomCache(unavailableProcessor, new HipChatSnapshotFile(file));
+		AssertJUnit.assertEquals(2, snapshotRoomCache.load());
+		AssertJUnit.assertEquals("1", snapshotRoomCache.getRooms().get("Room B"));
+		AssertJUnit.assertTrue(snapshotRoomCache.getSecondsSinceReload() >= 0);
+		waitForRefresh(snapshotRoomCache);
+		verify(unavailableProcessor, times(1)).getRooms(0);
+		
+		// A failed revalidation keeps the snapshot
+		AssertJUnit.assertEquals(2, snapshotRoomCache.getSize());
+		snapshotRoomCache.shutdown();
+		file.delete();
+	}
+	
+}
@@ -0,0 +1,116 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoutingTable;
+
+public class HipChatRoutingTableTest {
+
+	private static SProject mockProject(String projectId, SProject parentProject) {
+		SProject project = mock(SProject.class);
+		when(project.getProjectId()).thenReturn(projectId);
+		when(project.getParentProject()).thenReturn(parentProject);
+		if (parentProject != null) {
+			String parentProjectId = parentProject.getProjectId();
+			when(project.getParentProjectId()).thenReturn(parentProjectId);
+		}
+		return project;
+	}
+	
+	@Test
+	public void testRoutesAreResolvedOnceAndInvalidatedByOrigin() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("default_room");
+		configuration.setNotifyStatus(false);
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "parent_room", true));
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("other", HipChatConfiguration.ROOM_ID_DEFAULT_VALUE, true));
+		SProject rootProject = mockProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parentProject = mockProject("parent", rootProject);
+		SProject childProject = mockProject("child", parentProject);
+		SProject otherProject = mockProject("other", rootProject);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+		
+		// Execute
+		HipChatProjectConfiguration childRoute = routingTable.getRoute(childProject);
+		HipChatProjectConfiguration otherRoute = routingTable.getRoute(otherProject);
+		routingTable.getRoute(parentProject);
+		
+		// Test: the child inherits its parent's room, and the default room is resolved
+		AssertJUnit.assertEquals("parent_room", childRoute.getRoomId());
+		AssertJUnit.assertTrue(childRoute.getNotifyStatus());
+		AssertJUnit.assertEquals("default_room", otherRoute.getRoomId());
+		AssertJUnit.assertTrue(otherRoute.getNotifyStatus());
+		AssertJUnit.assertSame(childRoute, routingTable.getRoute(childProject));
+		AssertJUnit.assertEquals(3, routingTable.size());
+		
+		// Changing the parent only affects the routes derived from it
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", HipChatConfiguration.ROOM_ID_NONE_VALUE, true));
+		routingTable.invalidate("parent");
+		AssertJUnit.assertEquals(1, routingTable.size());
+		AssertJUnit.assertSame(otherRoute, routingTable.getRoute(otherProject));
+		AssertJUnit.assertNull(routingTable.getRoute(childProject).getRoomId());
+		
+		// Changing the default room affects all routes
+		configuration.setDefaultRoomId("new_default_room");
+		routingTable.invalidate();
+		AssertJUnit.assertEquals(0, routingTable.size());
+		AssertJUnit.assertEquals("new_default_room", routingTable.getRoute(otherProject).getRoomId());
+	}
+	
+	@Test
+	public void testRouteFromImplicitDefaultConfiguration() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("default_room");
+		configuration.setNotifyStatus(true);
+		SProject rootProject = mockProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parentProject = mockProject("parent", rootProject);
+		SProject childProject = mockProject("child", parentProject);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+		
+		// Execute
+		HipChatProjectConfiguration route = routingTable.getRoute(childProject);
+		
+		// Test: a new configuration for the parent changes the child's route
+		AssertJUnit.assertEquals("default_room", route.getRoomId());
+		AssertJUnit.assertTrue(route.getNotifyStatus());
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "parent_room", false));
+		routingTable.invalidate("parent");
+		route = routingTable.getRoute(childProject);
+		AssertJUnit.assertEquals("parent_room", route.getRoomId());
+		AssertJUnit.assertFalse(route.getNotifyStatus());
+	}
+	
+	@Test
+	public void testRouteFromStaleSnapshotIsNotKept() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("default_room");
+		SProject rootProject = mockProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject project = mockProject("project", rootProject);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+		HipChatConfiguration staleSnapshot = configuration.getSnapshot();
+		
+		// Execute: the configuration is published and invalidated before the event resolves its route
+		HipChatConfiguration newConfiguration = new HipChatConfiguration(configuration);
+		newConfiguration.setDefaultRoomId("new_default_room");
+		configuration.publish(newConfiguration);
+		routingTable.invalidate();
+		HipChatProjectConfiguration staleRoute = routingTable.getRoute(project, staleSnapshot);
+		
+		// Test: the event uses its own snapshot, but the next one sees the change
+		AssertJUnit.assertEquals("default_room", staleRoute.getRoomId());
+		AssertJUnit.assertEquals(0, routingTable.size());
+		AssertJUnit.assertEquals("new_default_room", routingTable.getRoute(project).getRoomId());
+		AssertJUnit.assertEquals(1, routingTable.size());
+	}
+	
+}
@@ -57,6 +57,7 @@ import org.testng.annotations.BeforeClass;
 
 import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatDelivery;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticon;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonCache;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonSet;
@@ -65,6 +66,7 @@ import com.whatsthatlight.teamcity.hipchat.HipChatEventConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
 import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
 import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
 import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
@@ -105,7 +107,7 @@ public class HipChatServerExtensionTest {
 		SBuildServer server = mock(SBuildServer.class);
 		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
 		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 	}
 
@@ -140,7 +142,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.serverStartup();
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -180,7 +182,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.serverStartup();
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -220,7 +222,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.serverShutdown();
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -260,7 +262,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.serverShutdown();
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -375,7 +377,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -498,7 +500,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -612,7 +614,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -723,7 +725,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -849,11 +851,11 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.readTemplate(any(HipChatConfiguration.class), eq(project), eq(TeamCityEvent.BUILD_STARTED))).thenReturn(template);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1000,11 +1002,11 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.readTemplate(any(HipChatConfiguration.class), eq(project), eq(TeamCityEvent.BUILD_STARTED))).thenReturn(template);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1137,11 +1139,11 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.readTemplate(any(HipChatConfiguration.class), eq(project), eq(TeamCityEvent.BUILD_STARTED))).thenReturn(template);
 
 		// Execute
 		emoticonCache.reload();
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
@@ -1235,7 +1237,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 		logger.removeAppender(appender);
@@ -1349,7 +1351,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1444,7 +1446,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1472,11 +1474,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.changesLoaded(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -1520,11 +1524,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.changesLoaded(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -1567,11 +1573,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.changesLoaded(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -1622,7 +1630,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1702,7 +1710,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1791,7 +1799,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		event.clear();
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
@@ -1863,7 +1871,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -1933,7 +1941,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2018,7 +2026,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2110,7 +2118,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2199,7 +2207,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2290,7 +2298,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2384,7 +2392,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2481,7 +2489,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2555,7 +2563,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2630,7 +2638,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.changesLoaded(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2719,7 +2727,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2818,7 +2826,7 @@ public class HipChatServerExtensionTest {
 		when(build.getStatisticValues()).thenReturn(statisticValues);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -2922,7 +2930,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3031,7 +3039,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3145,7 +3153,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3258,7 +3266,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3278,6 +3286,8 @@ public class HipChatServerExtensionTest {
 		assertTrue(actualNotification.message.contains(expectedTriggerBy));
 		assertTrue(actualNotification.message.contains(expectedHtmlImageTag));
 		assertEquals(expectedDefaultRoomId, actualDefaultRoomId);
+		// The history is only read if the previous build matters
+		verify(buildType, never()).getHistory();
 	}
 
 	@Test
@@ -3357,7 +3367,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3415,7 +3425,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3446,11 +3456,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.buildFinished(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -3534,7 +3546,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3647,7 +3659,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3756,7 +3768,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3883,7 +3895,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -3997,7 +4009,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -4126,7 +4138,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -4219,7 +4231,7 @@ public class HipChatServerExtensionTest {
 		configuration.setEvents(events);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -4277,7 +4289,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildFinished(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -4308,11 +4320,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.buildFinished(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -4404,7 +4418,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildInterrupted(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -4446,11 +4460,13 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.buildInterrupted(build);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -4487,7 +4503,7 @@ public class HipChatServerExtensionTest {
 		when(serverPaths.getConfigDir()).thenReturn(".");
 		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		HipChatRoomNotification actualNotification = null;
 		String actualDefaultRoomId = null;
 		CallbackObject callbackObject = null;
@@ -4563,7 +4579,7 @@ public class HipChatServerExtensionTest {
 		when(serverPaths.getConfigDir()).thenReturn(".");
 		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		HipChatRoomNotification actualNotification = null;
 		String actualDefaultRoomId = null;
 		CallbackObject callbackObject = null;
@@ -4636,7 +4652,7 @@ public class HipChatServerExtensionTest {
 		when(serverPaths.getConfigDir()).thenReturn(".");
 		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		HipChatRoomNotification actualNotification = null;
 		String actualDefaultRoomId = null;
 		CallbackObject callbackObject = null;
@@ -4686,12 +4702,14 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, dispatcher, templates, emoticonCache);
 		extension.serverStartup();
 		extension.serverShutdown();
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 	}
 
 	@Test
@@ -4716,14 +4734,16 @@ public class HipChatServerExtensionTest {
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
 		when(templates.readTemplate(TeamCityEvent.SERVER_STARTUP)).thenThrow(new IOException("Test exception"));
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, dispatcher, templates, emoticonCache);
 
 		// Execute start-up
 		extension.serverStartup();
 		logger.removeAppender(appender);
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 
 		// Test
 		boolean exceptionFound = false;
@@ -4747,13 +4767,15 @@ public class HipChatServerExtensionTest {
 		when(serverPaths.getConfigDir()).thenReturn(".");
 		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, dispatcher, templates, emoticonCache);
 
 		// Execute start-up
 		extension.serverStartup();
+		dispatcher.shutdown();
 
 		// Verifications
-		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString());
+		verify(processor, times(0)).sendNotification(any(HipChatRoomNotification.class), anyString(), any(HipChatDelivery.class));
 		;
 	}
 
@@ -4774,7 +4796,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(null, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.serverStartup();
 		extension.serverShutdown();
 	}
@@ -4832,7 +4854,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 		extension.changesLoaded(build);
 	}
@@ -4893,7 +4915,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 		extension.buildFinished(build);
 	}
@@ -4954,7 +4976,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 		extension.buildFinished(build);
 	}
@@ -5022,7 +5044,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.register();
 		extension.buildInterrupted(build);
 	}
@@ -5083,7 +5105,7 @@ public class HipChatServerExtensionTest {
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
-		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, processor, templates, emoticonCache);
+		HipChatServerExtension extension = new HipChatServerExtension(server, configuration, new HipChatNotificationDispatcher(configuration, processor), templates, emoticonCache);
 		extension.buildInterrupted(build);
 		event.doWait(Constants.NO_EVENT_TIMEOUT);
 
@@ -5159,12 +5181,14 @@ public class HipChatServerExtensionTest {
 		}
 
 		@Override
-		public void sendNotification(HipChatRoomNotification notification, String roomId) {
+		public String sendNotification(HipChatRoomNotification notification, String roomId, HipChatDelivery delivery) {
 			try {
 				this.callback.invoke(notification, roomId);
+				return delivery.delivered();
 			} catch (Exception e) {
 				logger.error(e);
 			}
+			return delivery.failed("Callback failed");
 		}
 	}
 }
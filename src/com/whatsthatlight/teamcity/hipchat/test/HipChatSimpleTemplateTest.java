@@ -0,0 +1,167 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatSimpleTemplate;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class HipChatSimpleTemplateTest {
+
+	private static final String[] DEFAULT_TEMPLATES = new String[] {
+		HipChatNotificationMessageTemplates.BUILD_STARTED_DEFAULT_TEMPLATE,
+		HipChatNotificationMessageTemplates.BUILD_SUCCESSFUL_DEFAULT_TEMPLATE,
+		HipChatNotificationMessageTemplates.BUILD_FAILED_DEFAULT_TEMPLATE,
+		HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE,
+		HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE,
+		HipChatNotificationMessageTemplates.SERVER_SHUTDOWN_DEFAULT_TEMPLATE
+	};
+	
+	private static Template createTemplate(String templateString) throws Exception {
+		return new Template("template", new StringReader(templateString), new Configuration());
+	}
+	
+	private static Map<String, Object> createBuildModel(boolean hasBranch, boolean hasContributors) {
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("serverUrl", "http://localhost:8111");
+		model.put("buildTypeId", "bt1");
+		model.put("fullName", "Project :: Build");
+		model.put("hasBranch", hasBranch);
+		model.put("branch", "master");
+		model.put("buildId", 1234567L);
+		model.put("buildNumber", "42");
+		model.put("triggeredBy", "you");
+		model.put("cancelledBy", "me");
+		model.put("hasContributors", hasContributors);
+		model.put("contributors", "foo, bar");
+		model.put("emoticonUrl", "http://localhost/smile.png");
+		return model;
+	}
+	
+	private static String renderWithFreeMarker(Template template, Object model) throws Exception {
+		StringWriter writer = new StringWriter();
+		template.process(model, writer);
+		return writer.toString();
+	}
+	
+	private static String renderSimple(Template template, Object model) throws Exception {
+		StringWriter writer = new StringWriter();
+		AssertJUnit.assertTrue(HipChatSimpleTemplate.of(template).render(model, writer));
+		return writer.toString();
+	}
+	
+	@DataProvider(name = "simpleTemplates")
+	public Object[][] provideSimpleTemplates() {
+		return new Object[][] {
+				{ "Plain text" },
+				{ "" },
+				{ "${fullName} #${buildNumber} (${buildId})" },
+				{ "<#if hasBranch>on ${branch}<#else>no branch</#if>." },
+				{ "<#if !hasBranch>default</#if><#if hasContributors><#if hasBranch>${branch}: </#if>${contributors}</#if>" },
+				{ "<#if hasBranch>\n  ${branch}\n</#if>\nDone" },
+				{ "Price: $5 and #1, <b>bold</b>" }
+		};
+	}
+	
+	@Test
+	public void testDefaultTemplatesAreSimple() throws Exception {
+		for (String templateString : DEFAULT_TEMPLATES) {
+			AssertJUnit.assertNotNull(templateString, HipChatSimpleTemplate.compile(templateString));
+			AssertJUnit.assertNotNull(templateString, HipChatSimpleTemplate.of(createTemplate(templateString)));
+		}
+		AssertJUnit.assertEquals(1, HipChatSimpleTemplate.compile(HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE).getSegmentCount());
+	}
+	
+	@Test
+	public void testOtherTemplatesAreNotSimple() throws Exception {
+		String[] templates = new String[] {
+			"${fullName!\"none\"}",
+			"${fullName?upper_case}",
+			"${.data_model[\"env.USER\"]}",
+			"#{buildId}",
+			"<#if noOfTests gt 0>tests</#if>",
+			"<#if hasBranch>unclosed",
+			"closed</#if>",
+			"<#else>",
+			"<#list 1..3 as i>${i}</#list>",
+			"<#-- comment -->",
+			"<@macro/>",
+			"[#if hasBranch]x[/#if]"
+		};
+		for (String templateString : templates) {
+			AssertJUnit.assertNull(templateString, HipChatSimpleTemplate.compile(templateString));
+		}
+		AssertJUnit.assertNull(HipChatSimpleTemplate.of(createTemplate("<#assign x = 1>${x}")));
+	}
+	
+	@Test(dataProvider = "simpleTemplates")
+	public void testOutputMatchesFreeMarker(String templateString) throws Exception {
+		for (int i = 0; i < 4; i++) {
+			Map<String, Object> model = createBuildModel(i % 2 == 0, i / 2 == 0);
+			Template template = createTemplate(templateString);
+			AssertJUnit.assertEquals(renderWithFreeMarker(template, model), renderSimple(template, model));
+		}
+	}
+	
+	@Test
+	public void testValuesFreeMarkerWouldRejectAreLeftToIt() throws Exception {
+		Map<String, Object> model = createBuildModel(true, true);
+		StringWriter writer = new StringWriter();
+		AssertJUnit.assertFalse(HipChatSimpleTemplate.compile("${hasBranch}").render(model, writer));
+		AssertJUnit.assertFalse(HipChatSimpleTemplate.compile("${missing}").render(model, writer));
+		AssertJUnit.assertFalse(HipChatSimpleTemplate.compile("<#if branch>x</#if>").render(model, writer));
+		// Numbers need the template's format
+		AssertJUnit.assertFalse(HipChatSimpleTemplate.compile("${buildId}").render(model, writer));
+	}
+	
+	@Test
+	public void testDefaultTemplatesMatchFreeMarker() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			Map<String, Object> model = createBuildModel(i % 2 == 0, i / 2 == 0);
+			for (String templateString : DEFAULT_TEMPLATES) {
+				Template template = createTemplate(templateString);
+				AssertJUnit.assertEquals(templateString, renderWithFreeMarker(template, model), renderSimple(template, model));
+			}
+		}
+	}
+	
+	// Not a pass/fail test: prints the time taken by both engines for the default templates. 
+	// The benchmark group is excluded from testng.xml; run it on its own, e.g. with -groups benchmark.
+	@Test(groups = "benchmark")
+	public void testBenchmarkDefaultTemplates() throws Exception {
+		int iterations = 50000;
+		Map<String, Object> model = createBuildModel(true, true);
+		for (String templateString : DEFAULT_TEMPLATES) {
+			Template template = createTemplate(templateString);
+			
+			// Warm up both paths before measuring
+			for (int i = 0; i < iterations; i++) {
+				renderWithFreeMarker(template, model);
+				renderSimple(template, model);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				renderWithFreeMarker(template, model);
+			}
+			long freeMarkerNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				renderSimple(template, model);
+			}
+			long simpleNanos = System.nanoTime() - start;
+			
+			System.out.println(String.format("%-60.60s FreeMarker: %6d ns, simple: %6d ns, speed-up: %.1fx", templateString, 
+					freeMarkerNanos / iterations, simpleNanos / iterations, (double) freeMarkerNanos / Math.max(simpleNanos, 1)));
+		}
+	}
+	
+}
@@ -0,0 +1,81 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateAnalysis;
+
+public class HipChatTemplateAnalysisTest {
+
+	@Test
+	public void testDefaultBuildFailedTemplate() {
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse(HipChatNotificationMessageTemplates.BUILD_FAILED_DEFAULT_TEMPLATE);
+		AssertJUnit.assertFalse(analysis.isDynamic());
+		AssertJUnit.assertEquals(new TreeSet<String>(Arrays.asList("branch", "buildId", "buildNumber", "buildTypeId", "contributors", "emoticonUrl", 
+				"fullName", "hasBranch", "hasContributors", "serverUrl", "triggeredBy")), analysis.getVariables());
+		AssertJUnit.assertEquals(Arrays.asList(HipChatTemplateAnalysis.CONTRIBUTORS), analysis.getEnrichments());
+	}
+	
+	@Test
+	public void testDefaultBuildInterruptedTemplate() {
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE);
+		AssertJUnit.assertFalse(analysis.isDynamic());
+		AssertJUnit.assertFalse(analysis.references("contributors"));
+		AssertJUnit.assertEquals(Arrays.asList(HipChatTemplateAnalysis.CANCELLING_USER), analysis.getEnrichments());
+	}
+	
+	@Test
+	public void testStatisticsAndParameters() {
+		String template = "${noOfTests} tests <#if (noOfFailedTests > 0)>${.data_model[\"stats.BuildDuration\"]}</#if> ${.data_model[\"env.USER\"]!\"nobody\"}";
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse(template);
+		AssertJUnit.assertFalse(analysis.isDynamic());
+		AssertJUnit.assertEquals(new TreeSet<String>(Arrays.asList("env.USER", "noOfFailedTests", "noOfTests", "stats.BuildDuration")), analysis.getVariables());
+		AssertJUnit.assertEquals(Arrays.asList(HipChatTemplateAnalysis.TEST_STATISTICS, HipChatTemplateAnalysis.BUILD_STATISTICS, HipChatTemplateAnalysis.PARAMETERS), 
+				analysis.getEnrichments());
+	}
+	
+	@Test
+	public void testNamesThatAreNotVariablesAreIgnored() {
+		String template = "<#list items?sort as item>${item.name?upper_case}</#list> <@greet person=\"x\"/> [#if flag]y[/#if] Plain contributors text";
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse(template);
+		AssertJUnit.assertEquals(new TreeSet<String>(Arrays.asList("flag", "item", "items", "person")), analysis.getVariables());
+		AssertJUnit.assertTrue(analysis.getEnrichments().contains(HipChatTemplateAnalysis.PARAMETERS));
+		AssertJUnit.assertFalse(analysis.getEnrichments().contains(HipChatTemplateAnalysis.CONTRIBUTORS));
+	}
+	
+	@Test
+	public void testInterpolationInStringLiteral() {
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse("<#assign title = \"Build ${buildNumber}\">${title}");
+		AssertJUnit.assertTrue(analysis.references("buildNumber"));
+		AssertJUnit.assertTrue(analysis.references("title"));
+		AssertJUnit.assertFalse(analysis.references("Build"));
+	}
+	
+	@Test
+	public void testDynamicTemplates() {
+		AssertJUnit.assertTrue(HipChatTemplateAnalysis.analyse("<#list .data_model?keys as key>${key}</#list>").isDynamic());
+		AssertJUnit.assertTrue(HipChatTemplateAnalysis.analyse("<#assign name = \"fullName\">${.data_model[name]}").isDynamic());
+		AssertJUnit.assertTrue(HipChatTemplateAnalysis.analyse("<#include \"other.ftl\">").isDynamic());
+		AssertJUnit.assertTrue(HipChatTemplateAnalysis.analyse("${\"fullName\"?eval}").isDynamic());
+		AssertJUnit.assertTrue(HipChatTemplateAnalysis.analyse("<#list hash?keys as key>${key}</#list>").isDynamic());
+		HipChatTemplateAnalysis analysis = HipChatTemplateAnalysis.analyse("${.vars[\"contributors\"]}");
+		AssertJUnit.assertFalse(analysis.isDynamic());
+		AssertJUnit.assertTrue(analysis.references("contributors"));
+		
+		// Everything may be read by a dynamic template
+		HipChatTemplateAnalysis dynamicAnalysis = HipChatTemplateAnalysis.analyse("<#list .data_model?values as value>${value}</#list>");
+		AssertJUnit.assertTrue(dynamicAnalysis.references("anything"));
+		AssertJUnit.assertEquals(5, dynamicAnalysis.getEnrichments().size());
+	}
+	
+	@Test
+	public void testSummary() {
+		AssertJUnit.assertEquals("Uses no variables. No additional build details are looked up.", HipChatTemplateAnalysis.analyse("Build server started.").getSummary());
+		AssertJUnit.assertEquals("Uses fullName, noOfTests. Looks up test statistics.", HipChatTemplateAnalysis.analyse("${fullName}: ${noOfTests}").getSummary());
+	}
+	
+}
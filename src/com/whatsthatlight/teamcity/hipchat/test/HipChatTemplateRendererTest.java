@@ -0,0 +1,266 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBuildEventDataModel;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplatePreview;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateRenderer;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+public class HipChatTemplateRendererTest {
+
+	private static HipChatNotificationMessageTemplates createTemplates() throws Exception {
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(".");
+		return new HipChatNotificationMessageTemplates(serverPaths);
+	}
+	
+	@Test
+	public void testEqualModelReusesMessage() throws Exception {
+		// Prepare
+		File templateFile = new File("hipchat", "serverStartupTemplate.ftl");
+		templateFile.delete();
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, "Started ${name}");
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_STARTUP);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		Map<String, Object> firstModel = new HashMap<String, Object>();
+		firstModel.put("name", "foo");
+		Map<String, Object> secondModel = new HashMap<String, Object>();
+		secondModel.put("name", "foo");
+		
+		// Execute
+		String first = renderer.render(TeamCityEvent.SERVER_STARTUP, template, firstModel, firstModel, null);
+		String second = renderer.render(TeamCityEvent.SERVER_STARTUP, template, secondModel, secondModel, null);
+		
+		// Test
+		AssertJUnit.assertEquals("Started foo", first);
+		AssertJUnit.assertSame(first, second);
+		AssertJUnit.assertEquals(1, renderer.getHitCount());
+		AssertJUnit.assertEquals(1, renderer.getMissCount());
+		AssertJUnit.assertEquals(1, renderer.getSize());
+		
+		// A different model is rendered again
+		Map<String, Object> thirdModel = new HashMap<String, Object>();
+		thirdModel.put("name", "bar");
+		AssertJUnit.assertEquals("Started bar", renderer.render(TeamCityEvent.SERVER_STARTUP, template, thirdModel, thirdModel, null));
+		AssertJUnit.assertEquals(2, renderer.getMissCount());
+		
+		// So is a new version of the template
+		templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, "Up: ${name}");
+		Template newTemplate = templates.readTemplate(TeamCityEvent.SERVER_STARTUP);
+		AssertJUnit.assertTrue(HipChatNotificationMessageTemplates.getTemplateVersion(newTemplate) > HipChatNotificationMessageTemplates.getTemplateVersion(template));
+		AssertJUnit.assertEquals("Up: foo", renderer.render(TeamCityEvent.SERVER_STARTUP, newTemplate, firstModel, firstModel, null));
+		AssertJUnit.assertEquals(1, renderer.getHitCount());
+		AssertJUnit.assertEquals(3, renderer.getMissCount());
+		templates.shutdown();
+		templateFile.delete();
+	}
+	
+	@Test
+	public void testMessagesWithoutKeyAreNotCached() throws Exception {
+		// Prepare
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_SHUTDOWN);
+		Template unversionedTemplate = new Template("foo", new StringReader("bar"), new Configuration());
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		Map<String, Object> model = new HashMap<String, Object>();
+		
+		// Execute
+		renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, model, null, null);
+		renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, model, null, null);
+		renderer.render(TeamCityEvent.SERVER_SHUTDOWN, unversionedTemplate, model, model, null);
+		
+		// Test
+		AssertJUnit.assertEquals(0, HipChatNotificationMessageTemplates.getTemplateVersion(unversionedTemplate));
+		AssertJUnit.assertEquals(0, renderer.getHitCount());
+		AssertJUnit.assertEquals(0, renderer.getMissCount());
+		AssertJUnit.assertEquals(0, renderer.getSize());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedMessagesAreEvicted() throws Exception {
+		// Prepare
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_SHUTDOWN);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		
+		// Execute
+		for (int i = 0; i <= HipChatTemplateRenderer.MAX_CACHED_MESSAGES; i++) {
+			renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, new HashMap<String, Object>(), i, null);
+		}
+		
+		// Test
+		AssertJUnit.assertEquals(HipChatTemplateRenderer.MAX_CACHED_MESSAGES, renderer.getSize());
+		renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, new HashMap<String, Object>(), HipChatTemplateRenderer.MAX_CACHED_MESSAGES, null);
+		AssertJUnit.assertEquals(1, renderer.getHitCount());
+		renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, new HashMap<String, Object>(), 0, null);
+		AssertJUnit.assertEquals(1, renderer.getHitCount());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testLongMessageIsTruncated() throws Exception {
+		// Prepare
+		Template template = new Template("foo", new StringReader("<b><#list 1..100000 as i><i>${i?c}</i> </#list></b>"), new Configuration());
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), createTemplates());
+		String suffix = "</i></b> <a href=\"http://localhost/viewLog.html?buildId=1\">(truncated)</a>";
+		
+		// Execute
+		String message = renderer.render(TeamCityEvent.SERVER_STARTUP, template, new HashMap<String, Object>(), null, "http://localhost/viewLog.html?buildId=1");
+		
+		// Test
+		AssertJUnit.assertTrue(message.length() <= HipChatTemplateRenderer.MAX_MESSAGE_LENGTH);
+		AssertJUnit.assertTrue(message.length() > HipChatTemplateRenderer.MAX_MESSAGE_LENGTH - 20);
+		AssertJUnit.assertTrue(message.startsWith("<b><i>1</i> <i>2</i> "));
+		AssertJUnit.assertTrue(message, message.endsWith(suffix));
+		AssertJUnit.assertEquals(1, renderer.getTruncatedCount());
+		
+		// The writer is reused for the next message
+		Template shortTemplate = new Template("bar", new StringReader("baz"), new Configuration());
+		AssertJUnit.assertEquals("baz", renderer.render(TeamCityEvent.SERVER_STARTUP, shortTemplate, new HashMap<String, Object>(), null, null));
+		AssertJUnit.assertEquals(1, renderer.getTruncatedCount());
+	}
+	
+	@Test
+	public void testTruncatedMessageIsNotCached() throws Exception {
+		// Prepare
+		File templateFile = new File("hipchat", "serverShutdownTemplate.ftl");
+		templateFile.delete();
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		templates.writeTemplate(TeamCityEvent.SERVER_SHUTDOWN, "<#list 1..100000 as i>${i?c}</#list>");
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_SHUTDOWN);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		Map<String, Object> model = new HashMap<String, Object>();
+		
+		// Execute
+		String message = renderer.render(TeamCityEvent.SERVER_SHUTDOWN, template, model, model, null);
+		
+		// Test
+		AssertJUnit.assertEquals(HipChatTemplateRenderer.MAX_MESSAGE_LENGTH, message.length());
+		AssertJUnit.assertTrue(message.endsWith(" " + HipChatTemplateRenderer.TRUNCATED_TEXT));
+		AssertJUnit.assertEquals(0, renderer.getSize());
+		templates.shutdown();
+		templateFile.delete();
+	}
+	
+	@Test
+	public void testTruncateClosesOpenElements() {
+		AssertJUnit.assertEquals("<p><b>bold</b></p> ...", HipChatTemplateRenderer.truncate("<p><b>bold</b> <i>italic &amp; more</i></p>", " ...", 25));
+		AssertJUnit.assertEquals("foo ", HipChatTemplateRenderer.truncate("foo <a href=\"http://localhost/\">link</a>", "", 10));
+		AssertJUnit.assertEquals("Tom ", HipChatTemplateRenderer.truncate("Tom &amp; Jerry", "", 7));
+		AssertJUnit.assertEquals("<img src=\"x\"><br>text<br/>", HipChatTemplateRenderer.truncate("<img src=\"x\"><br>text<br/>more", "", 26));
+	}
+	
+	@Test
+	public void testTemplateOverBudgetFallsBackToDefault() throws Exception {
+		// Prepare
+		File templateFile = new File("hipchat", "serverStartupTemplate.ftl");
+		templateFile.delete();
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, "<#list 1..100000000 as i><#if i % 100000 == 0>.</#if></#list>");
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_STARTUP);
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setRenderBudget(1);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		Map<String, Object> model = new HashMap<String, Object>();
+		
+		// Execute
+		long start = System.currentTimeMillis();
+		String message = renderer.render(TeamCityEvent.SERVER_STARTUP, template, model, model, null);
+		long duration = System.currentTimeMillis() - start;
+		
+		// Test
+		AssertJUnit.assertEquals(HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE, message);
+		AssertJUnit.assertTrue(String.format("Took %s ms", duration), duration < 5000);
+		AssertJUnit.assertEquals(1, renderer.getOverrunCount(TeamCityEvent.SERVER_STARTUP));
+		AssertJUnit.assertEquals(0, renderer.getOverrunCount(TeamCityEvent.SERVER_SHUTDOWN));
+		AssertJUnit.assertEquals(Long.valueOf(1), renderer.getStatistics().getOverruns().get(TeamCityEvent.SERVER_STARTUP));
+		// The abandoned render is not cached
+		AssertJUnit.assertEquals(0, renderer.getSize());
+		templates.shutdown();
+		templateFile.delete();
+	}
+	
+	@Test
+	public void testTemplatesCannotInstantiateClasses() throws Exception {
+		// Prepare
+		File templateFile = new File("hipchat", "serverStartupTemplate.ftl");
+		templateFile.delete();
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		templates.writeTemplate(TeamCityEvent.SERVER_STARTUP, "<#assign ex = \"freemarker.template.utility.Execute\"?new()>${ex(\"hostname\")}");
+		Template template = templates.readTemplate(TeamCityEvent.SERVER_STARTUP);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		
+		// Execute
+		try {
+			renderer.render(TeamCityEvent.SERVER_STARTUP, template, new HashMap<String, Object>(), null, null);
+			AssertJUnit.fail("Expected the template to be rejected");
+		} catch (TemplateException e) {
+			// Test
+			AssertJUnit.assertTrue(e.getMessage(), e.getMessage().contains("Execute"));
+		} finally {
+			templates.shutdown();
+			templateFile.delete();
+		}
+	}
+	
+	@Test
+	public void testPreviewMeasuresTheRender() throws Exception {
+		// Prepare
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(new HipChatConfiguration(), templates);
+		Template template = new HipChatTemplateConfiguration().compileTemplate("Build ${fullName} #${buildNumber}");
+		
+		// Execute
+		HipChatTemplatePreview preview = renderer.preview(template, HipChatBuildEventDataModel.createSample("http://example.com"));
+		
+		// Test: previews are not cached
+		AssertJUnit.assertEquals("Build Sample Project :: Sample Build #42", preview.html);
+		AssertJUnit.assertNull(preview.error);
+		AssertJUnit.assertTrue(preview.renderTime > 0);
+		AssertJUnit.assertTrue(preview.enrichments.isEmpty());
+		AssertJUnit.assertFalse(preview.truncated);
+		AssertJUnit.assertEquals(0, renderer.getSize());
+		AssertJUnit.assertEquals(0, renderer.getMissCount());
+		templates.shutdown();
+	}
+	
+	@Test
+	public void testPreviewReportsBudgetOverrun() throws Exception {
+		// Prepare
+		HipChatNotificationMessageTemplates templates = createTemplates();
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setRenderBudget(1);
+		HipChatTemplateRenderer renderer = new HipChatTemplateRenderer(configuration, templates);
+		Template template = new HipChatTemplateConfiguration().compileTemplate("<#list 1..100000000 as i><#if i % 100000 == 0>.</#if></#list>");
+		
+		// Execute
+		HipChatTemplatePreview preview = renderer.preview(template, new HashMap<String, Object>());
+		
+		// Test: there is no fallback to the default template
+		AssertJUnit.assertNull(preview.html);
+		AssertJUnit.assertEquals("The template exceeded the render budget of 1 ms", preview.error);
+		AssertJUnit.assertEquals(0, renderer.getOverrunCount(TeamCityEvent.SERVER_STARTUP));
+		templates.shutdown();
+	}
+
+}
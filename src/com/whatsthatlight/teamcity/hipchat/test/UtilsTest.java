@@ -35,6 +35,7 @@ import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoom;
 import com.whatsthatlight.teamcity.hipchat.HipChatRooms;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 import com.whatsthatlight.teamcity.hipchat.Utils;
 
 import static org.mockito.Mockito.*;
@@ -87,6 +88,31 @@ public class UtilsTest extends Utils {
 		assertEquals(expectedParentsParentNotifyStatus, actualParentConfiguration.getNotifyStatus());
 	}
 	
+	@Test
+	public void testTemplateConfigurationSkipsParentsWithoutOverride() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		// The immediate parent has a room, but no templates
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent_project_id", "parent_room_id", false));
+		HipChatProjectConfiguration parentsParentConfiguration = new HipChatProjectConfiguration("parents_parent_project_id", "parents_parent_room_id", false);
+		parentsParentConfiguration.setTemplate(TeamCityEvent.BUILD_STARTED, "started");
+		configuration.setProjectConfiguration(parentsParentConfiguration);
+		
+		// Mocks
+		SProject parentsParentProject = mock(SProject.class);
+		when(parentsParentProject.getProjectId()).thenReturn("parents_parent_project_id");
+		SProject parentProject = mock(SProject.class);
+		when(parentProject.getProjectId()).thenReturn("parent_project_id");
+		when(parentProject.getParentProject()).thenReturn(parentsParentProject);
+		SProject project = mock(SProject.class);
+		when(project.getProjectId()).thenReturn("project_id");
+		when(project.getParentProject()).thenReturn(parentProject);
+		
+		// Execute
+		assertSame(parentsParentConfiguration, Utils.findTemplateConfiguration(project, TeamCityEvent.BUILD_STARTED, configuration));
+		assertNull(Utils.findTemplateConfiguration(project, TeamCityEvent.BUILD_FAILED, configuration));
+	}
+	
 	@Test
 	public void testImmediateParentHasConfiguration() {
 		// Test parameters
@@ -243,6 +269,26 @@ public class UtilsTest extends Utils {
 		assertEquals(expectedNumberOfRooms, actualRooms.size());
 	}
 	
+	@Test
+	public void testGetRoomsReturnsNullIfAnyPageFails() {
+		// Construct the first room set
+		List<HipChatRoom> firstSetItems = new ArrayList<HipChatRoom>();
+		firstSetItems.add(new HipChatRoom("0", null, "roomOne"));
+		HipChatApiResultLinks firstSetlinks = new HipChatApiResultLinks(null, null, "hasNext");
+		HipChatRooms firstSet = new HipChatRooms(firstSetItems, 0, 1, firstSetlinks);
+		
+		// Mocks: the second page could not be retrieved
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getRooms(0)).thenReturn(firstSet);
+		when(processor.getRooms(1)).thenReturn(null);
+		
+		// Execute
+		TreeMap<String, String> actualRooms = Utils.getRooms(processor);
+		
+		// Test
+		assertNull(actualRooms);
+	}
+	
 	@Test
 	public void testIsRoomIdNullOrNone() {
 		assertEquals(false, Utils.IsRoomIdNullOrNone(""));
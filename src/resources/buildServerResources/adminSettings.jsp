@@ -79,6 +79,38 @@ limitations under the License.
 					<span style="color: #888; font-size: 90%;">When checked, a notification for all people in the room will be triggered, taking user preferences into account.</span>
 				</td>
 			</tr>
+			<tr>
+				<th>
+					<label for="connectTimeout">Timeouts: </label>
+				</th>
+				<td>
+					Connect <forms:textField name="connectTimeout" value="${connectTimeout}" style="width: 40px;" /> s&nbsp;&nbsp;
+					Pool <forms:textField name="connectionRequestTimeout" value="${connectionRequestTimeout}" style="width: 40px;" /> s&nbsp;&nbsp;
+					Socket <forms:textField name="socketTimeout" value="${socketTimeout}" style="width: 40px;" /> s&nbsp;&nbsp;
+					Notification deadline <forms:textField name="notificationDeadline" value="${notificationDeadline}" style="width: 40px;" /> s&nbsp;&nbsp;
+					Render budget <forms:textField name="renderBudget" value="${renderBudget}" style="width: 40px;" /> ms
+					<span class="smallNote">Time allowed for connecting to HipChat, for waiting on a pooled connection and for waiting on data. A notification that is still not delivered 
+					when its deadline passes, including retries, is cancelled. A template that takes longer than the render budget is abandoned for the default template.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="rendering">Rendering: </label>
+				</th>
+				<td>
+					${renderStatistics.cachedMessages} cached messages, ${renderStatistics.hits} reused, ${renderStatistics.misses} rendered
+					<span class="smallNote">${renderStatistics.truncated} truncated to the HipChat message limit. Render budget exceeded:<c:forEach var="overrun" items="${renderStatistics.overruns}" varStatus="status"> ${overrun.key} ${overrun.value}<c:if test="${not status.last}">,</c:if></c:forEach>.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="templateCache">Template cache: </label>
+				</th>
+				<td>
+					${templateCacheStatistics.hits} hits, ${templateCacheStatistics.misses} misses
+					<span class="smallNote">${templateCacheStatistics.hitRate}% of templates were compiled before.</span>
+				</td>
+			</tr>
 			<tr>
 				<th>
 					<label for="emoticonCache">Emoticon cache: </label>
@@ -87,6 +119,55 @@ limitations under the License.
 					${emoticonCacheSize} items&nbsp;&mdash;&nbsp;<a href="#" onclick="return HipChatAdmin.reloadEmoticons()">Reload</a>
 				</td>
 			</tr>
+			<tr>
+				<th>
+					<label for="roomCache">Room directory: </label>
+				</th>
+				<td>
+					${roomCacheSize} rooms&nbsp;&mdash;&nbsp;<a href="#" onclick="return HipChatAdmin.reloadRooms()">Reload</a>
+					<span class="smallNote"><c:choose><c:when test="${roomCacheAge < 0}">Not loaded yet.</c:when><c:otherwise>Loaded ${roomCacheAge} s ago.</c:otherwise></c:choose> 
+					The room list is refreshed in the background every 10 minutes.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="connectionPool">Connection pool: </label>
+				</th>
+				<td>
+					${connectionPoolStatistics.leased} leased, ${connectionPoolStatistics.available} available, ${connectionPoolStatistics.pending} pending (maximum ${connectionPoolStatistics.max})
+					<span class="smallNote">${connectionPoolStatistics.requests} requests: ${connectionPoolStatistics.hits} reused a pooled connection (hits), ${connectionPoolStatistics.misses} opened a new connection (misses). ${connectionPoolStatistics.timeouts} requests timed out, ${connectionPoolStatistics.cancelled} notifications cancelled at their deadline.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="notificationQueue">Notification queue: </label>
+				</th>
+				<td>
+					${dispatchStatistics.queueDepth} queued (capacity ${dispatchStatistics.queueCapacity}), ${dispatchStatistics.activeWorkers} of ${dispatchStatistics.workers} workers busy, ${dispatchStatistics.utilisationPercentage}% utilisation
+					<span class="smallNote">${dispatchStatistics.enqueued} enqueued, ${dispatchStatistics.dispatched} dispatched, ${dispatchStatistics.dropped} dropped. Enqueue-to-send latency: ${dispatchStatistics.averageLatency} ms average, ${dispatchStatistics.maxLatency} ms maximum. ${dispatchStatistics.journaled} undelivered in the outbox journal. ${dispatchStatistics.coalesced} combined into digests.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="rateLimit">Rate limit: </label>
+				</th>
+				<td>
+					${rateLimitStatistics.remaining} of ${rateLimitStatistics.limit} requests left (reset in ${rateLimitStatistics.secondsUntilReset} s)
+					<span class="smallNote">${rateLimitStatistics.throttledRequests} notifications throttled for a total of ${rateLimitStatistics.throttledMilliseconds} ms, ${rateLimitStatistics.rateLimitedResponses} rejected by HipChat (429) and retried.</span>
+				</td>
+			</tr>
+			<tr>
+				<th>
+					<label for="circuitBreakers">Circuit breakers: </label>
+				</th>
+				<td>
+					<c:if test="${empty circuitBreakers}">None</c:if>
+					<c:forEach var="circuitBreaker" items="${circuitBreakers}">
+						<div><c:out value="${circuitBreaker.name}"/>: <strong>${circuitBreaker.state}</strong><c:if test="${circuitBreaker.state == 'open'}"> (retry in ${circuitBreaker.secondsUntilRetry} s)</c:if></div>
+						<span class="smallNote">${circuitBreaker.failureCount} failures, ${circuitBreaker.rejectedCount} notifications failed fast<c:if test="${not empty circuitBreaker.lastFailure}">. Last failure: <c:out value="${circuitBreaker.lastFailure}"/></c:if></span>
+					</c:forEach>
+				</td>
+			</tr>
 			<tr class="groupingTitle">
           		<td colspan="2">Build Events Configuration&nbsp;<a href="http://www.whatsthatlight.com/index.php/projects/teamcity-hipchat-plugin/" class="helpIcon" style="vertical-align: middle;" target="_blank"><bs:helpIcon/></a></td>
         	</tr>
@@ -118,6 +199,17 @@ limitations under the License.
 					</div>
 				</td>
 			</tr>			
+			<tr>
+				<th><label for="previewBuildId">Preview: </label></th>
+				<td>
+					<input type="text" id="previewBuildId" name="previewBuildId" size="10" placeholder="Build ID"/>
+					<span class="smallNote">Build templates are previewed against this build, or against sample values when it is empty.</span>
+					<div id="templatePreview" style="display: none;">
+						<iframe id="templatePreviewHtml" sandbox="" style="width: 92%; height: 6em; border: 1px solid #ccc;"></iframe><br>
+						<span class="smallNote" id="templatePreviewCost"></span>
+					</div>
+				</td>
+			</tr>
 			<tr>
 				<th>
 					<label for="buildStartedLabel">Build started: </label>
@@ -125,7 +217,9 @@ limitations under the License.
 				<td>
 					<textarea id="buildStartedTemplate" name="buildStartedTemplate" style="width: 92%;">${buildStartedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildStartedTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('buildStartedTemplate', 'BUILD_STARTED')">Preview</a>
 					<input type="hidden" id="buildStartedTemplateDefault" value="${buildStartedTemplateDefault}" /><br>
+					<span class="smallNote"><c:out value="${templateAnalysis.buildStartedTemplate.summary}"/></span>
 					<forms:checkbox name="buildStarted" checked="${buildStarted}" value="${buildStarted}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when the build starts.</span>			
 				</td>
@@ -135,7 +229,9 @@ limitations under the License.
 				<td>
 					<textarea id="buildSuccessfulTemplate" name="buildSuccessfulTemplate" style="width: 92%;">${buildSuccessfulTemplate}</textarea>	
 					<a style="vertical-align: top;" href="#" id="buildSuccessfulTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('buildSuccessfulTemplate', 'BUILD_SUCCESSFUL')">Preview</a>
 					<input type="hidden" id="buildSuccessfulTemplateDefault" value="${buildSuccessfulTemplateDefault}" /><br>
+					<span class="smallNote"><c:out value="${templateAnalysis.buildSuccessfulTemplate.summary}"/></span>
 					<forms:checkbox name="buildSuccessful" checked="${buildSuccessful}" value="${buildSuccessful}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when a finished build is successful.</span><br>
 					<span style="padding-left: 1.5em;"><forms:checkbox name="onlyAfterFirstBuildSuccessful" checked="${onlyAfterFirstBuildSuccessful}" value="${onlyAfterFirstBuildSuccessful}" onclick="if (this.checked) { jQuery('#buildSuccessful').prop('checked', true); jQuery('#buildSuccessful').prop('disabled', true); } else { jQuery('#buildSuccessful').prop('disabled', false); } return true;"/></span>
@@ -147,7 +243,9 @@ limitations under the License.
 				<td>
 					<textarea id="buildFailedTemplate" name="buildFailedTemplate" style="width: 92%;">${buildFailedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildFailedTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('buildFailedTemplate', 'BUILD_FAILED')">Preview</a>
 					<input type="hidden" id="buildFailedTemplateDefault" value="${buildFailedTemplateDefault}" /><br>
+					<span class="smallNote"><c:out value="${templateAnalysis.buildFailedTemplate.summary}"/></span>
 					<forms:checkbox name="buildFailed" checked="${buildFailed}" value="${buildFailed}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when a finished build failed.</span><br>
 					<span style="padding-left: 1.5em;"><forms:checkbox name="onlyAfterFirstBuildFailed" checked="${onlyAfterFirstBuildFailed}" value="${onlyAfterFirstBuildFailed}" onclick="if (this.checked) { jQuery('#buildFailed').prop('checked', true); jQuery('#buildFailed').prop('disabled', true); } else { jQuery('#buildFailed').prop('disabled', false); } return true;"/></span>
@@ -159,7 +257,9 @@ limitations under the License.
 				<td>
 					<textarea id="buildInterruptedTemplate" name="buildInterruptedTemplate" style="width: 92%;">${buildInterruptedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildInterruptedTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('buildInterruptedTemplate', 'BUILD_INTERRUPTED')">Preview</a>
 					<input type="hidden" id="buildInterruptedTemplateDefault" value="${buildInterruptedTemplateDefault}" /><br>
+					<span class="smallNote"><c:out value="${templateAnalysis.buildInterruptedTemplate.summary}"/></span>
 					<forms:checkbox name="buildInterrupted" checked="${buildInterrupted}" value="${buildInterrupted}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when the build gets interrupted (i.e. cancelled).</span>
 				</td>
@@ -188,6 +288,7 @@ limitations under the License.
 				<td>
 					<textarea id="serverStartupTemplate" name="serverStartupTemplate" style="width: 92%;">${serverStartupTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="serverStartupTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('serverStartupTemplate', 'SERVER_STARTUP')">Preview</a>
 					<input type="hidden" id="serverStartupTemplateDefault" value="${serverStartupTemplateDefault}" /><br>
 					<forms:checkbox name="serverStartup" checked="${serverStartup}" value="${serverStartup}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent to the <b>default</b> room.</span>
@@ -198,6 +299,7 @@ limitations under the License.
 				<td>
 					<textarea id="serverShutdownTemplate" name="serverShutdownTemplate" style="width: 92%;">${serverShutdownTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="serverShutdownTemplateDefaultLink">Default</a>
+					<a style="vertical-align: top;" href="#" onclick="return HipChatAdmin.preview('serverShutdownTemplate', 'SERVER_SHUTDOWN')">Preview</a>
 					<input type="hidden" id="serverShutdownTemplateDefault" value="${serverShutdownTemplateDefault}" /><br>
 					<forms:checkbox name="serverShutdown" checked="${serverShutdown}" value="${serverShutdown}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent to the <b>default</b> room.</span>
@@ -21,7 +21,11 @@ var HipChatProject = {
 				"project=1" + 
 				"&roomId="    + $("roomId").value +
 				"&notify="    + $("notify").checked + 
-				"&projectId=" + $("projectId").value,
+				"&projectId=" + $("projectId").value +
+				"&buildStartedTemplate="     + encodeURIComponent($("buildStartedTemplate").value) +
+				"&buildSuccessfulTemplate="  + encodeURIComponent($("buildSuccessfulTemplate").value) +
+				"&buildFailedTemplate="      + encodeURIComponent($("buildFailedTemplate").value) +
+				"&buildInterruptedTemplate=" + encodeURIComponent($("buildInterruptedTemplate").value),
 			onComplete : function(transport) {
 				if (transport.responseXML) {
 					BS.XMLResponse.processErrors(transport.responseXML, {
@@ -65,6 +69,11 @@ var HipChatAdmin = {
 				"&notify="                        + $("notify").checked + 
 				"&branchFilter="                  + $("branchFilter").checked + 
 				"&branchFilterRegex="             + $("branchFilterRegex").value + 
+				"&connectTimeout="                + $("connectTimeout").value + 
+				"&connectionRequestTimeout="      + $("connectionRequestTimeout").value + 
+				"&socketTimeout="                 + $("socketTimeout").value + 
+				"&notificationDeadline="          + $("notificationDeadline").value + 
+				"&renderBudget="                  + $("renderBudget").value + 
 				"&buildStarted="                  + $("buildStarted").checked +
 				"&buildSuccessful="               + $("buildSuccessful").checked +
 				"&buildFailed="                   + $("buildFailed").checked +
@@ -93,6 +102,46 @@ var HipChatAdmin = {
 		return false;
 	},
 	
+	preview : function(templateId, event) {
+		jQuery.ajax(
+				{
+					url: $("hipChatForm").action, 
+					data: {
+							preview: 1, 
+							event: event,
+							template: $(templateId).value,
+							buildId: $("previewBuildId").value
+						  },
+					type: "POST",
+					dataType: "json"
+				}).done(function(preview) {
+					var cost = preview.error;
+					if (!cost) {
+						cost = preview.source + ": rendered in " + preview.renderTime.toFixed(2) + " ms";
+						if (preview.allocatedBytes >= 0) {
+							cost += ", allocating " + preview.allocatedBytes + " bytes";
+						}
+						cost += preview.enrichments.length > 0 ? ", looking up " + preview.enrichments.join(", ") : ", without lookups";
+						if (preview.truncated) {
+							cost += "; the message was truncated";
+						}
+					}
+					// The message may contain build parameters, so it is shown in a sandbox
+					jQuery("#templatePreviewHtml").attr("srcdoc", preview.html ? preview.html : "");
+					jQuery("#templatePreviewCost").text(cost);
+					jQuery("#templatePreview").show();
+				}).fail(function(xhr) {
+					var error = null;
+					try {
+						error = jQuery.parseJSON(xhr.responseText).error;
+					} catch (e) {
+						// Not a preview
+					}
+					alert(error ? "Preview failed: " + error : "Preview failed!");
+				});
+		return false;
+	},
+	
 	testConnection : function() {
 		if (!HipChatAdmin.validate()) {
 			return false;
@@ -128,8 +177,27 @@ var HipChatAdmin = {
 						  },
 					type: "GET"
 				}).done(function() {
-					alert("Reload successful!");
-					BS.reload(true);
+					alert("Reload started; the emoticons are updated in the background.");
+				}).fail(function() {
+					alert("Reload failed!")
+				});
+		return false;
+	},
+	
+	reloadRooms : function() {
+		if (!HipChatAdmin.validate()) {
+			return false;
+		}
+		
+		jQuery.ajax(
+				{
+					url: $("hipChatForm").action, 
+					data: {
+							reloadRooms: 1
+						  },
+					type: "GET"
+				}).done(function() {
+					alert("Reload started; the room list is updated in the background.");
 				}).fail(function() {
 					alert("Reload failed!")
 				});
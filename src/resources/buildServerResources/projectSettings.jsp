@@ -55,6 +55,36 @@ limitations under the License.
 					<span class="smallNote">When checked, a notification for all people in the room will be triggered, taking user preferences into account.</span>
 				</td>
 			</tr>
+			<tr>
+				<th><label for="buildStartedTemplate">Build started template: </label></th>
+				<td>
+					<textarea id="buildStartedTemplate" name="buildStartedTemplate" style="width: 92%;"><c:out value="${buildStartedTemplate}"/></textarea>
+				</td>
+			</tr>
+			<tr>
+				<th><label for="buildSuccessfulTemplate">Build successful template: </label></th>
+				<td>
+					<textarea id="buildSuccessfulTemplate" name="buildSuccessfulTemplate" style="width: 92%;"><c:out value="${buildSuccessfulTemplate}"/></textarea>
+				</td>
+			</tr>
+			<tr>
+				<th><label for="buildFailedTemplate">Build failed template: </label></th>
+				<td>
+					<textarea id="buildFailedTemplate" name="buildFailedTemplate" style="width: 92%;"><c:out value="${buildFailedTemplate}"/></textarea>
+				</td>
+			</tr>
+			<tr>
+				<th><label for="buildInterruptedTemplate">Build interrupted template: </label></th>
+				<td>
+					<textarea id="buildInterruptedTemplate" name="buildInterruptedTemplate" style="width: 92%;"><c:out value="${buildInterruptedTemplate}"/></textarea>
+				</td>
+			</tr>
+			<tr>
+				<th></th>
+				<td>
+					<span class="smallNote">Leave a template empty to inherit it from the parent project, or from the global templates.</span>
+				</td>
+			</tr>
 		</table>
 		<div class="saveButtonsBlock">
 			<forms:submit label="Save" />